@@ -17,6 +17,7 @@ import java.util.TreeSet;
 
 import muset.Alphabet.Letter;
 import muset.util.Edge;
+import muset.util.PairPosteriors;
 import muset.util.ROCPoint;
 import muset.util.SupportFunctions;
 import muset.util.TopoSort;
@@ -164,6 +165,23 @@ public class MSAPoset implements Serializable
     return result;
   }
   
+  public static MSAPoset maxRecallMSA(Map<SequenceId,Sequence> sequences, PairPosteriors posteriors)
+  {
+    return consensusAlignment(sequences, posteriors, 0.0);
+  }
+  
+  /**
+   * Same as consensusAlignment(Map, Counter, double), with the scores stored 
+   * in a PairPosteriors (edges are only created for the scores above threshold).
+   */
+  public static MSAPoset consensusAlignment(Map<SequenceId,Sequence> sequences, PairPosteriors posteriors, double threshold)
+  {
+    MSAPoset result = new MSAPoset(sequences);
+    for (Edge e : posteriors.edges(threshold))
+      result.tryAdding(e);
+    return result;
+  }
+  
   /**
    * Creates a full ROC path of alignment quality scores by adding 
    * alignment links (edges) in order of score (provided by the counter).
@@ -794,6 +812,15 @@ public class MSAPoset implements Serializable
   public void toFASTA(File f)
   {
     PrintWriter out = BriefIO.output(f); 
+    toFASTA(out);
+    out.close();
+  }
+  
+  /**
+   * Write the alignment in fasta format to out (which is not closed).
+   */
+  public void toFASTA(PrintWriter out)
+  {
     StringBuilder [] builders = createPaddedStrings(null);
     List<SequenceId> sequenceIdPrintOrder = printOrder(null);
     for (int i = 0; i < sequenceIdPrintOrder.size(); i++)
@@ -801,7 +828,6 @@ public class MSAPoset implements Serializable
       out.println(">" + sequenceIdPrintOrder.get(i));
       out.println(builders[i]);
     }
-    out.close();
   }
   
   /**
@@ -1,6 +1,8 @@
 package muset;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import muset.Alphabet.Letter;
@@ -16,12 +18,43 @@ public class Sequence
 {
   private final List<Letter> letters;
   public final Alphabet alphabet;
+  private final int [] ids; // indices in the alphabet of the first ids.length letters, or null, see fromIds()
   
   public Sequence(Alphabet alphabet, List<Letter> letters)
+  {
+    this(alphabet, letters, null);
+  }
+  
+  private Sequence(Alphabet alphabet, List<Letter> letters, int [] ids)
   {
     super();
     this.letters = letters;
     this.alphabet = alphabet;
+    this.ids = ids;
+  }
+  
+  /**
+   * A sequence backed by the indices of its letters in the alphabet (e.g. read from 
+   * a binary dataset): no list of letters is built, and the indices are available 
+   * through letterIds() (e.g. for Model.charIds()).
+   */
+  public static Sequence fromIds(final Alphabet alphabet, final int [] ids)
+  {
+    List<Letter> letters = new AbstractList<Letter>() {
+      @Override public Letter get(int i) { return alphabet.indexer.i2o(ids[i]); }
+      @Override public int size() { return ids.length; }
+    };
+    return new Sequence(alphabet, letters, ids);
+  }
+  
+  /**
+   * @return The indices in the alphabet of the first letters of the sequence (all of them, 
+   *   unless letters were appended), or null if the sequence was not created with fromIds(). 
+   *   Should not be modified.
+   */
+  public int [] letterIds()
+  {
+    return ids;
   }
 
   public Letter letterAt(int i)
@@ -38,7 +71,7 @@ public class Sequence
   {
     List<Letter> result = new ArrayList<Letter>(letters);
     result.add(letter);
-    return new Sequence(alphabet, result);
+    return new Sequence(alphabet, result, ids);
   }
   
   public int length()
@@ -95,6 +128,7 @@ public class Sequence
 
   public Sequence subsequence(int fromIndex, int toIndex)
   {
-    return new Sequence(alphabet, letters.subList(fromIndex, toIndex));
+    return new Sequence(alphabet, letters.subList(fromIndex, toIndex), 
+        ids == null || fromIndex > ids.length ? null : Arrays.copyOfRange(ids, fromIndex, Math.min(toIndex, ids.length)));
   }
 }
@@ -0,0 +1,183 @@
+package muset.hmm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import muset.Sequence;
+import muset.util.BandedMatrix;
+import muset.util.Parallel;
+
+
+
+/**
+ * A pair HMM where some pairs of positions (anchors) are pinned to be aligned.
+ *
+ * The anchors split the lattice into independent segments, each ending with
+ * the substitution of an anchor (except for the last one, which ends at the end
+ * of the strings). Each segment is solved by its own HetPairHMM, so the cost is
+ * the sum of the segments' areas instead of the full product of the lengths.
+ *
+ * This is exact (i.e. equivalent to conditioning the full HetPairHMM on the anchors
+ * being aligned) provided that, as in the models of muset.pef, the start state and
+ * the end state coincide with the state reached after a substitution, and is
+ * only reached by substitutions.
+ *
+ * @author bouchard
+ */
+public final class AnchoredPairHMM
+{
+  public final Sequence str1, str2;
+  private final List<HetPairHMM> segments = new ArrayList<HetPairHMM>();
+  private final List<Integer> topOffsets = new ArrayList<Integer>(), botOffsets = new ArrayList<Integer>();
+  private final int nThreads;
+  private boolean sumProductComputed = false;
+
+  /**
+   * @param anchors Strictly increasing in both coordinates, see Anchors.consistentChain()
+   * @param nThreads Number of threads used to solve the segments
+   */
+  public AnchoredPairHMM(Sequence str1, Sequence str2, HetPairHMMSpecification pairHMM,
+      List<Pair<Integer,Integer>> anchors, int nThreads)
+  {
+    this.str1 = str1;
+    this.str2 = str2;
+    this.nThreads = nThreads;
+    int topStart = 0, botStart = 0;
+    for (Pair<Integer,Integer> anchor : anchors)
+    {
+      final int topEnd = anchor.getLeft() + 1, botEnd = anchor.getRight() + 1;
+      if (topEnd <= topStart || botEnd <= botStart || topEnd > str1.length() || botEnd > str2.length())
+        throw new RuntimeException("Anchors should be strictly increasing and within the strings");
+      addSegment(pairHMM, topStart, topEnd, botStart, botEnd);
+      topStart = topEnd;
+      botStart = botEnd;
+    }
+    if (topStart < str1.length() || botStart < str2.length())
+      addSegment(pairHMM, topStart, str1.length(), botStart, str2.length());
+  }
+
+  /**
+   * Run the forward and backward recursions of all the segments, in parallel (they are
+   * independent). This is done lazily by the methods needing them, so that viterbi()
+   * and the max-product or sampling methods of the segments do not pay for them.
+   */
+  public synchronized void computeSumProduct()
+  {
+    if (sumProductComputed)
+      return;
+    Parallel.forEach(nThreads, segments, new Parallel.Worker<HetPairHMM>() {
+      @Override
+      public void process(int index, HetPairHMM segment)
+      {
+        segment.computeSumProduct();
+      }
+    });
+    sumProductComputed = true;
+  }
+
+  private void addSegment(final HetPairHMMSpecification pairHMM, final int topStart, int topEnd, final int botStart, int botEnd)
+  {
+    HetPairHMMSpecification shifted = new HetPairHMMSpecification() {
+      @Override public int startState() { return pairHMM.startState(); }
+      @Override public int endState() { return pairHMM.endState(); }
+      @Override public int nStates() { return pairHMM.nStates(); }
+      @Override
+      public double logWeight(int prevState, int currentState, int x, int y, int deltaX, int deltaY)
+      {
+        return pairHMM.logWeight(prevState, currentState, x + topStart, y + botStart, deltaX, deltaY);
+      }
+    };
+    segments.add(new HetPairHMM(str1.subsequence(topStart, topEnd), str2.subsequence(botStart, botEnd), shifted));
+    topOffsets.add(topStart);
+    botOffsets.add(botStart);
+  }
+
+  public int nSegments() { return segments.size(); }
+
+  /**
+   * @return The HetPairHMM of the given segment, over the subsequences starting at
+   *   topOffset(segment) and botOffset(segment)
+   */
+  public HetPairHMM segment(int segment) { return segments.get(segment); }
+  public int topOffset(int segment) { return topOffsets.get(segment); }
+  public int botOffset(int segment) { return botOffsets.get(segment); }
+
+  public double logSumProduct()
+  {
+    computeSumProduct();
+    double result = 0.0;
+    for (HetPairHMM segment : segments)
+      result += segment.logSumProduct();
+    return result;
+  }
+
+  /**
+   * @return A zero matrix for the posteriors that str1[x] and str2[y] are aligned, indexed by x then y,
+   *   storing only the pairs (x, y) in the block of a segment (the others have a posterior of zero)
+   */
+  public BandedMatrix posteriorMatrix()
+  {
+    final int [] lower = new int[str1.length()], upper = new int[str1.length()];
+    for (int s = 0; s < segments.size(); s++)
+      for (int x = 0; x < segments.get(s).str1.length(); x++)
+      {
+        lower[topOffsets.get(s) + x] = botOffsets.get(s);
+        upper[topOffsets.get(s) + x] = botOffsets.get(s) + segments.get(s).str2.length() - 1;
+      }
+    return new BandedMatrix(lower, upper, str2.length());
+  }
+
+  /**
+   * The log posterior pr that these two points are aligned
+   */
+  public double logPosteriorAlignment(int x, int y)
+  {
+    final int s = segmentIndex(x, y);
+    if (s == -1)
+      return Double.NEGATIVE_INFINITY;
+    computeSumProduct();
+    return segments.get(s).logPosteriorAlignment(x - topOffsets.get(s), y - botOffsets.get(s));
+  }
+
+  // index of the segment containing the top position x, if it also contains
+  // the bottom position y, or -1 otherwise
+  private int segmentIndex(int x, int y)
+  {
+    // top offsets are strictly increasing since each anchor consumes a top symbol
+    int s = Collections.binarySearch(topOffsets, x);
+    if (s < 0)
+      s = -s - 2;
+    if (s < 0 || y < botOffsets.get(s) || y >= botOffsets.get(s) + segments.get(s).str2.length())
+      return -1;
+    return s;
+  }
+
+  public Derivation viterbi()
+  {
+    return _viterbiOrSample(null);
+  }
+
+  public Derivation sample(Random rand)
+  {
+    return _viterbiOrSample(rand);
+  }
+
+  private Derivation _viterbiOrSample(Random rand)
+  {
+    final int [] ancestors = new int[str2.length()];
+    for (int s = 0; s < segments.size(); s++)
+    {
+      final HetPairHMM segment = segments.get(s);
+      final Derivation current = rand == null ? segment.viterbi() : segment.sample(rand);
+      for (int i = 0; i < segment.str2.length(); i++)
+        ancestors[botOffsets.get(s) + i] = current.hasAncestor(i) ?
+            current.ancestor(i) + topOffsets.get(s) :
+            Derivation.INSERTED;
+    }
+    return new Derivation(ancestors, str1, str2);
+  }
+}
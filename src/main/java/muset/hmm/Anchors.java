@@ -0,0 +1,120 @@
+package muset.hmm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import muset.MSAPoset;
+import muset.MSAPoset.Column;
+import muset.Sequence;
+import muset.SequenceId;
+
+
+
+/**
+ * Utilities to find anchors, i.e. pairs (top position, bottom position) pinned
+ * to be aligned, used by AnchoredPairHMM.
+ *
+ * @author bouchard
+ */
+public class Anchors
+{
+  /**
+   * Anchors at all the positions of the k-mers occurring exactly once in
+   * each sequence, filtered by consistentChain().
+   */
+  public static List<Pair<Integer,Integer>> exactMatches(Sequence top, Sequence bot, int k)
+  {
+    Map<Sequence,Integer>
+      topKmers = uniqueKmers(top, k),
+      botKmers = uniqueKmers(bot, k);
+    List<Pair<Integer,Integer>> candidates = new ArrayList<Pair<Integer,Integer>>();
+    for (Sequence kmer : topKmers.keySet())
+      if (botKmers.containsKey(kmer))
+      {
+        final int topStart = topKmers.get(kmer), botStart = botKmers.get(kmer);
+        if (topStart < 0 || botStart < 0)
+          continue;
+        for (int i = 0; i < k; i++)
+          candidates.add(Pair.of(topStart + i, botStart + i));
+      }
+    return consistentChain(candidates);
+  }
+
+  /**
+   * Anchors given by the links between two sequences in an existing alignment.
+   */
+  public static List<Pair<Integer,Integer>> fromAlignment(MSAPoset alignment, SequenceId top, SequenceId bot)
+  {
+    List<Pair<Integer,Integer>> candidates = new ArrayList<Pair<Integer,Integer>>();
+    for (Column c : alignment.columns())
+    {
+      Map<SequenceId,Integer> points = c.getPoints();
+      if (points.containsKey(top) && points.containsKey(bot))
+        candidates.add(Pair.of(points.get(top), points.get(bot)));
+    }
+    return consistentChain(candidates);
+  }
+
+  /**
+   * The longest subset of the candidates that is strictly increasing in both
+   * coordinates, sorted.
+   */
+  public static List<Pair<Integer,Integer>> consistentChain(List<Pair<Integer,Integer>> candidates)
+  {
+    List<Pair<Integer,Integer>> sorted = new ArrayList<Pair<Integer,Integer>>(candidates);
+    // ties in the top position are broken by decreasing bottom position so that at most one is picked
+    Collections.sort(sorted, new Comparator<Pair<Integer,Integer>>() {
+      @Override
+      public int compare(Pair<Integer, Integer> o1, Pair<Integer, Integer> o2)
+      {
+        if (!o1.getLeft().equals(o2.getLeft()))
+          return o1.getLeft().compareTo(o2.getLeft());
+        return o2.getRight().compareTo(o1.getRight());
+      }
+    });
+    // longest strictly increasing subsequence of bottom positions, in O(n log n)
+    final int n = sorted.size();
+    int [] tails = new int[n], previous = new int[n];
+    int length = 0;
+    for (int i = 0; i < n; i++)
+    {
+      final int value = sorted.get(i).getRight();
+      int lo = 0, hi = length;
+      while (lo < hi)
+      {
+        final int mid = (lo + hi) / 2;
+        if (sorted.get(tails[mid]).getRight() < value) lo = mid + 1;
+        else hi = mid;
+      }
+      previous[i] = lo > 0 ? tails[lo - 1] : -1;
+      tails[lo] = i;
+      if (lo == length)
+        length++;
+    }
+    List<Pair<Integer,Integer>> result = new ArrayList<Pair<Integer,Integer>>();
+    for (int i = length > 0 ? tails[length - 1] : -1; i != -1; i = previous[i])
+      result.add(sorted.get(i));
+    Collections.reverse(result);
+    return result;
+  }
+
+  // k-mer -> start position, or -1 if the k-mer occurs more than once
+  private static Map<Sequence,Integer> uniqueKmers(Sequence sequence, int k)
+  {
+    Map<Sequence,Integer> result = new HashMap<Sequence,Integer>();
+    for (int i = 0; i + k <= sequence.length(); i++)
+    {
+      Sequence kmer = sequence.subsequence(i, i + k);
+      result.put(kmer, result.containsKey(kmer) ? -1 : i);
+    }
+    return result;
+  }
+
+  private Anchors() {}
+}
@@ -0,0 +1,114 @@
+package muset.hmm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import muset.Sequence;
+import muset.util.Parallel;
+
+
+
+/**
+ * Maximum likelihood estimation of the weights of a HomogenousHMM from
+ * unaligned pairs of sequences, using EM (Baum-Welch).
+ *
+ * The expected counts are accumulated directly in dense, letter-indexed
+ * arrays (a HomogenousHMM with the same shape as the model). The pairs are
+ * processed in parallel by blocks of fixed size, each block having its own
+ * counts; the blocks are then merged in order so that the result does not
+ * depend on the number of threads.
+ *
+ * @author bouchard
+ */
+public final class BaumWelch
+{
+  private static final int BLOCK_SIZE = 16;
+
+  /**
+   * The outcome of an EM iteration, under the model before the update.
+   */
+  public static final class Iteration
+  {
+    /**
+     * Log likelihood of the pairs with a positive probability
+     */
+    public final double logLikelihood;
+
+    /**
+     * Number of pairs with zero probability, ignored in the iteration
+     */
+    public final int nSkipped;
+
+    private Iteration(double logLikelihood, int nSkipped)
+    {
+      this.logLikelihood = logLikelihood;
+      this.nSkipped = nSkipped;
+    }
+  }
+
+  /**
+   * Do nIterations of EM, updating the weights of the model in place. Transitions
+   * with a zero weight in the provided model stay at zero.
+   *
+   * @param pseudoCount Added to the expected count of each allowed transition
+   * @return The outcome of each iteration
+   */
+  public static List<Iteration> train(HomogenousHMM model, List<Pair<Sequence,Sequence>> pairs,
+      int nIterations, double pseudoCount, int nThreads)
+  {
+    List<Iteration> result = new ArrayList<Iteration>();
+    for (int iter = 0; iter < nIterations; iter++)
+      result.add(iterate(model, pairs, pseudoCount, nThreads));
+    return result;
+  }
+
+  /**
+   * One EM iteration, updating the weights of the model in place.
+   */
+  public static Iteration iterate(final HomogenousHMM model, final List<Pair<Sequence,Sequence>> pairs,
+      double pseudoCount, int nThreads)
+  {
+    List<Integer> blocks = new ArrayList<Integer>();
+    for (int start = 0; start < pairs.size(); start += BLOCK_SIZE)
+      blocks.add(start);
+    final List<HomogenousHMM> counts = new ArrayList<HomogenousHMM>();
+    final double [] logLikelihoods = new double[blocks.size()];
+    final int [] nSkipped = new int[blocks.size()];
+    for (int b = 0; b < blocks.size(); b++)
+      counts.add(model.zeroCopy());
+    // E step
+    Parallel.forEach(nThreads, blocks, new Parallel.Worker<Integer>() {
+      @Override
+      public void process(int index, Integer start)
+      {
+        final HomogenousHMM blockCounts = counts.get(index);
+        for (int i = start; i < Math.min(start + BLOCK_SIZE, pairs.size()); i++)
+        {
+          Pair<Sequence,Sequence> pair = pairs.get(i);
+          final double logZ = blockCounts.addExpectedCounts(model.createPairHMM(pair.getLeft(), pair.getRight()));
+          if (logZ == Double.NEGATIVE_INFINITY)
+            nSkipped[index]++;
+          else
+            logLikelihoods[index] += logZ;
+        }
+      }
+    });
+    // merge in a fixed order
+    HomogenousHMM total = model.zeroCopy();
+    double logLikelihood = 0.0;
+    int skipped = 0;
+    for (int b = 0; b < blocks.size(); b++)
+    {
+      total.add(counts.get(b));
+      logLikelihood += logLikelihoods[b];
+      skipped += nSkipped[b];
+    }
+    // M step
+    model.normalize(total, pseudoCount);
+    return new Iteration(logLikelihood, skipped);
+  }
+
+  private BaumWelch() {}
+}
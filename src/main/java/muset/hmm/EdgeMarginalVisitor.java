@@ -0,0 +1,17 @@
+package muset.hmm;
+
+/**
+ * Receives the posterior probabilities of the transitions of a HetPairHMM,
+ * see HetPairHMM.edgeMarginals()
+ * 
+ * @author bouchard
+ *
+ */
+public interface EdgeMarginalVisitor
+{
+  /**
+   * Same conventions as HetPairHMMSpecification.logWeight(), except that 
+   * posterior is a probability (not in log space), always positive
+   */
+  public void visit(int prevState, int currentState, int x, int y, int deltaX, int deltaY, double posterior);
+}
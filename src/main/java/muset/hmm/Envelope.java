@@ -0,0 +1,156 @@
+package muset.hmm;
+
+import java.util.Arrays;
+
+
+
+/**
+ * A restriction of the pair HMM lattice: for each number x of symbols
+ * emitted from the top string, only the lattice nodes (x, y) with y in
+ * [lower(x), upper(x)] are considered. Paths leaving the envelope get
+ * zero weight.
+ *
+ * Envelopes are always monotone and connected, i.e. they contain at least
+ * one path from (0, 0) to (len1, len2).
+ *
+ * @author bouchard
+ */
+public final class Envelope
+{
+  private final int [] lower, upper; // x -> inclusive range of y
+  public final int len1, len2;
+
+  private Envelope(int [] lower, int [] upper, int len2)
+  {
+    this.lower = lower;
+    this.upper = upper;
+    this.len1 = lower.length - 1;
+    this.len2 = len2;
+    if (!isConsistent())
+      throw new RuntimeException("Inconsistent envelope");
+  }
+
+  public int lower(int x) { return lower[x]; }
+  public int upper(int x) { return upper[x]; }
+
+  public boolean contains(int x, int y)
+  {
+    return x >= 0 && x <= len1 && y >= lower[x] && y <= upper[x];
+  }
+
+  /**
+   * @return The number of lattice nodes in the envelope.
+   */
+  public long size()
+  {
+    long result = 0;
+    for (int x = 0; x <= len1; x++)
+      result += upper[x] - lower[x] + 1;
+    return result;
+  }
+
+  public static Envelope full(int len1, int len2)
+  {
+    int [] lower = new int[len1+1], upper = new int[len1+1];
+    Arrays.fill(upper, len2);
+    return new Envelope(lower, upper, len2);
+  }
+
+  /**
+   * The smallest monotone, connected envelope containing all the nodes (x, y)
+   * such that keep[x][y] is true. Rows with no kept nodes are filled
+   * from their neighbors.
+   *
+   * @param keep Indexed by x in [0, len1] then y in [0, len2]
+   */
+  public static Envelope fromMask(boolean [][] keep)
+  {
+    final int len1 = keep.length - 1, len2 = keep[0].length - 1;
+    final int [] lower = new int[len1+1], upper = new int[len1+1];
+    for (int x = 0; x <= len1; x++)
+    {
+      lower[x] = len2 + 1;
+      upper[x] = -1;
+      for (int y = 0; y <= len2; y++)
+        if (keep[x][y])
+        {
+          lower[x] = Math.min(lower[x], y);
+          upper[x] = Math.max(upper[x], y);
+        }
+    }
+    return fromBounds(lower, upper, len2);
+  }
+
+  /**
+   * The smallest monotone, connected envelope containing the given ranges of
+   * y for each x (an empty range, i.e. lower[x] > upper[x], is filled from the
+   * neighboring rows, as in fromMask()); the arrays are modified and kept.
+   *
+   * @param lower Indexed by x in [0, len1]
+   * @param upper Indexed by x in [0, len1]
+   */
+  public static Envelope fromBounds(int [] lower, int [] upper, int len2)
+  {
+    final int len1 = lower.length - 1;
+    lower[0] = 0;
+    upper[0] = Math.max(upper[0], 0);
+    upper[len1] = len2;
+    lower[len1] = Math.min(lower[len1], len2);
+    // make both bounds monotone (this also fills the empty rows)
+    for (int x = 1; x <= len1; x++)
+      upper[x] = Math.max(upper[x], upper[x-1]);
+    for (int x = len1 - 1; x >= 0; x--)
+      lower[x] = Math.min(lower[x], lower[x+1]);
+    for (int x = 0; x <= len1; x++)
+      lower[x] = Math.min(lower[x], upper[x]);
+    // make sure each row can be entered from the previous one
+    for (int x = len1; x > 0; x--)
+      upper[x-1] = Math.max(upper[x-1], lower[x] - 1);
+    return new Envelope(lower, upper, len2);
+  }
+
+  /**
+   * A band of the given half width around the diagonal joining (0, 0)
+   * and (len1, len2), built from its row ranges (in time and memory linear in len1).
+   */
+  public static Envelope band(int len1, int len2, int halfWidth)
+  {
+    final int [] lower = new int[len1+1], upper = new int[len1+1];
+    for (int x = 0; x <= len1; x++)
+    {
+      final int center = len1 == 0 ? 0 : (int) Math.round(((double) x) * len2 / len1);
+      lower[x] = Math.max(0, center - halfWidth);
+      upper[x] = Math.min(len2, center + halfWidth);
+    }
+    return fromBounds(lower, upper, len2);
+  }
+
+  /**
+   * An upper bound on the size() of band(len1, len2, halfWidth): each row has at most 
+   * 2 halfWidth + 1 nodes, plus the ones added to connect the rows, at most len2 in total.
+   */
+  public static long maxBandSize(int len1, int len2, int halfWidth)
+  {
+    return (len1 + 1L) * (2L * halfWidth + 1L) + len2;
+  }
+
+  private boolean isConsistent()
+  {
+    if (lower.length != upper.length || lower[0] != 0 || upper[len1] != len2)
+      return false;
+    for (int x = 0; x <= len1; x++)
+    {
+      if (lower[x] < 0 || upper[x] > len2 || lower[x] > upper[x])
+        return false;
+      if (x > 0 && (lower[x] < lower[x-1] || upper[x] < upper[x-1] || lower[x] > upper[x-1] + 1))
+        return false;
+    }
+    return true;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "Envelope[" + size() + "/" + ((long) (len1+1)) * (len2+1) + " nodes]";
+  }
+}
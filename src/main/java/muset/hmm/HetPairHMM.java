@@ -5,6 +5,7 @@ import java.util.Random;
 
 import muset.Alphabet.Letter;
 import muset.Sequence;
+import muset.util.BandedMatrix;
 import bayonet.distributions.Multinomial;
 import bayonet.math.CoordinatePacker;
 import bayonet.math.NumericalUtils;
@@ -24,18 +25,32 @@ public final class HetPairHMM
   private int startState() { return hmm.startState(); }
   private int endState() { return hmm.endState(); }
   
-  private double [][][] prefix, suffix, maxSuffix; // state -> x pos -> y pos
+  // state -> x pos -> y pos; only the nodes in the envelope are stored, see fwd() and bwd()
+  private double [][][] prefix, suffix, maxSuffix;
   public final HetPairHMMSpecification hmm;
   private final int nStates;
   public final Sequence str1, str2;
+  public final Envelope envelope;
   private boolean fwdInitialized = false, bwdInitialized = false, bwdMaxInitialized = false;
   
   public HetPairHMM(Sequence str1, Sequence str2, HetPairHMMSpecification pairHMM)
+  {
+    this(str1, str2, pairHMM, Envelope.full(str1.length(), str2.length()));
+  }
+  
+  /**
+   * Restrict the recursions to the lattice nodes in the provided envelope. 
+   * Nodes outside of it have zero weight in all the tables.
+   */
+  public HetPairHMM(Sequence str1, Sequence str2, HetPairHMMSpecification pairHMM, Envelope envelope)
   {
     this.str1 = str1;
     this.str2 = str2;
     this.hmm = pairHMM;
     this.nStates = pairHMM.nStates();
+    this.envelope = envelope;
+    if (envelope.len1 != str1.length() || envelope.len2 != str2.length())
+      throw new RuntimeException("Envelope dimensions do not match the strings");
   }
   
   public double logSumProduct()
@@ -65,6 +80,102 @@ public final class HetPairHMM
     return logSum - logSumProduct();
   }
   
+  /**
+   * Compute the posterior probability of each transition exactly once, in a single
+   * sweep over the lattice (after the forward and backward recursions), passing them
+   * to the visitor as they are computed.
+   * 
+   * @param visitor Can be null, to compute the alignment posteriors only
+   * @return The posterior pr that str1[x] and str2[y] are aligned, indexed by x then y 
+   *   (i.e. exp(logPosteriorAlignment(x, y))), see posteriorMatrix()
+   */
+  public BandedMatrix edgeMarginals(EdgeMarginalVisitor visitor)
+  {
+    final int 
+      len1 = str1.length(),
+      len2 = str2.length();
+    final BandedMatrix result = posteriorMatrix();
+    final double logZ = logSumProduct();
+    if (logZ == Double.NEGATIVE_INFINITY)
+      return result;
+    computeSumProduct();
+    final double [] prefixes = new double[nStates];
+    for (int x = 0; x <= len1; x++)
+      for (int y = envelope.lower(x); y <= envelope.upper(x); y++)
+      {
+        boolean reachable = false;
+        for (int s1 = 0; s1 < nStates; s1++)
+        {
+          prefixes[s1] = fwd(prefix, s1, x, y);
+          reachable = reachable || prefixes[s1] != Double.NEGATIVE_INFINITY;
+        }
+        if (!reachable)
+          continue;
+        for (int dx = 0; dx < 2 && x + dx <= len1; dx++)
+          for (int dy = 0; dy < 2 && y + dy <= len2; dy++)
+            if ((dx > 0 || dy > 0) && envelope.contains(x + dx, y + dy))
+              for (int s2 = 0; s2 < nStates; s2++)
+              {
+                final double suffix = bwd(this.suffix, s2, len1 - x - dx, len2 - y - dy);
+                if (suffix == Double.NEGATIVE_INFINITY)
+                  continue;
+                for (int s1 = 0; s1 < nStates; s1++)
+                  if (prefixes[s1] != Double.NEGATIVE_INFINITY)
+                  {
+                    final double posterior = Math.exp(prefixes[s1] + hmm.logWeight(s1, s2, x, y, dx, dy) + suffix - logZ);
+                    if (posterior > 0.0)
+                    {
+                      if (visitor != null)
+                        visitor.visit(s1, s2, x, y, dx, dy, posterior);
+                      if (dx == 1 && dy == 1)
+                        result.increment(x, y, posterior);
+                    }
+                  }
+              }
+      }
+    return result;
+  }
+  
+  /**
+   * @return A zero matrix for the posteriors that str1[x] and str2[y] are aligned, indexed by x then y,
+   *   storing only the pairs (x, y) such that the substitution from node (x, y) to node (x+1, y+1)
+   *   is in the envelope (the others have a posterior of zero)
+   */
+  public BandedMatrix posteriorMatrix()
+  {
+    final int 
+      len1 = str1.length(),
+      len2 = str2.length();
+    final int [] lower = new int[len1], upper = new int[len1];
+    for (int x = 0; x < len1; x++)
+    {
+      lower[x] = Math.max(envelope.lower(x), envelope.lower(x + 1) - 1);
+      upper[x] = Math.min(envelope.upper(x), envelope.upper(x + 1) - 1);
+    }
+    return new BandedMatrix(lower, upper, len2);
+  }
+  
+  /**
+   * Run the forward and backward recursions now rather than on first access.
+   */
+  public void computeSumProduct()
+  {
+    if (!fwdInitialized) computeForward();
+    if (!bwdInitialized) computeBackward();
+  }
+  
+  /**
+   * The log posterior pr that the path goes through the lattice node (x,y), i.e.
+   * that x symbols of str1 and y symbols of str2 are emitted at some point
+   */
+  public double logPosteriorNode(int x, int y)
+  {
+    double logSum = Double.NEGATIVE_INFINITY;
+    for (int s = 0; s < nStates; s++)
+      logSum = NumericalUtils.logAdd(logSum, prefixLogSumProduct(s, x, y) + suffixLogSumProduct(s, str1.length()-x, str2.length()-y));
+    return logSum - logSumProduct();
+  }
+  
   /**
    * Forward recursion
    * The log of the sum of the weight of all the paths starting at the startState() and ending in state finalState,
@@ -73,7 +184,7 @@ public final class HetPairHMM
   public double prefixLogSumProduct(int finalState, int x, int y)
   {
     if (!fwdInitialized) computeForward();
-    return prefix[finalState][x][y];
+    return fwd(prefix, finalState, x, y);
   }
   
   private void computeForward()
@@ -82,10 +193,12 @@ public final class HetPairHMM
       len1 = str1.length(),
       len2 = str2.length();
     if (startState() != 0 || endState() != 0) throw new RuntimeException();
-    this.prefix = new double[hmm.nStates()][len1+1][len2+1];
+    this.prefix = newTable(false);
     final double [][][] prefix = this.prefix;
     for (int x = 0; x <= len1; x++)
-      for (int y = 0; y <= len2; y++)
+    {
+      final int lower = envelope.lower(x);
+      for (int y = lower; y <= envelope.upper(x); y++)
         for (int finalState = 0; finalState < nStates; finalState++)
         {
           double result = Double.NEGATIVE_INFINITY;
@@ -98,16 +211,17 @@ public final class HetPairHMM
           {
             if (x > 0)
               for (int previousState = 0; previousState < nStates; previousState++)
-                result = NumericalUtils.logAdd(result, prefix[previousState][x-1][y]   + hmm.logWeight(previousState, finalState, x-1,y,1,0));
+                result = NumericalUtils.logAdd(result, fwd(prefix, previousState, x-1, y)   + hmm.logWeight(previousState, finalState, x-1,y,1,0));
             if (y > 0)
               for (int previousState = 0; previousState < nStates; previousState++)
-                result = NumericalUtils.logAdd(result, prefix[previousState][x][y-1]   + hmm.logWeight(previousState, finalState, x,y-1,0,1));
+                result = NumericalUtils.logAdd(result, fwd(prefix, previousState, x, y-1)   + hmm.logWeight(previousState, finalState, x,y-1,0,1));
             if (x > 0 && y > 0)
               for (int previousState = 0; previousState < nStates; previousState++)
-                result = NumericalUtils.logAdd(result, prefix[previousState][x-1][y-1] + hmm.logWeight(previousState, finalState, x-1,y-1,1,1));
+                result = NumericalUtils.logAdd(result, fwd(prefix, previousState, x-1, y-1) + hmm.logWeight(previousState, finalState, x-1,y-1,1,1));
           }
-          prefix[finalState][x][y] = result;
+          prefix[finalState][x][y - lower] = result;
         }
+    }
     fwdInitialized = true;
   }
 
@@ -120,7 +234,7 @@ public final class HetPairHMM
   public double suffixLogSumProduct(int firstState, int x, int y)
   {
     if (!bwdInitialized) computeBackward();
-    return suffix[firstState][x][y];
+    return bwd(suffix, firstState, x, y);
   }
   
   private void computeBackward()
@@ -128,10 +242,12 @@ public final class HetPairHMM
     final int 
       len1 = str1.length(),
       len2 = str2.length();
-    this.suffix = new double[hmm.nStates()][len1+1][len2+1];
+    this.suffix = newTable(true);
     final double [][][] suffix = this.suffix;
     for (int x = 0; x <= len1; x++)
-      for (int y = 0; y <= len2; y++)
+    {
+      final int lower = len2 - envelope.upper(len1-x);
+      for (int y = lower; y <= len2 - envelope.lower(len1-x); y++)
         for (int firstState = 0; firstState <nStates; firstState++)
         {
           double result = Double.NEGATIVE_INFINITY;
@@ -144,34 +260,76 @@ public final class HetPairHMM
           {
             if (x > 0)
               for (int nextState = 0; nextState < nStates; nextState++)
-                result = NumericalUtils.logAdd(result, suffix[nextState][x-1][y]   + hmm.logWeight(firstState, nextState, len1-x,len2-y,1,0));
+                result = NumericalUtils.logAdd(result, bwd(suffix, nextState, x-1, y)   + hmm.logWeight(firstState, nextState, len1-x,len2-y,1,0));
             if (y > 0)
               for (int nextState = 0; nextState < nStates; nextState++)
-                result = NumericalUtils.logAdd(result, suffix[nextState][x][y-1]   + hmm.logWeight(firstState, nextState, len1-x,len2-y,0,1));
+                result = NumericalUtils.logAdd(result, bwd(suffix, nextState, x, y-1)   + hmm.logWeight(firstState, nextState, len1-x,len2-y,0,1));
             if (x > 0 && y > 0)
               for (int nextState = 0; nextState < nStates; nextState++)
-                result = NumericalUtils.logAdd(result, suffix[nextState][x-1][y-1] + hmm.logWeight(firstState, nextState, len1-x,len2-y,1,1));
+                result = NumericalUtils.logAdd(result, bwd(suffix, nextState, x-1, y-1) + hmm.logWeight(firstState, nextState, len1-x,len2-y,1,1));
           }
-          suffix[firstState][x][y] = result;
+          suffix[firstState][x][y - lower] = result;
         }
+    }
     bwdInitialized = true;
   }
   
+  // row x of the forward table stores the nodes (x, y) for y in [lower(x), upper(x)]; 
+  // the backward tables are indexed by the number of symbols left, so their row x stores
+  // the nodes (len1 - x, len2 - y) in the envelope
+  private double [][][] newTable(boolean backward)
+  {
+    final int len1 = str1.length(), len2 = str2.length();
+    final double [][][] result = new double[nStates][len1+1][];
+    for (int s = 0; s < nStates; s++)
+      for (int x = 0; x <= len1; x++)
+      {
+        final int node = backward ? len1 - x : x;
+        result[s][x] = new double[envelope.upper(node) - envelope.lower(node) + 1];
+      }
+    return result;
+  }
+  
+  private double fwd(double [][][] table, int s, int x, int y)
+  {
+    final double [] row = table[s][x];
+    y -= envelope.lower(x);
+    return y < 0 || y >= row.length ? Double.NEGATIVE_INFINITY : row[y];
+  }
+  
+  private double bwd(double [][][] table, int s, int x, int y)
+  {
+    final double [] row = table[s][x];
+    y -= str2.length() - envelope.upper(str1.length() - x);
+    return y < 0 || y >= row.length ? Double.NEGATIVE_INFINITY : row[y];
+  }
+  
+  /**
+   * @return An estimate of the memory used by nTables of the forward/backward tables
+   *   for the given envelope, and by the matrix of the posteriors (see posteriorMatrix()), in bytes
+   */
+  public static long estimateBytes(int nTables, int nStates, Envelope envelope)
+  {
+    return 8L * nTables * nStates * envelope.size() + BandedMatrix.estimateBytes(envelope.len1, envelope.size());
+  }
+  
   public double suffixLogMaxProduct(int firstState, int x, int y)
   {
     if (!bwdMaxInitialized) computeMaxBackward();
-    return maxSuffix[firstState][x][y];
+    return bwd(maxSuffix, firstState, x, y);
   }
   
   private void computeMaxBackward()
   {
-    this.maxSuffix = new double[hmm.nStates()][str1.length()+1][str2.length()+1];
+    this.maxSuffix = newTable(true);
     final double [][][] maxSuffix = this.maxSuffix;
     final int 
       len1 = str1.length(),
       len2 = str2.length();
     for (int x = 0; x <= len1; x++)
-      for (int y = 0; y <= len2; y++)
+    {
+      final int lower = len2 - envelope.upper(len1-x);
+      for (int y = lower; y <= len2 - envelope.lower(len1-x); y++)
         for (int firstState = 0; firstState <nStates; firstState++)
         {
           double result = Double.NEGATIVE_INFINITY;
@@ -184,19 +342,118 @@ public final class HetPairHMM
           {
             if (x > 0)
               for (int nextState = 0; nextState < nStates; nextState++)
-                result = Math.max(result, maxSuffix[nextState][x-1][y]   + hmm.logWeight(firstState, nextState, len1-x,len2-y,1,0));
+                result = Math.max(result, bwd(maxSuffix, nextState, x-1, y)   + hmm.logWeight(firstState, nextState, len1-x,len2-y,1,0));
             if (y > 0)
               for (int nextState = 0; nextState < nStates; nextState++)
-                result = Math.max(result, maxSuffix[nextState][x][y-1]   + hmm.logWeight(firstState, nextState, len1-x,len2-y,0,1));
+                result = Math.max(result, bwd(maxSuffix, nextState, x, y-1)   + hmm.logWeight(firstState, nextState, len1-x,len2-y,0,1));
             if (x > 0 && y > 0)
               for (int nextState = 0; nextState < nStates; nextState++)
-                result = Math.max(result, maxSuffix[nextState][x-1][y-1] + hmm.logWeight(firstState, nextState, len1-x,len2-y,1,1));
+                result = Math.max(result, bwd(maxSuffix, nextState, x-1, y-1) + hmm.logWeight(firstState, nextState, len1-x,len2-y,1,1));
           }
-          maxSuffix[firstState][x][y] = result;
+          maxSuffix[firstState][x][y - lower] = result;
         }
+    }
     bwdMaxInitialized = true;
   }
   
+  /**
+   * Max-product (Viterbi) recursion keeping only two rows of scores, plus one byte per 
+   * lattice node and state for the traceback (instead of the tables of doubles used by 
+   * viterbi()), then the transitions of the best path are passed to the visitor, in order, 
+   * with a posterior of one.
+   * 
+   * @param visitor Can be null, to compute the score of the best path only
+   * @return The log weight of the best path, or -infinity if there is none (then nothing is visited)
+   */
+  public double viterbiPath(EdgeMarginalVisitor visitor)
+  {
+    final int 
+      len1 = str1.length(),
+      len2 = str2.length();
+    if (startState() != 0 || endState() != 0) throw new RuntimeException();
+    if (nStates * 3 > Byte.MAX_VALUE) throw new RuntimeException("Too many states for the traceback");
+    // row x -> (y - lower(x)) * nStates + state -> previous state * 3 + move, see MOVES
+    final byte [][] traceback = new byte[len1+1][];
+    double [][] 
+      previous = new double[nStates][len2+1], 
+      current  = new double[nStates][len2+1];
+    for (int x = 0; x <= len1; x++)
+    {
+      final int lower = envelope.lower(x), upper = envelope.upper(x);
+      final byte [] row = traceback[x] = new byte[(upper - lower + 1) * nStates];
+      for (int y = lower; y <= upper; y++)
+        for (int finalState = 0; finalState < nStates; finalState++)
+        {
+          double result = Double.NEGATIVE_INFINITY;
+          int argmax = 0;
+          if (x == 0 && y == 0) 
+            result = finalState == startState() ? 0.0 : Double.NEGATIVE_INFINITY;
+          else
+            for (int move = 0; move < 3; move++)
+            {
+              final int dx = MOVES[move][0], dy = MOVES[move][1];
+              if (x < dx || y < dy || !envelope.contains(x - dx, y - dy))
+                continue;
+              final double [][] source = dx == 1 ? previous : current;
+              for (int previousState = 0; previousState < nStates; previousState++)
+              {
+                final double candidate = source[previousState][y - dy] + hmm.logWeight(previousState, finalState, x - dx, y - dy, dx, dy);
+                if (candidate > result)
+                {
+                  result = candidate;
+                  argmax = previousState * 3 + move;
+                }
+              }
+            }
+          current[finalState][y] = result;
+          row[(y - lower) * nStates + finalState] = (byte) argmax;
+        }
+      final double [][] swap = previous;
+      previous = current;
+      current = swap;
+    }
+    final double score = previous[endState()][len2];
+    if (score == Double.NEGATIVE_INFINITY || visitor == null)
+      return score;
+    // traceback, then visit in order
+    final int [] states = new int[len1 + len2 + 1], moves = new int[len1 + len2];
+    int x = len1, y = len2, length = 0;
+    states[0] = endState();
+    while (x > 0 || y > 0)
+    {
+      final int code = traceback[x][(y - envelope.lower(x)) * nStates + states[length]];
+      moves[length] = code % 3;
+      states[++length] = code / 3;
+      x -= MOVES[code % 3][0];
+      y -= MOVES[code % 3][1];
+    }
+    for (int i = length - 1; i >= 0; i--)
+    {
+      final int dx = MOVES[moves[i]][0], dy = MOVES[moves[i]][1];
+      visitor.visit(states[i+1], states[i], x, y, dx, dy, 1.0);
+      x += dx;
+      y += dy;
+    }
+    return score;
+  }
+  
+  private static final int [][] MOVES = {{1, 0}, {0, 1}, {1, 1}}; // (deltaX, deltaY)
+  
+  /**
+   * Draw paths from the posterior distribution, as sample(Random) does (using the backward 
+   * recursion only), passing their transitions to the visitor, in order, with a posterior 
+   * of 1 / nSamples (so that the visits are Monte Carlo estimates of the ones of edgeMarginals()). 
+   * 
+   * Nothing is visited if there is no path.
+   */
+  public void samplePaths(Random rand, int nSamples, EdgeMarginalVisitor visitor)
+  {
+    if (suffixLogSumProduct(startState(), str1.length(), str2.length()) == Double.NEGATIVE_INFINITY)
+      return;
+    for (int sample = 0; sample < nSamples; sample++)
+      _viterbiOrSample(null, true, rand, visitor, 1.0 / nSamples);
+  }
+  
   public static Derivation removeBoundary(Derivation d, Letter bound)
   {
     final int 
@@ -219,25 +476,27 @@ public final class HetPairHMM
   
   public Derivation viterbi(List<Integer> stateSequence)
   {
-    return _viterbiOrSample(stateSequence, false, null);
+    return _viterbiOrSample(stateSequence, false, null, null, 0.0);
   }
   
   public Derivation viterbi()
   {
-    return _viterbiOrSample(null, false, null);
+    return _viterbiOrSample(null, false, null, null, 0.0);
   }
   
   public Derivation sample(Random rand)
   {
-    return _viterbiOrSample(null, true, rand);
+    return _viterbiOrSample(null, true, rand, null, 0.0);
   }
   
   public Derivation sample(Random rand, List<Integer> stateSequence)
   {
-    return _viterbiOrSample(stateSequence, true, rand);
+    return _viterbiOrSample(stateSequence, true, rand, null, 0.0);
   }
   
-  private Derivation _viterbiOrSample(List<Integer> stateSequence, boolean sample, Random rand)
+  // if the visitor is not null, the transitions of the path are also passed to it, with the given posterior
+  private Derivation _viterbiOrSample(List<Integer> stateSequence, boolean sample, Random rand, 
+      EdgeMarginalVisitor visitor, double posterior)
   {
     if (stateSequence != null && stateSequence.size() > 0) throw new RuntimeException();
     final int [] ancestors = new int[str2.length()];
@@ -308,6 +567,8 @@ public final class HetPairHMM
       if (stateSequence != null) stateSequence.add(coords[2]);
       final int positionInTop = str1.length() - x;
       final int positionInBot = str2.length() - y;
+      if (visitor != null)
+        visitor.visit(previousState, coords[2], positionInTop, positionInBot, coords[0], coords[1], posterior);
       if (coords[0] == 1 && coords[1] == 1)
         ancestors[positionInBot] = positionInTop;
       else if (coords[0] == 0 && coords[1] == 1)
@@ -42,6 +42,121 @@ public final class HomogenousHMM
   {
     this.del[s1][s2][c2i(top)] = value;
   }
+  public double getSub(int s1, int s2, Letter top, Letter bot)
+  {
+    return this.sub[s1][s2][c2i(top)][c2i(bot)];
+  }
+  public double getIns(int s1, int s2, Letter bot)
+  {
+    return this.ins[s1][s2][c2i(bot)];
+  }
+  public double getDel(int s1, int s2, Letter top)
+  {
+    return this.del[s1][s2][c2i(top)];
+  }
+  public Alphabet getAlphabet() { return alphabet; }
+  
+  /**
+   * @return An HMM of the same shape, with all weights set to zero
+   */
+  HomogenousHMM zeroCopy()
+  {
+    return new HomogenousHMM(alphabet, nStates(), startState, endState);
+  }
+  
+  /**
+   * Add to the weights of this object the expected number of times each 
+   * transition is used under the posterior of pairHMM (see createPairHMM())
+   * 
+   * @return The log normalization of pairHMM
+   */
+  double addExpectedCounts(HetPairHMM pairHMM)
+  {
+    final double logZ = pairHMM.logSumProduct();
+    if (logZ == Double.NEGATIVE_INFINITY)
+      return logZ;
+    final Sequence top = pairHMM.str1, bot = pairHMM.str2;
+    final int [] 
+      topIds = new int[top.length()],
+      botIds = new int[bot.length()];
+    for (int t = 0; t < topIds.length; t++) topIds[t] = c2i(top.letterAt(t));
+    for (int b = 0; b < botIds.length; b++) botIds[b] = c2i(bot.letterAt(b));
+    for (int x = 0; x <= top.length(); x++)
+      for (int y = 0; y <= bot.length(); y++)
+        if (pairHMM.envelope.contains(x, y))
+          for (int s1 = 0; s1 < nStates(); s1++)
+            for (int s2 = 0; s2 < nStates(); s2++)
+            {
+              if (x < top.length() && y < bot.length())
+                sub[s1][s2][topIds[x]][botIds[y]] += Math.exp(pairHMM.logSumProduct(s1, s2, x, y, 1, 1) - logZ);
+              if (x < top.length())
+                del[s1][s2][topIds[x]]            += Math.exp(pairHMM.logSumProduct(s1, s2, x, y, 1, 0) - logZ);
+              if (y < bot.length())
+                ins[s1][s2][botIds[y]]            += Math.exp(pairHMM.logSumProduct(s1, s2, x, y, 0, 1) - logZ);
+            }
+    return logZ;
+  }
+  
+  /**
+   * Add the weights of other to the weights of this object
+   */
+  void add(HomogenousHMM other)
+  {
+    for (int s1 = 0; s1 < nStates(); s1++)
+      for (int s2 = 0; s2 < nStates(); s2++)
+        for (int c1 = 0; c1 < alphabet.indexer.size(); c1++)
+        {
+          for (int c2 = 0; c2 < alphabet.indexer.size(); c2++)
+            sub[s1][s2][c1][c2] += other.sub[s1][s2][c1][c2];
+          del[s1][s2][c1] += other.del[s1][s2][c1];
+          ins[s1][s2][c1] += other.ins[s1][s2][c1];
+        }
+  }
+  
+  /**
+   * Set the weights of this object to the provided counts, plus pseudoCount for
+   * the transitions that currently have a nonzero weight (transitions with a zero weight
+   * are kept at zero), normalized so that the weights of the transitions out of
+   * each state sum to one.
+   */
+  void normalize(HomogenousHMM counts, double pseudoCount)
+  {
+    final int size = alphabet.indexer.size();
+    for (int s1 = 0; s1 < nStates(); s1++)
+    {
+      double norm = 0.0;
+      for (int s2 = 0; s2 < nStates(); s2++)
+        for (int c1 = 0; c1 < size; c1++)
+        {
+          for (int c2 = 0; c2 < size; c2++)
+            norm += sub[s1][s2][c1][c2] = smooth(sub[s1][s2][c1][c2], counts.sub[s1][s2][c1][c2], pseudoCount);
+          norm += del[s1][s2][c1] = smooth(del[s1][s2][c1], counts.del[s1][s2][c1], pseudoCount);
+          norm += ins[s1][s2][c1] = smooth(ins[s1][s2][c1], counts.ins[s1][s2][c1], pseudoCount);
+        }
+      if (norm == 0.0)
+        continue;
+      for (int s2 = 0; s2 < nStates(); s2++)
+        for (int c1 = 0; c1 < size; c1++)
+        {
+          for (int c2 = 0; c2 < size; c2++)
+            sub[s1][s2][c1][c2] /= norm;
+          del[s1][s2][c1] /= norm;
+          ins[s1][s2][c1] /= norm;
+        }
+    }
+  }
+  /**
+   * Normalize the weights so that the weights of the transitions out of each state sum to one.
+   */
+  public void normalize()
+  {
+    normalize(this, 0.0);
+  }
+  private static double smooth(double current, double count, double pseudoCount)
+  {
+    return current == 0.0 ? 0.0 : count + pseudoCount;
+  }
+  
   public HetPairHMM createPairHMM(Sequence top, Sequence bot)
   {
     final double [][][][] logsub = new double[nStates()][nStates()][top.length()][bot.length()];   // prev state -> cur state -> top idx -> bot idx
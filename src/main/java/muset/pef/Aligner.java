@@ -1,17 +1,33 @@
 package muset.pef;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
 
 import com.google.common.base.Splitter;
 
-import bayonet.regression.LabeledInstance;
 import bayonet.regression.MaxentClassifier.MaxentOptions;
 import briefj.BriefIO;
 import briefj.BriefMaps;
@@ -26,10 +42,23 @@ import muset.Alphabet.Letter;
 import muset.MSAPoset;
 import muset.Sequence;
 import muset.SequenceId;
+import muset.hmm.AnchoredPairHMM;
+import muset.hmm.Anchors;
+import muset.hmm.BaumWelch;
+import muset.hmm.Envelope;
 import muset.hmm.HetPairHMM;
+import muset.hmm.HomogenousHMM;
+import muset.pef.CoarseToFine.CoarseToFineOptions;
+import muset.pef.CompiledFeatures.CompiledFeaturesOptions;
 import muset.pef.ExponentialFamily.ExponentialFamilyOptions;
 import muset.pef.FeatureExtractor.FeatureOptions;
-import muset.util.Edge;
+import muset.pef.MemoryPlanner.MemoryPlannerOptions;
+import muset.pef.MemoryPlanner.Plan;
+import muset.pef.MemoryPlanner.Strategy;
+import muset.pef.WarmStart.WarmStartOptions;
+import muset.util.BandedMatrix;
+import muset.util.PairPosteriors;
+import muset.util.Parallel;
 
 
 
@@ -48,9 +77,68 @@ public class Aligner implements Runnable
   @OptionSet(name = "features")
   public FeatureOptions featureOptions = new FeatureOptions();
   
+  @OptionSet(name = "compiled")
+  public CompiledFeaturesOptions compiledFeaturesOptions = new CompiledFeaturesOptions();
+  
+  @OptionSet(name = "c2f")
+  public CoarseToFineOptions coarseToFineOptions = new CoarseToFineOptions();
+  
+  @OptionSet(name = "memory")
+  public MemoryPlannerOptions memoryOptions = new MemoryPlannerOptions();
+  
+  @OptionSet(name = "warmStart")
+  public WarmStartOptions warmStartOptions = new WarmStartOptions();
+  
   @Option(gloss = "Number of EM training iterations.")
   public int nIterations = 10;
   
+  @Option(gloss = "Number of iterations, among the first ones, using hard (Viterbi) EM: the sufficient statistics "
+      + "are the counts along the best path of each pair (and the alignments are built from these paths), which is "
+      + "cheaper than the expected counts. Use it as a warm-up, or set it to nIterations for hard EM only.")
+  public int hardEMIterations = 0;
+  
+  @Option(gloss = "If positive, use Monte Carlo EM (except in hard EM iterations): the sufficient statistics are the "
+      + "counts along this many paths per pair, drawn from the posterior, instead of the expected counts. Only the "
+      + "backward recursion is run, and the posterior sweep over the lattice is skipped.")
+  public int monteCarloSamples = 0;
+  
+  @Option(gloss = "Seed of the Monte Carlo EM samples; each pair of each iteration has its own random generator, "
+      + "seeded from this, so that the results do not depend on nThreads.")
+  public long monteCarloSeed = 1;
+  
+  @Option(gloss = "If positive, stop before nIterations once the log-likelihood of the data (computed in the E step) "
+      + "improved by less than this fraction (of its absolute value) since the previous iteration (not checked in hard "
+      + "EM iterations, nor in the soft one following them).")
+  public double relativeTolerance = 0.0;
+  
+  @Option(gloss = "If positive, do not start an iteration when the time elapsed since the start of the run, plus the "
+      + "duration of the previous iteration, exceeds this many seconds.")
+  public double maxWallClockSeconds = 0.0;
+  
+  public static final String CONVERGENCE_FILE = "convergence.txt";
+  
+  @Option(gloss = "If greater than one, train this many initializations concurrently (multi-start EM), sharing the data, "
+      + "the features and the memory budget: the first start uses initParams, the next ones the files of startParams, "
+      + "then initParams plus Gaussian noise (see startPerturbation). After pruneStartsAfter iterations, only the start "
+      + "with the highest log-likelihood is trained further. The results of the starts are in a start_<index> folder "
+      + "in each iteration folder.")
+  public int nStarts = 1;
+  
+  @Option(gloss = "Comma separated paths to weights files (in the format of initParams) to use as starts, see nStarts "
+      + "(which is increased if needed).")
+  public String startParams = "";
+  
+  @Option(gloss = "Standard deviation of the noise added to the weight of each feature in the random starts, see nStarts.")
+  public double startPerturbation = 0.1;
+  
+  @Option(gloss = "Seed of the noise of the random starts, see nStarts.")
+  public long startSeed = 1;
+  
+  @Option(gloss = "Number of iterations after which only the best start is kept, see nStarts.")
+  public int pruneStartsAfter = 3;
+  
+  public static final String STARTS_FILE = "starts.txt";
+  
   @Option(gloss = "By default (1), alignments that maximize recall are output (i.e. "
       + "placing as many links as possible). Setting this option to larger value will "
       + "create more alignment with different precision-recall tradeoffs. This is accomplished by "
@@ -58,22 +146,113 @@ public class Aligner implements Runnable
       + "from 0 (inclusively) to rocGridSize (exclusively).")
   public int rocGridSize = 1;
   
+  @Option(gloss = "If positive, pairs of sequences that are both at least minAnchoredLength long are aligned "
+      + "in anchored mode: the positions of k-mers (of this length) occurring exactly once in both sequences are pinned "
+      + "to be aligned, splitting the alignment problem into small independent ones.")
+  public int anchorK = 0;
+  
+  @Option(gloss = "See anchorK.")
+  public int minAnchoredLength = 100;
+  
+  @Option(gloss = "If set, folder of fixed alignments, one per group (named after the group, with the extension .fasta). "
+      + "Pairs of a group with such an alignment that are both at least minAnchoredLength long are aligned in anchored mode, "
+      + "pinned at the links of the fixed alignment instead of the k-mer matches of anchorK.")
+  public File anchorAlignments = null;
+  
+  @Option(gloss = "Number of threads.")
+  public int nThreads = 1;
+  
+  @Option(gloss = "Number of groups whose pairs are aligned concurrently in the E step. The results do not depend "
+      + "on this (nor on nThreads), but the memory used to hold the posteriors of a batch grows with it.")
+  public int groupsPerBatch = 64;
+  
+  @Option(gloss = "Align only once the pairs of a batch (see groupsPerBatch) with the same two sequences and f-suff-stat, "
+      + "their expected counts being multiplied by the number of occurrences.")
+  public boolean memoizePairs = false;
+  
+  @Option(gloss = "If positive, use stepwise online EM: the parameters are updated after each minibatch of this "
+      + "many groups, the sufficient statistics being interpolated with a decaying step size (see onlineStepSizeExponent). "
+      + "In this mode, nIterations is the number of passes over the data.")
+  public int onlineMinibatchSize = 0;
+  
+  @Option(gloss = "The step size of the k-th online update is (k+2)^(-onlineStepSizeExponent); should be in (0.5, 1].")
+  public double onlineStepSizeExponent = 0.7;
+  
+  @Option(gloss = "If positive, a checkpoint (see resume) is written in the results folder each time at least this "
+      + "many groups were aligned since the last one, as well as at the end of each iteration.")
+  public int checkpointInterval = 0;
+  
+  @Option(gloss = "Path to a checkpoint (" + CHECKPOINT_FILE + " in the results folder of a previous run): the run continues "
+      + "from there, without redoing the groups already aligned. The other options should be the same as in that run "
+      + "(not checked).")
+  public String resume = "";
+  
+  public static final String CHECKPOINT_FILE = "checkpoint.bin";
+  
+  @Option(gloss = "Write, after each iteration, a binary model bundle (" + MODEL_BUNDLE_FILE + " in the iteration "
+      + "folder) that can be loaded quickly with modelBundle.")
+  public boolean saveModelBundle = false;
+  
+  @Option(gloss = "Path to a model bundle (see saveModelBundle) used instead of initParams and the feature options. "
+      + "Unless reguCenterParams is set, the regularization is centered at the weights of the bundle.")
+  public String modelBundle = "";
+  
+  public static final String MODEL_BUNDLE_FILE = "model.bin";
+  
+  @Option(gloss = "If greater than one, only the E step of one iteration is done, over the groups at positions shardIndex "
+      + "modulo nShards in the dataset: the alignments are written as usual, and the expected sufficient statistics "
+      + "in a binary file (shard_<index>_of_<nShards>.bin in the results folder) to be combined with reduceShards.")
+  public int nShards = 1;
+  
+  @Option(gloss = "See nShards, between 0 and nShards - 1.")
+  public int shardIndex = 0;
+  
+  @Option(gloss = "Comma separated paths to the files written by all the shards of an iteration (see nShards): their "
+      + "sufficient statistics are summed and the parameters updated (with the same other options as the shards), "
+      + "without aligning. The new weights.txt can then be used as initParams of the next iteration's shards.")
+  public String reduceShards = "";
+  
   private ExponentialFamily learnedModel;
+  private Set<String> doneGroups = new LinkedHashSet<String>(); // groups aligned in the current iteration
+  private int groupsSinceCheckpoint = 0;
+  private int nOnlineUpdates = 0;
+  private MemoryPlanner memoryPlanner;
+  private Counter<Strategy> plannedStrategies = new Counter<Strategy>();
+  private int nPairs = 0, nMemoizedPairs = 0; // in the current iteration
+  private double logLikelihood = 0.0; // of the pairs aligned in the current iteration
+  private double previousLogLikelihood = Double.NaN;
+  private long lastIterationMillis = 0;
+  private long runStart; // shifted back by the time spent before resuming, see elapsedMillis()
+  private boolean hardEM = false; // in the current iteration
+  private int iterationNumber;
+  private int startIndex = 0; // see nStarts
+  private long iterationStart;
+  private Counter<Object> initialParams; // of the current iteration
   private File iterationSpecificOutput;
 
   public static class SequenceDataset
   {
     @Option(required = true, gloss = "Path to a csv file containing the input data. "
-        + "See README.md and an example in src/test/resources/testdataset.csv")
+        + "See README.md and an example in src/test/resources/testdataset.csv. Can also be a binary "
+        + "dataset created by DatasetConverter (detected automatically), which is read through a memory map.")
     public File csvFile;
     
+    @Option(gloss = "Do not load the data in memory: the groups are read one at a time from csvFile (which can be "
+        + "gzipped, with a .gz extension) at each iteration, after a first pass collecting the alphabet and the pairs of "
+        + "taxa. The lines of each group should then be contiguous.")
+    public boolean streaming = false;
+    
     private Map<GroupId,Map<SequenceId,Sequence>> data = null;
     private Alphabet alphabet = null;
+    private BinaryDataset binary = null;
+    private Map<GroupId,Integer> binaryIndices = null;
+    private List<GroupId> groupIds = null; // in streaming and binary modes
+    private Set<UnorderedPair<SequenceId, SequenceId>> taxaPairs = null; // in streaming and binary modes
     
     public Collection<GroupId> groupIds()
     {
       ensureLoaded();
-      return data.keySet();
+      return data == null ? groupIds : data.keySet();
     }
     
     public Alphabet getAlphabet()
@@ -85,20 +264,70 @@ public class Aligner implements Runnable
     public Map<SequenceId,Sequence> getSequences(GroupId id)
     {
       ensureLoaded();
+      if (binary != null)
+        return binary.group(binaryIndices.get(id));
+      if (data == null)
+        throw new RuntimeException("Random access to the groups is not available in streaming mode, use groups()");
       return data.get(id);
     }
+    
+    /**
+     * The groups in the order of the file. In streaming mode, the file is read 
+     * again each time the result is iterated, one group at a time (and in binary 
+     * mode, each group is decoded when it is reached).
+     */
+    public Iterable<Pair<GroupId,Map<SequenceId,Sequence>>> groups()
+    {
+      ensureLoaded();
+      if (binary != null)
+        return new Iterable<Pair<GroupId,Map<SequenceId,Sequence>>>() {
+          @Override
+          public Iterator<Pair<GroupId,Map<SequenceId,Sequence>>> iterator()
+          {
+            final Iterator<GroupId> ids = groupIds.iterator();
+            return new Iterator<Pair<GroupId,Map<SequenceId,Sequence>>>() {
+              private int next = 0;
+              @Override public boolean hasNext() { return ids.hasNext(); }
+              @Override public Pair<GroupId,Map<SequenceId,Sequence>> next() { return Pair.of(ids.next(), binary.group(next++)); }
+              @Override public void remove() { throw new UnsupportedOperationException(); }
+            };
+          }
+        };
+      if (data != null)
+      {
+        List<Pair<GroupId,Map<SequenceId,Sequence>>> result = new ArrayList<Pair<GroupId,Map<SequenceId,Sequence>>>();
+        for (GroupId groupId : data.keySet())
+          result.add(Pair.of(groupId, data.get(groupId)));
+        return result;
+      }
+      return new Iterable<Pair<GroupId,Map<SequenceId,Sequence>>>() {
+        @Override
+        public Iterator<Pair<GroupId,Map<SequenceId,Sequence>>> iterator()
+        {
+          return new GroupIterator(openCSV(csvFile));
+        }
+      };
+    }
 
     private void ensureLoaded()
     {
-      if (data != null)
+      if (alphabet != null)
+        return;
+      if (BinaryDataset.isBinaryDataset(csvFile))
+      {
+        loadBinary();
         return;
+      }
+      if (streaming)
+      {
+        prescan();
+        return;
+      }
       data = new LinkedHashMap<GroupId, Map<SequenceId,Sequence>>();
       alphabet = new Alphabet();
       for (List<String> line : BriefIO.readLines(csvFile).splitCSV())
       {
-        if (line.size() != 3)
-          throw new RuntimeException("There should be 3 fields: the group, the taxon, and the string (space separated letters)");
-        
+        checkLine(line);
         List<Letter> seqList = new ArrayList<Letter>();
         Iterable<String> split = Splitter.onPattern("\\s+").split(line.get(2));
         for (String letterStr : split)
@@ -107,10 +336,134 @@ public class Aligner implements Runnable
 
       }
     }
+    
+    // first pass of the streaming mode: only the alphabet, the group names and the pairs of taxa are kept
+    private void prescan()
+    {
+      Alphabet alphabet = new Alphabet();
+      groupIds = new ArrayList<GroupId>();
+      taxaPairs = new LinkedHashSet<UnorderedPair<SequenceId,SequenceId>>();
+      Set<String> seenGroups = new HashSet<String>();
+      List<SequenceId> taxa = new ArrayList<SequenceId>(); // of the current group
+      BufferedReader reader = openCSV(csvFile);
+      try
+      {
+        List<String> line;
+        while ((line = readCSVLine(reader)) != null)
+        {
+          checkLine(line);
+          final String groupName = line.get(0);
+          if (groupIds.isEmpty() || !groupIds.get(groupIds.size() - 1).groupName.equals(groupName))
+          {
+            if (!seenGroups.add(groupName))
+              throw new RuntimeException("In streaming mode, the lines of each group should be contiguous: " + groupName);
+            addTaxaPairs(taxa);
+            taxa.clear();
+            groupIds.add(new GroupId(groupName));
+          }
+          final SequenceId taxon = new SequenceId(line.get(1));
+          if (!taxa.contains(taxon))
+            taxa.add(taxon);
+          for (String letterStr : Splitter.onPattern("\\s+").split(line.get(2)))
+            alphabet.getLetter(letterStr);
+        }
+        addTaxaPairs(taxa);
+      }
+      finally
+      {
+        closeQuietly(reader);
+      }
+      this.alphabet = alphabet;
+    }
+    
+    // only the tables of the binary dataset are read here, the letters are decoded on demand
+    private void loadBinary()
+    {
+      binary = BinaryDataset.read(csvFile);
+      groupIds = new ArrayList<GroupId>();
+      binaryIndices = new HashMap<GroupId,Integer>();
+      taxaPairs = new LinkedHashSet<UnorderedPair<SequenceId,SequenceId>>();
+      for (int g = 0; g < binary.nGroups(); g++)
+      {
+        GroupId groupId = new GroupId(binary.groupName(g));
+        groupIds.add(groupId);
+        binaryIndices.put(groupId, g);
+        List<SequenceId> taxa = new ArrayList<SequenceId>();
+        for (int s = 0; s < binary.nSequences(g); s++)
+          taxa.add(binary.taxon(g, s));
+        addTaxaPairs(taxa);
+      }
+      alphabet = binary.alphabet;
+    }
+    
+    private void addTaxaPairs(List<SequenceId> taxa)
+    {
+      for (SequenceId key1 : taxa)
+        for (SequenceId key2 : taxa)
+          if (!key1.equals(key2))
+            taxaPairs.add(UnorderedPair.of(key1,key2));
+    }
+    
+    /*
+     * Reads the groups of a file one at a time; the file is closed when the end is reached.
+     */
+    private class GroupIterator implements Iterator<Pair<GroupId,Map<SequenceId,Sequence>>>
+    {
+      private final BufferedReader reader;
+      private List<String> nextLine;
+      
+      private GroupIterator(BufferedReader reader)
+      {
+        this.reader = reader;
+        this.nextLine = readOrClose();
+      }
+
+      @Override
+      public boolean hasNext()
+      {
+        return nextLine != null;
+      }
+
+      @Override
+      public Pair<GroupId,Map<SequenceId,Sequence>> next()
+      {
+        if (nextLine == null)
+          throw new NoSuchElementException();
+        final String groupName = nextLine.get(0);
+        Map<SequenceId,Sequence> group = new LinkedHashMap<SequenceId,Sequence>();
+        while (nextLine != null && nextLine.get(0).equals(groupName))
+        {
+          List<Letter> seqList = new ArrayList<Letter>();
+          for (String letterStr : Splitter.onPattern("\\s+").split(nextLine.get(2)))
+            seqList.add(alphabet.getExistingLetter(letterStr));
+          group.put(new SequenceId(nextLine.get(1)), new Sequence(alphabet, seqList));
+          nextLine = readOrClose();
+        }
+        return Pair.of(new GroupId(groupName), group);
+      }
+
+      @Override
+      public void remove()
+      {
+        throw new UnsupportedOperationException();
+      }
+      
+      private List<String> readOrClose()
+      {
+        List<String> result = readCSVLine(reader);
+        if (result == null)
+          closeQuietly(reader);
+        else
+          checkLine(result);
+        return result;
+      }
+    }
 
     public Set<UnorderedPair<SequenceId, SequenceId>> taxaPairs()
     {
       ensureLoaded();
+      if (data == null)
+        return taxaPairs;
       Set<UnorderedPair<SequenceId, SequenceId>> result = new LinkedHashSet<UnorderedPair<SequenceId,SequenceId>>();
       for (Map<SequenceId, Sequence> datum : data.values())
         for (SequenceId key1 : datum.keySet())
@@ -119,6 +472,80 @@ public class Aligner implements Runnable
               result.add(UnorderedPair.of(key1,key2));
       return result;
     }
+    
+    private static void checkLine(List<String> line)
+    {
+      if (line.size() != 3)
+        throw new RuntimeException("There should be 3 fields: the group, the taxon, and the string (space separated letters)");
+    }
+    
+    private static BufferedReader openCSV(File file)
+    {
+      try
+      {
+        InputStream in = new FileInputStream(file);
+        if (file.getName().endsWith(".gz"))
+          in = new GZIPInputStream(in);
+        return new BufferedReader(new InputStreamReader(in, "UTF-8"));
+      }
+      catch (IOException e) { throw new RuntimeException(e); }
+    }
+    
+    // a line split on the commas that are not between double quotes (null at the end of the file, blank lines are skipped)
+    private static List<String> readCSVLine(BufferedReader reader)
+    {
+      try
+      {
+        String line;
+        do
+        {
+          line = reader.readLine();
+        } while (line != null && line.trim().isEmpty());
+        if (line == null)
+          return null;
+        return splitCSVLine(line);
+      }
+      catch (IOException e) { throw new RuntimeException(e); }
+    }
+    
+    /**
+     * Split a line on the commas that are not between double quotes, as the csv parser used 
+     * in the non-streaming mode: the quotes are removed, and a doubled quote inside a quoted 
+     * field stands for a quote (fields spanning several lines are not supported).
+     */
+    static List<String> splitCSVLine(String line)
+    {
+      List<String> result = new ArrayList<String>();
+      StringBuilder current = new StringBuilder();
+      boolean quoted = false;
+      for (int i = 0; i < line.length(); i++)
+      {
+        final char c = line.charAt(i);
+        if (c == '"' && quoted && i + 1 < line.length() && line.charAt(i + 1) == '"')
+        {
+          current.append('"');
+          i++;
+        }
+        else if (c == '"')
+          quoted = !quoted;
+        else if (c == ',' && !quoted)
+        {
+          result.add(current.toString());
+          current = new StringBuilder();
+        }
+        else
+          current.append(c);
+      }
+      if (quoted)
+        throw new RuntimeException("Unterminated quoted field in the line: " + line);
+      result.add(current.toString());
+      return result;
+    }
+    
+    private static void closeQuietly(BufferedReader reader)
+    {
+      try { reader.close(); } catch (IOException e) {}
+    }
   }
   
   public static class GroupId
@@ -170,50 +597,491 @@ public class Aligner implements Runnable
   private void doIteration(int iterationNumber)
   {
     System.out.println("Starting iteration " + iterationNumber);
-    iterationSpecificOutput = (Results.getFolderInResultFolder("iteration_" + iterationNumber));
+    beginIteration(iterationNumber, Results.getFolderInResultFolder("iteration_" + iterationNumber));
+    if (hardEM)
+      System.out.println("Hard (Viterbi) EM iteration");
     
-    for (GroupId groupId : dataset.groupIds())
-      align(groupId, dataset.getSequences(groupId));
+    // groups are read in the order of the dataset (one at a time in streaming mode), skipping 
+    // the ones done before the checkpoint this run was resumed from, if any
+    final int nGroups = dataset.groupIds().size();
+    final boolean online = onlineMinibatchSize > 0;
+    Map<GroupId,Map<SequenceId,Sequence>> batch = new LinkedHashMap<GroupId,Map<SequenceId,Sequence>>();
+    int minibatchSize = 0, position = -1;
+    for (Pair<GroupId,Map<SequenceId,Sequence>> group : dataset.groups())
+    {
+      position++;
+      if (position % nShards != shardIndex || doneGroups.contains(group.getLeft().toString()))
+        continue;
+      batch.put(group.getLeft(), group.getRight());
+      minibatchSize++;
+      final boolean endOfMinibatch = online && minibatchSize == onlineMinibatchSize;
+      if (batch.size() == groupsPerBatch || endOfMinibatch)
+      {
+        alignBatch(batch);
+        batch = new LinkedHashMap<GroupId,Map<SequenceId,Sequence>>();
+        if (!online)
+          checkpointIfNeeded(iterationNumber);
+      }
+      if (endOfMinibatch)
+      {
+        updateParametersOnline(minibatchSize, nGroups, iterationNumber);
+        minibatchSize = 0;
+      }
+    }
+    if (!batch.isEmpty())
+    {
+      alignBatch(batch);
+      if (!online)
+        checkpointIfNeeded(iterationNumber);
+    }
+    if (online && minibatchSize > 0)
+      updateParametersOnline(minibatchSize, nGroups, iterationNumber);
+    endIteration(iterationNumber);
+  }
+  
+  private void beginIteration(int iterationNumber, File output)
+  {
+    iterationSpecificOutput = output;
+    iterationStart = System.currentTimeMillis();
+    initialParams = learnedModel.getNaturalParams();
+    hardEM = iterationNumber < hardEMIterations;
+    this.iterationNumber = iterationNumber;
+  }
+  
+  private void endIteration(int iterationNumber)
+  {
+    final boolean online = onlineMinibatchSize > 0;
+    if (plannedStrategies.getCount(Strategy.FULL) != plannedStrategies.totalCount())
+      System.out.println("Memory planner decisions: " + plannedStrategies);
+    plannedStrategies = new Counter<Strategy>();
     
-    System.out.println("Alignment complete, starting parameter update");
-    learnedModel.updateParameters();
+    if (memoizePairs)
+      System.out.println("Memoized pairs: " + nMemoizedPairs + " of " + nPairs + " were not aligned again");
+    nPairs = nMemoizedPairs = 0;
+    
+    CoarseToFine coarseToFine = learnedModel.getCoarseToFine();
+    if (coarseToFine != null)
+    {
+      System.out.println("Coarse-to-fine: mean posterior mass outside envelope = " + coarseToFine.outsideMass.getMean() 
+          + " (max = " + coarseToFine.outsideMass.getMax() + ")");
+      coarseToFine.outsideMass.clear();
+    }
+    
+    if (nShards > 1)
+    {
+      System.out.println("Log-likelihood of the shard: " + logLikelihood);
+      File shardFile = Results.getFileInResultFolder(shardFileName());
+      new Checkpoint(iterationNumber, 0, learnedModel.getNaturalParams(), learnedModel.suffStats, null, doneGroups, 
+          logLikelihood, Double.NaN, elapsedMillis(), lastIterationMillis).write(shardFile);
+      System.out.println("Alignment of shard complete (" + doneGroups.size() + " group(s)), statistics written to " + shardFile);
+      return;
+    }
+    
+    if (!online)
+    {
+      System.out.println("Alignment complete, starting parameter update");
+      learnedModel.updateParameters();
+    }
+    else
+      System.out.println("Pass complete (" + nOnlineUpdates + " online updates so far)");
     
     learnedModel.saveWeights(new File(iterationSpecificOutput, "weights.txt"));
+    if (saveModelBundle)
+      learnedModel.saveBundle(new File(iterationSpecificOutput, MODEL_BUNDLE_FILE));
+    
+    lastIterationMillis = System.currentTimeMillis() - iterationStart;
+    final double parameterChange = distance(initialParams, learnedModel.getNaturalParams());
+    System.out.println((hardEM ? "Log-likelihood of the best paths: " : "Log-likelihood: ") + logLikelihood 
+        + ", parameter change: " + parameterChange);
+    PrintWriter convergence = BriefIO.output(new File(iterationSpecificOutput, CONVERGENCE_FILE));
+    convergence.println("logLikelihood\t" + logLikelihood);
+    convergence.println("parameterChange\t" + parameterChange);
+    convergence.println("seconds\t" + (lastIterationMillis / 1000.0));
+    convergence.println("hardEM\t" + hardEM);
+    convergence.close();
+    
+    doneGroups = new LinkedHashSet<String>();
   }
-
-  private void align(GroupId groupId, Map<SequenceId, Sequence> datum)
+  
+  /**
+   * @return If training should stop after this iteration (see relativeTolerance and maxWallClockSeconds); 
+   *   also moves the log-likelihood of this iteration to the previous one
+   */
+  private boolean shouldStop()
+  {
+    final double improvement = (logLikelihood - previousLogLikelihood) / Math.abs(previousLogLikelihood);
+    // the log-likelihoods of the best paths (hard EM) are not compared, nor with the next soft EM one
+    previousLogLikelihood = hardEM ? Double.NaN : logLikelihood;
+    logLikelihood = 0.0;
+    if (relativeTolerance > 0.0 && improvement < relativeTolerance) // false for the first iteration (NaN), or after hard EM
+    {
+      System.out.println("Converged: relative improvement of the log-likelihood " + improvement + " < " + relativeTolerance);
+      return true;
+    }
+    final long elapsed = elapsedMillis();
+    if (maxWallClockSeconds > 0.0 && (elapsed + lastIterationMillis) / 1000.0 > maxWallClockSeconds)
+    {
+      System.out.println("Stopping: another iteration would exceed maxWallClockSeconds (" + (elapsed / 1000.0) + " s elapsed)");
+      return true;
+    }
+    return false;
+  }
+  
+  // time spent in this run, and in the runs it resumed
+  private long elapsedMillis()
+  {
+    return System.currentTimeMillis() - runStart;
+  }
+  
+  // Euclidean distance, a missing feature counting as zero
+  private static double distance(Counter<Object> c1, Counter<Object> c2)
+  {
+    double result = 0.0;
+    for (Object key : c1.keySet())
+      result += Math.pow(c1.getCount(key) - c2.getCount(key), 2);
+    for (Object key : c2.keySet())
+      if (!c1.containsKey(key))
+        result += Math.pow(c2.getCount(key), 2);
+    return Math.sqrt(result);
+  }
+  
+  private void updateParametersOnline(int minibatchSize, int nGroups, int iterationNumber)
+  {
+    final double stepSize = Math.pow(nOnlineUpdates + 2, -onlineStepSizeExponent);
+    learnedModel.updateParametersOnline(stepSize, ((double) nGroups) / minibatchSize);
+    nOnlineUpdates++;
+    checkpointIfNeeded(iterationNumber);
+  }
+  
+  private void checkpointIfNeeded(int iterationNumber)
+  {
+    if (checkpointInterval > 0 && groupsSinceCheckpoint >= checkpointInterval)
+      checkpoint(iterationNumber);
+  }
+  
+  private void checkpoint(int iterationNumber)
+  {
+    new Checkpoint(iterationNumber, nOnlineUpdates, learnedModel.getNaturalParams(), learnedModel.suffStats, 
+        learnedModel.getRunningSuffStats(), doneGroups, logLikelihood, previousLogLikelihood, elapsedMillis(), 
+        lastIterationMillis).write(Results.getFileInResultFolder(CHECKPOINT_FILE));
+    groupsSinceCheckpoint = 0;
+  }
+  
+  private String shardFileName()
+  {
+    return "shard_" + shardIndex + "_of_" + nShards + ".bin";
+  }
+  
+  /*
+   * The shard files have the format of checkpoints, where the done groups are the 
+   * ones of the shard. The shards should cover the dataset exactly once, and should
+   * have been aligned with the parameters loaded by this run.
+   */
+  private void reduceShards()
+  {
+    Set<String> groups = new LinkedHashSet<String>();
+    for (String path : Splitter.on(',').trimResults().omitEmptyStrings().split(reduceShards))
+    {
+      Checkpoint shard = Checkpoint.read(new File(path), learnedModel.model);
+      if (!sameCounts(shard.naturalParams, learnedModel.getNaturalParams()))
+        throw new RuntimeException("The shard " + path + " was aligned with different parameters");
+      for (String group : shard.doneGroups)
+        if (!groups.add(group))
+          throw new RuntimeException("Group " + group + " appears in more than one shard (in " + path + ")");
+      learnedModel.suffStats.add(shard.suffStats);
+    }
+    if (groups.size() != dataset.groupIds().size())
+      throw new RuntimeException("The shards cover " + groups.size() + " of the " + dataset.groupIds().size() + " groups");
+    System.out.println("Reduced the statistics of " + groups.size() + " groups, starting parameter update");
+    learnedModel.updateParameters();
+    learnedModel.saveWeights(Results.getFileInResultFolder("weights.txt"));
+    if (saveModelBundle)
+      learnedModel.saveBundle(Results.getFileInResultFolder(MODEL_BUNDLE_FILE));
+  }
+  
+  private static boolean sameCounts(Counter<Object> c1, Counter<Object> c2)
+  {
+    if (c1.size() != c2.size())
+      return false;
+    for (Object key : c1.keySet())
+      if (c1.getCount(key) != c2.getCount(key))
+        return false;
+    return true;
+  }
+  
+  private int resumeFromCheckpoint()
+  {
+    Checkpoint checkpoint = Checkpoint.read(new File(resume), learnedModel.model);
+    learnedModel.setNaturalParams(checkpoint.naturalParams);
+    learnedModel.suffStats = checkpoint.suffStats;
+    learnedModel.setRunningSuffStats(checkpoint.runningSuffStats);
+    nOnlineUpdates = checkpoint.nOnlineUpdates;
+    doneGroups = new LinkedHashSet<String>(checkpoint.doneGroups);
+    logLikelihood = checkpoint.logLikelihood;
+    previousLogLikelihood = checkpoint.previousLogLikelihood;
+    lastIterationMillis = checkpoint.lastIterationMillis;
+    runStart -= checkpoint.elapsedMillis; // for maxWallClockSeconds, the run continues the resumed one
+    System.out.println("Resuming at iteration " + checkpoint.iteration + " (" + doneGroups.size() + " group(s) already done)");
+    return checkpoint.iteration;
+  }
+  
+  /**
+   * The alignment of one pair of sequences, done by one of the E step's workers,
+   * and its results.
+   */
+  private static final class PairTask
   {
-    Counter<Edge> edgePosteriors = new Counter<Edge>();
-    // get all pairs
-    List<Map<SequenceId,Sequence>> pairs = pairs(datum);
-    Counter<LabeledInstance<Input,Output>> suffStats = new Counter<LabeledInstance<Input,Output>>();
-    // align them
-    for (Map<SequenceId,Sequence> pair : pairs)
+    private final GroupId groupId;
+    private final SequenceId topId, botId;
+    private final Sequence top, bot;
+    
+    private MSAPoset anchorAlignment = null; // see anchorAlignments
+    private Plan plan = null; // null if aligned in anchored mode
+    private SuffStatTensor suffStats = null;
+    private BandedMatrix posteriors = null;
+    private double logLikelihood = 0.0;
+    
+    private PairTask representative = this; // the first task of the batch with the same key, see memoizePairs
+    private int multiplicity = 1; // number of tasks of the batch represented by this one
+    
+    private PairTask(GroupId groupId, Map<SequenceId,Sequence> pair)
     {
       List<SequenceId> ids = new ArrayList<SequenceId>(pair.keySet());
-      SequenceId topId = ids.get(0), botId = ids.get(1);
-      Sequence top = pair.get(topId), bot = pair.get(botId);
-      HetPairHMM hmm = learnedModel.getHMM(top, bot, topId, botId);
-      learnedModel.addSufficientStatistics(suffStats, hmm, topId, botId);
-      for (int botPos = 0; botPos < bot.length(); botPos++)
-        for (int topPos = 0; topPos < top.length(); topPos++)
-          edgePosteriors.setCount(
-              new Edge(topPos, botPos, topId, botId), 
-              Math.exp(hmm.logPosteriorAlignment(topPos, botPos)));
+      this.groupId = groupId;
+      this.topId = ids.get(0);
+      this.botId = ids.get(1);
+      this.top = pair.get(topId);
+      this.bot = pair.get(botId);
     }
     
-    // update suff stats
-    learnedModel.suffStats.incrementAll(suffStats);
+    private long cost()
+    {
+      return (top.length() + 1L) * (bot.length() + 1L);
+    }
     
+    private static final Comparator<PairTask> LONGEST_FIRST = new Comparator<PairTask>() {
+      @Override
+      public int compare(PairTask o1, PairTask o2)
+      {
+        return Long.compare(o2.cost(), o1.cost());
+      }
+    };
+  }
+  
+  /**
+   * E step over a batch of groups: all the pairs of the batch are aligned in parallel,
+   * then their results are combined sequentially, in group and pair order, so that 
+   * the output does not depend on the number of threads.
+   */
+  private void alignBatch(Map<GroupId,Map<SequenceId,Sequence>> groups)
+  {
+    List<PairTask> tasks = new ArrayList<PairTask>();
+    for (GroupId groupId : groups.keySet())
+    {
+      final MSAPoset anchorAlignment = anchorAlignment(groupId, groups.get(groupId));
+      for (Map<SequenceId,Sequence> pair : pairs(groups.get(groupId)))
+      {
+        PairTask task = new PairTask(groupId, pair);
+        task.anchorAlignment = anchorAlignment;
+        tasks.add(task);
+      }
+    }
+    List<PairTask> schedule = memoizePairs ? representatives(tasks) : new ArrayList<PairTask>(tasks);
+    nPairs += tasks.size();
+    nMemoizedPairs += tasks.size() - schedule.size();
+    // longest first, so that a long pair does not end up running alone at the end
+    Collections.sort(schedule, PairTask.LONGEST_FIRST);
+    // threads left for the segments of anchored pairs
+    final int segmentThreads = Math.max(1, nThreads / Math.max(1, schedule.size()));
+    Parallel.forEach(nThreads, schedule, new Parallel.Worker<PairTask>() {
+      @Override
+      public void process(int index, PairTask task)
+      {
+        align(task, segmentThreads);
+      }
+    });
     
+    int next = 0;
+    for (GroupId groupId : groups.keySet())
+    {
+      PairPosteriors posteriors = new PairPosteriors(groups.get(groupId));
+      for (; next < tasks.size() && tasks.get(next).groupId.equals(groupId); next++)
+      {
+        PairTask task = tasks.get(next), result = task.representative;
+        if (result.plan != null)
+          plannedStrategies.incrementCount(result.plan.strategy, 1.0);
+        if (result == task)
+        {
+          learnedModel.suffStats.add(task.suffStats, task.multiplicity);
+          logLikelihood += task.multiplicity * task.logLikelihood;
+        }
+        posteriors.set(task.topId, task.botId, result.posteriors);
+      }
+      writeAlignments(groupId, groups.get(groupId), posteriors);
+      doneGroups.add(groupId.toString());
+      groupsSinceCheckpoint++;
+    }
+  }
+
+  /**
+   * @return The first task of each key, in order, after pointing the other tasks to it
+   */
+  private List<PairTask> representatives(List<PairTask> tasks)
+  {
+    List<PairTask> result = new ArrayList<PairTask>();
+    Map<PairKey,PairTask> firstOccurrences = new HashMap<PairKey,PairTask>();
+    for (PairTask task : tasks)
+    {
+      if (task.anchorAlignment != null)
+      {
+        // the anchors depend on the group
+        result.add(task);
+        continue;
+      }
+      final PairKey key = learnedModel.pairKey(task.top, task.bot, task.topId, task.botId);
+      final PairTask first = firstOccurrences.get(key);
+      if (first == null)
+      {
+        firstOccurrences.put(key, task);
+        result.add(task);
+      }
+      else
+      {
+        task.representative = first;
+        first.multiplicity++;
+      }
+    }
+    return result;
+  }
+
+  private void align(PairTask task, int segmentThreads)
+  {
+    final Sequence top = task.top, bot = task.bot;
+    final SequenceId topId = task.topId, botId = task.botId;
+    BandedMatrix posteriors;
+    SuffStatTensor suffStats = new SuffStatTensor(learnedModel.model);
+    if ((anchorK > 0 || task.anchorAlignment != null) && Math.min(top.length(), bot.length()) >= minAnchoredLength)
+    {
+      final List<Pair<Integer,Integer>> anchors = task.anchorAlignment != null ? 
+          Anchors.fromAlignment(task.anchorAlignment, topId, botId) : 
+          Anchors.exactMatches(top, bot, anchorK);
+      AnchoredPairHMM hmm = learnedModel.getAnchoredHMM(top, bot, topId, botId, anchors, segmentThreads);
+      if (hardEM)
+      {
+        posteriors = hmm.posteriorMatrix();
+        task.logLikelihood = learnedModel.addViterbiSufficientStatistics(suffStats, hmm, topId, botId, posteriors);
+      }
+      else if (monteCarloSamples > 0)
+      {
+        posteriors = hmm.posteriorMatrix();
+        task.logLikelihood = learnedModel.addSampledSufficientStatistics(suffStats, hmm, topId, botId, 
+            random(task), monteCarloSamples, posteriors);
+      }
+      else
+      {
+        posteriors = learnedModel.addSufficientStatistics(suffStats, hmm, topId, botId);
+        task.logLikelihood = hmm.logSumProduct();
+      }
+    }
+    else
+    {
+      Plan plan = memoryPlanner.plan(top.length() + 1, bot.length() + 1);
+      task.plan = plan;
+      memoryPlanner.acquire(plan);
+      try
+      {
+        final Envelope envelope = plan.strategy == Strategy.FULL ? null : plan.envelope;
+        final boolean usesPaths = hardEM || monteCarloSamples > 0;
+        // the coarse-to-fine envelope is only checked beforehand if the forward recursion is run anyway
+        HetPairHMM hmm = learnedModel.getHMM(top, bot, topId, botId, envelope, !usesPaths);
+        if (usesPaths)
+        {
+          posteriors = hmm.posteriorMatrix();
+          task.logLikelihood = addPathSufficientStatistics(task, suffStats, hmm, posteriors);
+          if (task.logLikelihood == Double.NEGATIVE_INFINITY && envelope == null && learnedModel.getCoarseToFine() != null)
+          {
+            // no path in the coarse-to-fine envelope (nothing was visited)
+            hmm = learnedModel.getHMM(top, bot, topId, botId, Envelope.full(top.length() + 1, bot.length() + 1));
+            posteriors = hmm.posteriorMatrix();
+            task.logLikelihood = addPathSufficientStatistics(task, suffStats, hmm, posteriors);
+          }
+        }
+        else
+        {
+          posteriors = learnedModel.addSufficientStatistics(suffStats, hmm, topId, botId);
+          task.logLikelihood = hmm.logSumProduct();
+        }
+      }
+      finally
+      {
+        memoryPlanner.release(plan);
+      }
+    }
+    task.suffStats = suffStats;
+    task.posteriors = posteriors; // also cover the boundary symbols, ignored by PairPosteriors
+  }
+  
+  // hard or Monte Carlo E step, see hardEM and monteCarloSamples
+  private double addPathSufficientStatistics(PairTask task, SuffStatTensor suffStats, HetPairHMM hmm, BandedMatrix posteriors)
+  {
+    if (hardEM)
+      return learnedModel.addViterbiSufficientStatistics(suffStats, hmm, task.topId, task.botId, posteriors);
+    return learnedModel.addSampledSufficientStatistics(suffStats, hmm, task.topId, task.botId, 
+        random(task), monteCarloSamples, posteriors);
+  }
+  
+  /*
+   * A generator that only depends on the seed, the iteration and the pair (not on the 
+   * thread or on the order in which the pairs are aligned)
+   */
+  private Random random(PairTask task)
+  {
+    long seed = monteCarloSeed;
+    seed = 31 * seed + iterationNumber;
+    seed = 31 * seed + task.groupId.toString().hashCode();
+    seed = 31 * seed + task.topId.toString().hashCode();
+    seed = 31 * seed + task.botId.toString().hashCode();
+    // scramble, so that close seeds give unrelated generators (java.util.Random only uses 48 bits)
+    seed = (seed ^ (seed >>> 30)) * 0xbf58476d1ce4e5b9L;
+    seed = (seed ^ (seed >>> 27)) * 0x94d049bb133111ebL;
+    return new Random(seed ^ (seed >>> 31));
+  }
+  
+  /**
+   * @return The fixed alignment of the group in anchorAlignments, null if there is none
+   */
+  private MSAPoset anchorAlignment(GroupId groupId, Map<SequenceId, Sequence> datum)
+  {
+    if (anchorAlignments == null)
+      return null;
+    File file = new File(anchorAlignments, groupId + ".fasta");
+    if (!file.exists())
+      return null;
+    // own alphabet, so that the letters of the file are not added to the model's
+    MSAPoset result = MSAPoset.parseFASTA(new Alphabet(), file);
+    for (SequenceId taxon : datum.keySet())
+    {
+      final Sequence fixed = result.sequences().get(taxon), sequence = datum.get(taxon);
+      if (fixed == null)
+        throw new RuntimeException("Taxon " + taxon + " missing from the fixed alignment " + file);
+      boolean same = fixed.length() == sequence.length();
+      for (int i = 0; same && i < sequence.length(); i++)
+        same = fixed.letterAt(i).toString().equals(sequence.letterAt(i).toString());
+      if (!same)
+        throw new RuntimeException("The sequence of " + taxon + " in the fixed alignment " + file + " differs from the data");
+    }
+    return result;
+  }
+  
+  private void writeAlignments(GroupId groupId, Map<SequenceId, Sequence> datum, PairPosteriors posteriors)
+  {
     File txtFolder = new File(iterationSpecificOutput, "alignments-txt");  txtFolder.mkdir();
     File fastaFolder = new File(iterationSpecificOutput, "alignments-fasta");fastaFolder.mkdir();
     
-    
     for (int i = 0; i < rocGridSize; i++)
     {
       double threshold = 1.0 - Math.pow(2.0, -i);
-      MSAPoset align = MSAPoset.consensusAlignment(datum, edgePosteriors, threshold);
+      MSAPoset align = MSAPoset.consensusAlignment(datum, posteriors, threshold);
       BriefIO.write(new File(txtFolder, "" + groupId + ".align(" + threshold + ").txt") , align.toString());
       align.toFASTA(new File(fastaFolder, "" + groupId + ".align(" + threshold + ").fasta"));
     }
@@ -238,10 +1106,237 @@ public class Aligner implements Runnable
   @Override
   public void run()
   {
-    learnedModel = ExponentialFamily.createExpfam(learningOptions , expFamOptions, featureOptions, dataset.taxaPairs(), dataset.alphabet);
+    if (warmStartOptions.warmStartIterations > 0 && compiledFeaturesOptions.hashBits > 0)
+      throw new RuntimeException("warmStartIterations cannot be used with hashBits (the warm start weights are not hashed)");
+    if (warmStartOptions.warmStartIterations > 0)
+      warmStart();
+    learnedModel = StringUtils.isEmpty(modelBundle) ?
+        ExponentialFamily.createExpfam(learningOptions , expFamOptions, featureOptions, dataset.taxaPairs(), dataset.getAlphabet()) :
+        loadModelBundle();
+    learnedModel.setCachedParamsOptions(nThreads, expFamOptions.storage());
+    if (compiledFeaturesOptions.hashBits > 0 && !compiledFeaturesOptions.useCompiledFeatures)
+      throw new RuntimeException("hashBits requires useCompiledFeatures");
+    if (compiledFeaturesOptions.useCompiledFeatures)
+    {
+      learnedModel.enableCompiledFeatures(compiledFeaturesOptions, nThreads);
+      CompiledFeatures compiled = learnedModel.getCompiledFeatures();
+      if (compiled.hashBits > 0)
+        System.out.println("Feature hashing: " + compiled.nHashedFeatures + " features in " + compiled.nFeatures() 
+            + " weights, " + compiled.nCollidingFeatures + " of them sharing their weight with another feature");
+    }
+    if (coarseToFineOptions.useCoarseToFine)
+      learnedModel.enableCoarseToFine(coarseToFineOptions);
+    // forward and backward tables
+    memoryPlanner = new MemoryPlanner(memoryOptions, learnedModel.model.nStates, 2);
     
-    for (int iter = 0; iter < nIterations; iter++)
+    if (!StringUtils.isEmpty(reduceShards))
+    {
+      reduceShards();
+      return;
+    }
+    if (nShards > 1 && (onlineMinibatchSize > 0 || shardIndex < 0 || shardIndex >= nShards))
+      throw new RuntimeException("nShards requires 0 <= shardIndex < nShards, and cannot be used with onlineMinibatchSize");
+    
+    final boolean multiStart = nStarts > 1 || !StringUtils.isEmpty(startParams);
+    if (multiStart && (nShards > 1 || onlineMinibatchSize > 0 || checkpointInterval > 0 || !StringUtils.isEmpty(resume)))
+      throw new RuntimeException("nStarts cannot be used with nShards, onlineMinibatchSize, checkpointInterval or resume");
+    
+    runStart = System.currentTimeMillis();
+    int firstIteration = StringUtils.isEmpty(resume) ? 0 : resumeFromCheckpoint();
+    if (multiStart)
+    {
+      firstIteration = trainStarts();
+      if (shouldStop())
+        return;
+    }
+    final int lastIteration = nShards > 1 ? firstIteration + 1 : nIterations;
+    for (int iter = firstIteration; iter < lastIteration; iter++)
+    {
       doIteration(iter);
+      if (nShards > 1)
+        break;
+      final boolean stop = shouldStop();
+      // after shouldStop(), which moves the log-likelihood of the iteration to the previous one
+      if (checkpointInterval > 0)
+        checkpoint(iter + 1);
+      if (stop)
+        break;
+    }
+  }
+  
+  /**
+   * Multi-start EM (see nStarts): the starts are trained in lock step, each batch of groups 
+   * being read once and aligned by all the starts concurrently. After pruneStartsAfter 
+   * iterations, this object continues from the start with the highest log-likelihood.
+   * 
+   * @return The number of iterations done
+   */
+  private int trainStarts()
+  {
+    List<Counter<Object>> initializations = new ArrayList<Counter<Object>>();
+    initializations.add(learnedModel.getNaturalParams());
+    if (!StringUtils.isEmpty(startParams))
+      for (String path : Splitter.on(',').trimResults().omitEmptyStrings().split(startParams))
+        initializations.add(new Counter<Object>(ExponentialFamily.restoreCounter(new File(path))));
+    Random rand = new Random(startSeed);
+    if (initializations.size() < nStarts)
+      initializations.addAll(learnedModel.perturbedParams(rand, startPerturbation, nStarts - initializations.size()));
+    
+    // the threads are split among the starts
+    final int 
+      threadsPerStart = Math.max(1, nThreads / initializations.size()),
+      concurrentStarts = Math.min(nThreads, initializations.size());
+    final List<Aligner> starts = new ArrayList<Aligner>();
+    for (int i = 0; i < initializations.size(); i++)
+    {
+      ExponentialFamily model = learnedModel; // the first start reuses the initial model
+      if (i > 0)
+      {
+        model = learnedModel.withNaturalParams(initializations.get(i));
+        if (coarseToFineOptions.useCoarseToFine)
+          model.enableCoarseToFine(coarseToFineOptions);
+      }
+      starts.add(start(i, model, threadsPerStart));
+    }
+    System.out.println("Multi-start EM: " + starts.size() + " starts, " + threadsPerStart + " thread(s) each");
+    
+    final int nMultiStartIterations = Math.max(1, Math.min(pruneStartsAfter, nIterations));
+    for (int iter = 0; iter < nMultiStartIterations; iter++)
+    {
+      System.out.println("Starting iteration " + iter + " (" + starts.size() + " starts)");
+      final File folder = Results.getFolderInResultFolder("iteration_" + iter);
+      for (Aligner start : starts)
+      {
+        File output = new File(folder, "start_" + start.startIndex);
+        output.mkdir();
+        start.beginIteration(iter, output);
+      }
+      Map<GroupId,Map<SequenceId,Sequence>> batch = new LinkedHashMap<GroupId,Map<SequenceId,Sequence>>();
+      for (Pair<GroupId,Map<SequenceId,Sequence>> group : dataset.groups())
+      {
+        batch.put(group.getLeft(), group.getRight());
+        if (batch.size() == groupsPerBatch)
+        {
+          alignBatch(starts, batch, concurrentStarts);
+          batch = new LinkedHashMap<GroupId,Map<SequenceId,Sequence>>();
+        }
+      }
+      if (!batch.isEmpty())
+        alignBatch(starts, batch, concurrentStarts);
+      final int iterationNumber = iter;
+      Parallel.forEach(concurrentStarts, starts, new Parallel.Worker<Aligner>() {
+        @Override
+        public void process(int index, Aligner start)
+        {
+          start.endIteration(iterationNumber);
+        }
+      });
+      for (Aligner start : starts)
+      {
+        start.previousLogLikelihood = start.logLikelihood;
+        start.logLikelihood = 0.0;
+      }
+    }
+    
+    Aligner best = null;
+    PrintWriter summary = BriefIO.output(new File(Results.getFolderInResultFolder("iteration_" + (nMultiStartIterations - 1)), STARTS_FILE));
+    for (Aligner start : starts)
+    {
+      System.out.println("Start " + start.startIndex + ": log-likelihood " + start.previousLogLikelihood);
+      summary.println("start_" + start.startIndex + "\t" + start.previousLogLikelihood);
+      if (best == null || start.previousLogLikelihood > best.previousLogLikelihood)
+        best = start;
+    }
+    summary.close();
+    System.out.println("Keeping start " + best.startIndex);
+    
+    learnedModel = best.learnedModel;
+    learnedModel.setCachedParamsOptions(nThreads, expFamOptions.storage());
+    logLikelihood = best.previousLogLikelihood;
+    hardEM = best.hardEM;
+    previousLogLikelihood = Double.NaN; // the improvement is checked from the next iteration
+    lastIterationMillis = best.lastIterationMillis;
+    return nMultiStartIterations;
+  }
+  
+  private static void alignBatch(List<Aligner> starts, final Map<GroupId,Map<SequenceId,Sequence>> batch, int concurrentStarts)
+  {
+    Parallel.forEach(concurrentStarts, starts, new Parallel.Worker<Aligner>() {
+      @Override
+      public void process(int index, Aligner start)
+      {
+        start.alignBatch(batch);
+      }
+    });
+  }
+  
+  /**
+   * @return An aligner with the options of this one training the given model, sharing this one's memory planner
+   */
+  private Aligner start(int index, ExponentialFamily model, int threads)
+  {
+    Aligner result = new Aligner();
+    result.startIndex = index;
+    result.dataset = dataset;
+    result.nThreads = threads;
+    result.learnedModel = model;
+    model.setCachedParamsOptions(threads, expFamOptions.storage());
+    result.memoryPlanner = memoryPlanner;
+    result.hardEMIterations = hardEMIterations;
+    result.monteCarloSamples = monteCarloSamples;
+    result.monteCarloSeed = monteCarloSeed;
+    result.rocGridSize = rocGridSize;
+    result.anchorK = anchorK;
+    result.minAnchoredLength = minAnchoredLength;
+    result.anchorAlignments = anchorAlignments;
+    result.memoizePairs = memoizePairs;
+    result.saveModelBundle = saveModelBundle;
+    return result;
+  }
+  
+  private ExponentialFamily loadModelBundle()
+  {
+    ModelBundle bundle = ModelBundle.read(new File(modelBundle), expFamOptions.storage());
+    List<Letter> missing = bundle.missingLetters(dataset.getAlphabet());
+    if (!missing.isEmpty())
+      throw new RuntimeException("Letters not in the alphabet of the model bundle: " + missing);
+    if (bundle.featureExtractor.options.addPairSpecific)
+      for (UnorderedPair<SequenceId,SequenceId> pair : dataset.taxaPairs())
+        if (!bundle.featureExtractor.sequenceIdPairsIndex.containsObject(pair))
+          throw new RuntimeException("Pair of taxa not in the model bundle: " + pair);
+    Counter<Object> centers = ExponentialFamilyOptions.SAME.equals(expFamOptions.reguCenterParams) ?
+        new Counter<Object>(bundle.naturalParams) :
+        expFamOptions.getCenterCounter();
+    @SuppressWarnings("unchecked") // the raw type of the option field, as in run()
+    MaxentOptions<Object> options = learningOptions;
+    return bundle.createExpfam(options, centers);
+  }
+  
+  private void warmStart()
+  {
+    if (!ExponentialFamilyOptions.ZERO.equals(expFamOptions.initParams) || !featureOptions.useLetterPairs)
+      throw new RuntimeException("warmStartIterations can only be used with initParams=ZERO and useLetterPairs");
+    Model model = Model.stdModel(dataset.getAlphabet());
+    List<Pair<Sequence,Sequence>> allPairs = new ArrayList<Pair<Sequence,Sequence>>();
+    for (Pair<GroupId,Map<SequenceId,Sequence>> group : dataset.groups())
+      for (Map<SequenceId,Sequence> pair : pairs(group.getRight()))
+      {
+        List<Sequence> sequences = new ArrayList<Sequence>(pair.values());
+        allPairs.add(Pair.of(
+            sequences.get(0).append(model.BOUNDARY_SYMBOL), 
+            sequences.get(1).append(model.BOUNDARY_SYMBOL)));
+      }
+    HomogenousHMM hmm = WarmStart.initialHMM(model);
+    List<BaumWelch.Iteration> iterations = BaumWelch.train(hmm, allPairs, 
+        warmStartOptions.warmStartIterations, warmStartOptions.warmStartPseudoCount, nThreads);
+    for (int iter = 0; iter < iterations.size(); iter++)
+    {
+      final BaumWelch.Iteration iteration = iterations.get(iter);
+      System.out.println("Baum-Welch iteration " + iter + ": log likelihood = " + iteration.logLikelihood
+          + (iteration.nSkipped > 0 ? " (" + iteration.nSkipped + " pair(s) with zero probability ignored)" : ""));
+    }
+    expFamOptions.internal = WarmStart.weights(model, hmm);
+    expFamOptions.initParams = ExponentialFamilyOptions.INTERNAL;
   }
   
   public static void main(String [] args)
@@ -0,0 +1,409 @@
+package muset.pef;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+import muset.Alphabet;
+import muset.Alphabet.Letter;
+import muset.MSAPoset;
+import muset.MSAPoset.Column;
+import muset.Sequence;
+import muset.SequenceId;
+import muset.pef.Aligner.SequenceDataset;
+import bayonet.regression.MaxentClassifier.MaxentOptions;
+import briefj.collections.Counter;
+import briefj.collections.UnorderedPair;
+import briefj.opt.Option;
+import briefj.run.Mains;
+
+import com.google.common.base.Splitter;
+
+
+
+/**
+ * Inference only: loads a model bundle once (see Aligner's saveModelBundle),
+ * then reads groups of sequences and writes their max recall alignments,
+ * until the end of the input.
+ *
+ * The input has the format of Aligner's csv files (group, taxon, space separated
+ * letters), one line per sequence; a group ends when the group name changes, at
+ * a blank line (so that an interactive client can get its alignment right away),
+ * or at the end of the input. The groups are aligned by a pool of workers and the
+ * alignments are written in the order of the input. At most queueCapacity groups
+ * per input are read but not yet written, so that a fast client blocks instead
+ * of filling the memory.
+ *
+ * In FASTA format, each alignment is preceded by a line "#group name" and followed
+ * by a blank line; a group that cannot be aligned (e.g. a letter not in the
+ * model's alphabet) gives a line "#error name: message" instead.
+ *
+ * In BINARY format (big endian, strings are an int length followed by UTF-8 bytes),
+ * each alignment is the group name, the number of sequences, then for each sequence
+ * its taxon, its length and the column of each of its letters; a group that cannot
+ * be aligned gives its name, -1 and the error message.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ */
+public class AlignmentServer implements Runnable
+{
+  @Option(required = true, gloss = "Path to the model bundle used to align (see Aligner's saveModelBundle).")
+  public File modelBundle;
+
+  @Option(gloss = "If positive, listen on this port of the loopback interface, each connection sending groups and receiving "
+      + "their alignments; otherwise read the groups from the standard input and write to the standard output.")
+  public int port = 0;
+
+  @Option(gloss = "Number of workers aligning groups (shared by all the connections).")
+  public int nThreads = 1;
+
+  @Option(gloss = "Maximum number of groups read but not written yet, per input (reading blocks when it is reached).")
+  public int queueCapacity = 64;
+
+  @Option(gloss = "Format of the alignments written, " + FASTA + " or " + BINARY)
+  public String format = FASTA;
+
+  @Option(gloss = "Store the cached parameters in single precision (halves the memory of the model).")
+  public boolean singlePrecision = false;
+
+  @Option(gloss = "Store only the cached parameters in the support of the base measure (see Aligner's sparseCachedParams).")
+  public boolean sparseCachedParams = false;
+
+  @Option(gloss = "With sparseCachedParams, number of pairs of taxa whose parameters are also kept unpacked.")
+  public int sliceCacheSize = 256;
+
+  public static final String FASTA = "FASTA";
+  public static final String BINARY = "BINARY";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  static final String WRITER_NAME = "alignment writer";
+
+  private ExponentialFamily model;
+  private Alphabet alphabet;
+  private ExecutorService workers;
+
+  @Override
+  public void run()
+  {
+    if (!format.equals(FASTA) && !format.equals(BINARY))
+      throw new RuntimeException("Unknown format: " + format);
+    if (nThreads < 1 || queueCapacity < 1)
+      throw new RuntimeException("nThreads and queueCapacity should be positive");
+    final long start = System.currentTimeMillis();
+    final CachedParams.Storage storage = new CachedParams.Storage(singlePrecision, sparseCachedParams, sliceCacheSize);
+    ModelBundle bundle = ModelBundle.read(modelBundle, storage);
+    ExponentialFamily loaded = bundle.createExpfam(new MaxentOptions<Object>(), new Counter<Object>());
+    loaded.setCachedParamsOptions(1, storage);
+    System.err.println("Loaded " + modelBundle + " in " + (System.currentTimeMillis() - start) + " ms");
+    start(loaded);
+    try
+    {
+      if (port > 0)
+        listen();
+      else
+        serve(System.in, new FileOutputStream(FileDescriptor.out)); // not System.out, which may be copied to a log
+    }
+    finally
+    {
+      stop();
+    }
+  }
+
+  /**
+   * Align with the given model, using a pool of nThreads workers (see stop()).
+   */
+  void start(ExponentialFamily model)
+  {
+    this.model = model;
+    this.alphabet = model.model.enc;
+    this.workers = Executors.newFixedThreadPool(nThreads);
+  }
+
+  void stop()
+  {
+    workers.shutdown();
+  }
+
+  private void listen()
+  {
+    ServerSocket server = null;
+    try
+    {
+      server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+      System.err.println("Listening on port " + port);
+      while (true)
+      {
+        final Socket socket = server.accept();
+        Thread connection = new Thread() {
+          @Override
+          public void run()
+          {
+            try
+            {
+              serve(socket.getInputStream(), socket.getOutputStream());
+            }
+            catch (Exception e) { System.err.println("Connection closed: " + e); }
+            finally
+            {
+              try { socket.close(); } catch (IOException e) {}
+            }
+          }
+        };
+        connection.setDaemon(true);
+        connection.start();
+      }
+    }
+    catch (IOException e) { throw new RuntimeException(e); }
+    finally
+    {
+      if (server != null)
+        try { server.close(); } catch (IOException e) {}
+    }
+  }
+
+  /**
+   * Align the groups read from in, writing the alignments to out in the same order;
+   * returns when in is exhausted and all its alignments are written.
+   */
+  void serve(InputStream in, OutputStream out)
+  {
+    final BlockingQueue<Future<byte []>> pending = new ArrayBlockingQueue<Future<byte []>>(queueCapacity);
+    final OutputStream bufferedOut = new BufferedOutputStream(out);
+    final AtomicReference<Throwable> writeError = new AtomicReference<Throwable>();
+    Thread writer = new Thread(WRITER_NAME) {
+      @Override
+      public void run()
+      {
+        // after an error, keep taking the alignments (without writing them) so that the reader never blocks
+        while (true)
+        {
+          try
+          {
+            final byte [] alignment = pending.take().get();
+            if (alignment == null)
+              break;
+            if (writeError.get() != null)
+              continue;
+            bufferedOut.write(alignment);
+            if (pending.isEmpty())
+              bufferedOut.flush();
+          }
+          catch (Throwable t)
+          {
+            writeError.compareAndSet(null, t);
+          }
+        }
+        try { bufferedOut.flush(); } 
+        catch (IOException e) { writeError.compareAndSet(null, e); }
+      }
+    };
+    writer.start();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF8));
+    boolean complete = false;
+    try
+    {
+      String groupName = null;
+      List<List<String>> group = new ArrayList<List<String>>();
+      String line;
+      while ((line = reader.readLine()) != null && writeError.get() == null)
+      {
+        if (line.trim().isEmpty())
+        {
+          submit(pending, groupName, group);
+          groupName = null;
+          group = new ArrayList<List<String>>();
+          continue;
+        }
+        List<String> fields = SequenceDataset.splitCSVLine(line);
+        final String name = fields.get(0);
+        if (groupName != null && !groupName.equals(name))
+        {
+          submit(pending, groupName, group);
+          group = new ArrayList<List<String>>();
+        }
+        groupName = name;
+        group.add(fields);
+      }
+      submit(pending, groupName, group);
+      complete = true;
+    }
+    catch (IOException e) { throw new RuntimeException(e); }
+    catch (InterruptedException e) { throw new RuntimeException(e); }
+    finally
+    {
+      // also if reading failed (e.g. the connection was reset), so that neither the writer nor the workers are left behind
+      if (!complete)
+        for (Future<byte []> alignment : pending)
+          alignment.cancel(true);
+      end(pending, writer);
+    }
+    if (writeError.get() != null)
+      throw new RuntimeException(writeError.get());
+  }
+
+  // queue the end marker, then wait for the writer to finish, without being interrupted
+  private static void end(BlockingQueue<Future<byte []>> pending, Thread writer)
+  {
+    FutureTask<byte []> end = new FutureTask<byte []>(new Callable<byte []>() {
+      @Override
+      public byte [] call() { return null; }
+    });
+    end.run();
+    boolean interrupted = false;
+    while (true)
+      try
+      {
+        pending.put(end);
+        break;
+      }
+      catch (InterruptedException e) { interrupted = true; }
+    while (writer.isAlive())
+      try { writer.join(); }
+      catch (InterruptedException e) { interrupted = true; }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+  }
+
+  private void submit(BlockingQueue<Future<byte []>> pending, final String groupName, final List<List<String>> lines)
+      throws InterruptedException
+  {
+    if (groupName == null)
+      return;
+    pending.put(workers.submit(new Callable<byte []>() {
+      @Override
+      public byte [] call() throws IOException
+      {
+        MSAPoset alignment;
+        try
+        {
+          alignment = model.maxRecallAlignFromAllPairs(parseGroup(lines));
+        }
+        catch (RuntimeException e)
+        {
+          return error(groupName, errorMessage(e));
+        }
+        return format.equals(FASTA) ? toFASTA(groupName, alignment) : toBinary(groupName, alignment);
+      }
+    }));
+  }
+
+  private Map<SequenceId,Sequence> parseGroup(List<List<String>> lines)
+  {
+    Map<SequenceId,Sequence> result = new LinkedHashMap<SequenceId,Sequence>();
+    for (List<String> line : lines)
+    {
+      if (line.size() != 3)
+        throw new RuntimeException("There should be 3 fields: the group, the taxon, and the string (space separated letters)");
+      List<Letter> seqList = new ArrayList<Letter>();
+      for (String letterStr : Splitter.onPattern("\\s+").omitEmptyStrings().split(line.get(2)))
+      {
+        if (!alphabet.containsLetter(letterStr) || letterStr.equals(model.model.BOUNDARY_SYMBOL.toString()))
+          throw new RuntimeException("Letter not in the alphabet of the model: " + letterStr);
+        seqList.add(alphabet.getExistingLetter(letterStr));
+      }
+      final SequenceId taxon = new SequenceId(line.get(1));
+      if (result.put(taxon, new Sequence(alphabet, seqList)) != null)
+        throw new RuntimeException("Duplicate taxon: " + taxon);
+    }
+    if (model.featureExtractor.options.addPairSpecific)
+      for (SequenceId first : result.keySet())
+        for (SequenceId second : result.keySet())
+          if (!first.equals(second) && !model.featureExtractor.sequenceIdPairsIndex.containsObject(UnorderedPair.of(first, second)))
+            throw new RuntimeException("Pair of taxa not seen in training: " + first + ", " + second);
+    return result;
+  }
+
+  private byte [] toFASTA(String groupName, MSAPoset alignment)
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(bytes, UTF8));
+    out.println("#group " + groupName);
+    alignment.toFASTA(out);
+    out.println();
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private byte [] toBinary(String groupName, MSAPoset alignment) throws IOException
+  {
+    final Map<SequenceId,Sequence> sequences = alignment.sequences();
+    Map<SequenceId,int []> columns = new LinkedHashMap<SequenceId,int []>();
+    for (SequenceId taxon : sequences.keySet())
+      columns.put(taxon, new int[sequences.get(taxon).length()]);
+    final List<Column> linearized = alignment.linearizedColumns();
+    for (int c = 0; c < linearized.size(); c++)
+      for (Map.Entry<SequenceId,Integer> point : linearized.get(c).getPoints().entrySet())
+        columns.get(point.getKey())[point.getValue()] = c;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    ModelBundle.writeString(out, groupName);
+    out.writeInt(columns.size());
+    for (SequenceId taxon : columns.keySet())
+    {
+      ModelBundle.writeString(out, taxon.toString());
+      out.writeInt(columns.get(taxon).length);
+      for (int column : columns.get(taxon))
+        out.writeInt(column);
+    }
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * The message of e on a single line (a FASTA error record ends at the end of its line),
+   * or its class when it has no message.
+   */
+  static String errorMessage(Throwable e)
+  {
+    final String message = e.getMessage() == null ? e.getClass().getName() : e.getMessage();
+    return message.replaceAll("[\\r\\n]+", " ");
+  }
+
+  private byte [] error(String groupName, String message) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    if (format.equals(FASTA))
+      bytes.write(("#error " + groupName + ": " + message + "\n").getBytes(UTF8));
+    else
+    {
+      DataOutputStream out = new DataOutputStream(bytes);
+      ModelBundle.writeString(out, groupName);
+      out.writeInt(-1);
+      ModelBundle.writeString(out, message);
+      out.close();
+    }
+    return bytes.toByteArray();
+  }
+
+  public static void main(String [] args)
+  {
+    Mains.instrumentedRun(args, new AlignmentServer());
+  }
+}
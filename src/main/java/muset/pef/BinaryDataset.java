@@ -0,0 +1,248 @@
+package muset.pef;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import muset.Alphabet;
+import muset.Alphabet.Letter;
+import muset.Sequence;
+import muset.SequenceId;
+import muset.pef.Aligner.GroupId;
+import briefj.Indexer;
+
+
+
+/**
+ * A dataset pre-encoded in a binary file, read through a memory map: the
+ * letters of all the sequences are stored as ints (indices in the alphabet)
+ * in one contiguous region, so that reading a group involves no parsing and
+ * no creation of Letter objects (the sequences are backed by the letter indices,
+ * which the models use directly, see Sequence.fromIds() and Model.charIds()).
+ *
+ * Binary format (big endian, strings are an int length followed by UTF-8 bytes):
+ * magic number, version, letters in index order, taxa names, then for each group
+ * its name, its number of sequences and the taxon index and length of each,
+ * followed by the total number of letters (long) and the letter indices, in
+ * group and sequence order.
+ *
+ * Created from a csv dataset with DatasetConverter.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ */
+public final class BinaryDataset
+{
+  private static final int MAGIC = 0x4d534453; // "MSDS"
+  private static final int VERSION = 1;
+
+  public final Alphabet alphabet;
+  private final SequenceId [] taxa;
+  private final String [] groupNames;
+  private final int [][] taxonIds;   // group -> sequence -> taxon
+  private final int [][] lengths;    // group -> sequence -> number of letters
+  private final long [] groupStarts; // group -> index of its first letter
+  private final IntBuffer letters;
+
+  private BinaryDataset(Alphabet alphabet, SequenceId [] taxa, String [] groupNames, int [][] taxonIds,
+      int [][] lengths, IntBuffer letters)
+  {
+    this.alphabet = alphabet;
+    this.taxa = taxa;
+    this.groupNames = groupNames;
+    this.taxonIds = taxonIds;
+    this.lengths = lengths;
+    this.letters = letters;
+    this.groupStarts = new long[groupNames.length];
+    long start = 0;
+    for (int g = 0; g < groupNames.length; g++)
+    {
+      groupStarts[g] = start;
+      for (int length : lengths[g])
+        start += length;
+    }
+    if (start != letters.capacity())
+      throw new RuntimeException("Inconsistent number of letters in binary dataset");
+  }
+
+  public int nGroups() { return groupNames.length; }
+  public String groupName(int group) { return groupNames[group]; }
+  public int nSequences(int group) { return taxonIds[group].length; }
+  public SequenceId taxon(int group, int sequence) { return taxa[taxonIds[group][sequence]]; }
+
+  /**
+   * @return The indices in the alphabet of the letters of a sequence
+   */
+  public int [] letterIds(int group, int sequence)
+  {
+    long start = groupStarts[group];
+    for (int s = 0; s < sequence; s++)
+      start += lengths[group][s];
+    int [] result = new int[lengths[group][sequence]];
+    IntBuffer view = letters.duplicate(); // the position of the shared buffer is not touched, for concurrent readers
+    view.position((int) start);
+    view.get(result);
+    return result;
+  }
+
+  /**
+   * The sequences of a group, in the order of the file.
+   */
+  public Map<SequenceId,Sequence> group(int group)
+  {
+    Map<SequenceId,Sequence> result = new LinkedHashMap<SequenceId,Sequence>();
+    for (int s = 0; s < nSequences(group); s++)
+    {
+      result.put(taxon(group, s), Sequence.fromIds(alphabet, letterIds(group, s)));
+    }
+    return result;
+  }
+
+  /**
+   * @return If the file starts with the magic number of this format
+   */
+  public static boolean isBinaryDataset(File file)
+  {
+    if (file.length() < 4)
+      return false;
+    DataInputStream in = null;
+    try
+    {
+      in = new DataInputStream(new FileInputStream(file));
+      return in.readInt() == MAGIC;
+    }
+    catch (IOException e) { throw new RuntimeException(e); }
+    finally
+    {
+      if (in != null)
+        try { in.close(); } catch (IOException e) {}
+    }
+  }
+
+  public static BinaryDataset read(File file)
+  {
+    RandomAccessFile raf = null;
+    try
+    {
+      raf = new RandomAccessFile(file, "r");
+      final FileChannel channel = raf.getChannel();
+      MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(raf.length(), Integer.MAX_VALUE));
+      if (header.getInt() != MAGIC)
+        throw new RuntimeException("Not a binary dataset: " + file);
+      final int version = header.getInt();
+      if (version != VERSION)
+        throw new RuntimeException("Unsupported binary dataset version " + version + " in " + file);
+      Alphabet alphabet = new Alphabet();
+      final int nLetters = header.getInt();
+      for (int i = 0; i < nLetters; i++)
+        alphabet.getLetter(ModelBundle.readString(header));
+      SequenceId [] taxa = new SequenceId[header.getInt()];
+      for (int i = 0; i < taxa.length; i++)
+        taxa[i] = new SequenceId(ModelBundle.readString(header));
+      final int nGroups = header.getInt();
+      String [] groupNames = new String[nGroups];
+      int [][] taxonIds = new int[nGroups][], lengths = new int[nGroups][];
+      for (int g = 0; g < nGroups; g++)
+      {
+        groupNames[g] = ModelBundle.readString(header);
+        final int nSequences = header.getInt();
+        taxonIds[g] = new int[nSequences];
+        lengths[g] = new int[nSequences];
+        for (int s = 0; s < nSequences; s++)
+        {
+          taxonIds[g][s] = header.getInt();
+          lengths[g][s] = header.getInt();
+        }
+      }
+      final long nTotal = header.getLong();
+      if (nTotal * 4 > Integer.MAX_VALUE)
+        throw new RuntimeException("Binary datasets are limited to " + (Integer.MAX_VALUE / 4) + " letters: " + file);
+      MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, header.position(), nTotal * 4);
+      return new BinaryDataset(alphabet, taxa, groupNames, taxonIds, lengths, region.asIntBuffer());
+    }
+    catch (IOException e) { throw new RuntimeException(e); }
+    finally
+    {
+      if (raf != null)
+        try { raf.close(); } catch (IOException e) {}
+    }
+  }
+
+  /**
+   * @param groups Iterated twice: once for the dictionaries and the lengths, then for the letters
+   */
+  public static void write(Alphabet alphabet, Iterable<Pair<GroupId,Map<SequenceId,Sequence>>> groups, File file)
+  {
+    Indexer<SequenceId> taxa = new Indexer<SequenceId>();
+    List<String> groupNames = new ArrayList<String>();
+    List<int []> taxonIds = new ArrayList<int []>(), lengths = new ArrayList<int []>();
+    long nTotal = 0;
+    for (Pair<GroupId,Map<SequenceId,Sequence>> group : groups)
+    {
+      groupNames.add(group.getLeft().toString());
+      final int nSequences = group.getRight().size();
+      int [] currentTaxa = new int[nSequences], currentLengths = new int[nSequences];
+      int s = 0;
+      for (SequenceId taxon : group.getRight().keySet())
+      {
+        currentTaxa[s] = taxa.addToIndex(taxon);
+        currentLengths[s] = group.getRight().get(taxon).length();
+        nTotal += currentLengths[s];
+        s++;
+      }
+      taxonIds.add(currentTaxa);
+      lengths.add(currentLengths);
+    }
+    DataOutputStream out = null;
+    try
+    {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(alphabet.indexer.size());
+      for (Letter letter : alphabet.indexer.objectsList())
+        ModelBundle.writeString(out, letter.toString());
+      out.writeInt(taxa.size());
+      for (SequenceId taxon : taxa.objectsList())
+        ModelBundle.writeString(out, taxon.toString());
+      out.writeInt(groupNames.size());
+      for (int g = 0; g < groupNames.size(); g++)
+      {
+        ModelBundle.writeString(out, groupNames.get(g));
+        out.writeInt(taxonIds.get(g).length);
+        for (int s = 0; s < taxonIds.get(g).length; s++)
+        {
+          out.writeInt(taxonIds.get(g)[s]);
+          out.writeInt(lengths.get(g)[s]);
+        }
+      }
+      out.writeLong(nTotal);
+      for (Pair<GroupId,Map<SequenceId,Sequence>> group : groups)
+        for (Sequence sequence : group.getRight().values())
+          for (int i = 0; i < sequence.length(); i++)
+            out.writeInt(alphabet.indexer.o2i(sequence.letterAt(i)));
+      out.close();
+      out = null;
+    }
+    catch (IOException e) { throw new RuntimeException(e); }
+    finally
+    {
+      if (out != null)
+        try { out.close(); } catch (IOException e) {}
+    }
+  }
+}
@@ -1,20 +1,104 @@
 package muset.pef;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
 
 import bayonet.regression.MaxentClassifier;
 import muset.Sequence;
 import muset.SequenceId;
 import muset.hmm.HetPairHMMSpecification;
+import muset.pef.Model.ThreeStatesBaseMeasure;
+import muset.util.Parallel;
 
 
 
+/**
+ * The log probabilities of all the transitions, indexed by
+ * state 1 -> state 2 -> f-suff-stat -> (symbol1 U EPSILON) -> (symbol2 U EPSILON).
+ * 
+ * In the default (dense) storage, they are stored in one row major array (of doubles, 
+ * or of floats to halve the memory); the (symbol1, symbol2) block of a fixed 
+ * (state 1, state 2, f-suff-stat) is contiguous, see sliceOffset().
+ * 
+ * In the sparse storage, only the entries in the support of the base measure 
+ * (see ThreeStatesBaseMeasure) are stored, packed in one array per (state 1, f-suff-stat). 
+ * Since the HMMs need fast random access, the pair HMMs created by this object read from 
+ * dense slices (all the entries of one f-suff-stat), rebuilt on demand and kept in a 
+ * cache of the most recently used ones (i.e. for the pairs of taxa being aligned).
+ */
 public final class CachedParams
 {
-  private final double [][][][][] cachedLogPrs; // state 1 -> state 2 -> f-suff-stat -> (symbol1 U EPSILON) -> (symbol2 U EPSILON)
+  private final Storage storage;
+  private final int nStss, nSymbols;
   private final Model model;
   
+  // dense storage
+  private final double [] logPrs;      // null in single precision
+  private final float [] floatLogPrs;  // null in double precision
+  
+  // sparse storage
+  private final double [][] packed;          // (state 1, f-suff-stat) -> entries in the support, null in single precision
+  private final float [][] floatPacked;      // same, null in double precision
+  private final int [][] packedIndices;       // state 1 -> (state 2, symbol1, symbol2) -> position in the packed block, or -1
+  private final Map<Integer,double []> denseSlices; // f-suff-stat -> (state 1, state 2, symbol1, symbol2), access ordered
+  
+  /**
+   * How the log probabilities are stored.
+   */
+  public static final class Storage
+  {
+    public final boolean singlePrecision, sparse;
+    public final int sliceCacheSize; // number of dense slices kept in sparse storage
+    
+    public static final Storage DEFAULT = new Storage(false, false, 0);
+    
+    public Storage(boolean singlePrecision, boolean sparse, int sliceCacheSize)
+    {
+      if (sparse && sliceCacheSize < 1)
+        throw new RuntimeException("The sparse storage needs a positive slice cache size");
+      this.singlePrecision = singlePrecision;
+      this.sparse = sparse;
+      this.sliceCacheSize = sparse ? sliceCacheSize : 0;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      final int prime = 31;
+      int result = 1;
+      result = prime * result + (singlePrecision ? 1231 : 1237);
+      result = prime * result + (sparse ? 1231 : 1237);
+      result = prime * result + sliceCacheSize;
+      return result;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (this == obj)
+        return true;
+      if (obj == null)
+        return false;
+      if (getClass() != obj.getClass())
+        return false;
+      Storage other = (Storage) obj;
+      return singlePrecision == other.singlePrecision && sparse == other.sparse && sliceCacheSize == other.sliceCacheSize;
+    }
+
+    @Override
+    public String toString()
+    {
+      return (sparse ? "sparse" : "dense") + ", " + (singlePrecision ? "single" : "double") + " precision";
+    }
+  }
+  
   /**
    * Weights coming for example from a message passing algorithm (see MessageComputations for weights[][][] semantics---called r messages there)
    */
@@ -22,6 +106,10 @@ public final class CachedParams
   {
     final StrTaxonSuffStat.StrTaxonSuffStatExtractor extractor = 
       model.stSuffStat.getExtractor(top, bot,topTaxon, botTaxon);
+    final int [] 
+      topIds = model.charIds(top),
+      botIds = model.charIds(bot);
+    final PairSlice slice = new PairSlice(extractor.extract(0, 0));
     return new HetPairHMMSpecification() {
       @Override public final int startState() { return model.startState; }
       @Override public final int endState() { return model.endState; }
@@ -30,14 +118,14 @@ public final class CachedParams
           int deltaX, int deltaY)
       {
         final int 
-          xid = model.charIdAt(top, xpos, deltaX),
-          yid = model.charIdAt(bot, ypos, deltaY);
+          xid = deltaX == 1 ? topIds[xpos] : model.epsilon,
+          yid = deltaY == 1 ? botIds[ypos] : model.epsilon;
         
         final int stss = extractor.extract(xpos, ypos);
         // reweight:
         final boolean isAligned = deltaX == 1 && deltaY == 1;
         final double logWeight = (isAligned ? logWeights[xpos][ypos][1] - logWeights[xpos][ypos][0] : 0.0);
-        return logWeight + getLogPr(prevState, currentState, stss, xid, yid);
+        return logWeight + slice.getLogPr(prevState, currentState, stss, xid, yid);
       }
     };
   }
@@ -47,6 +135,10 @@ public final class CachedParams
     final StrTaxonSuffStat.StrTaxonSuffStatExtractor extractor = 
       model.stSuffStat.getExtractor(top, bot,topTaxon, botTaxon);
     
+    final int [] 
+      topIds = model.charIds(top),
+      botIds = model.charIds(bot);
+    final PairSlice slice = new PairSlice(extractor.extract(0, 0));
     return new HetPairHMMSpecification() {
       @Override public final int startState() { return model.startState; }
       @Override public final int endState() { return model.endState; }
@@ -55,68 +147,400 @@ public final class CachedParams
           int deltaX, int deltaY)
       {
         final int 
-          xid = model.charIdAt(top, xpos, deltaX),
-          yid = model.charIdAt(bot, ypos, deltaY);
+          xid = deltaX == 1 ? topIds[xpos] : model.epsilon,
+          yid = deltaY == 1 ? botIds[ypos] : model.epsilon;
         final int stss = extractor.extract(xpos, ypos);
-        return getLogPr(prevState, currentState, stss, xid, yid);
+        return slice.getLogPr(prevState, currentState, stss, xid, yid);
       }
     };
   }
   
-  public CachedParams(Model model)
+  /**
+   * All the entries are initialized to -infinity.
+   */
+  public CachedParams(Model model, Storage storage)
   {
     this.model = model;
-    cachedLogPrs = new double[model.nStates][model.nStates][model.stSuffStat.valuesIndexer.size()][model.enc.indexer.size()+1][model.enc.indexer.size()+1];
-    deepFill(cachedLogPrs, Double.NEGATIVE_INFINITY);
-  }
-  
-  private static void deepFill(Object o, double v)
-  {
-    if (o instanceof double[])
+    this.storage = storage;
+    this.nStss = model.stSuffStat.valuesIndexer.size();
+    this.nSymbols = model.epsilon() + 1;
+    if (storage.sparse)
     {
-      double [] a = (double []) o;
-      Arrays.fill(a, v);
+      logPrs = null;
+      floatLogPrs = null;
+      packedIndices = supportIndices(model, nSymbols);
+      packed = storage.singlePrecision ? null : new double[model.nStates * nStss][];
+      floatPacked = storage.singlePrecision ? new float[model.nStates * nStss][] : null;
+      for (int s1 = 0; s1 < model.nStates; s1++)
+      {
+        int supportSize = 0;
+        for (int position : packedIndices[s1])
+          if (position >= 0)
+            supportSize++;
+        for (int stss = 0; stss < nStss; stss++)
+          if (storage.singlePrecision)
+          {
+            floatPacked[blockIndex(s1, stss)] = new float[supportSize];
+            Arrays.fill(floatPacked[blockIndex(s1, stss)], Float.NEGATIVE_INFINITY);
+          }
+          else
+          {
+            packed[blockIndex(s1, stss)] = new double[supportSize];
+            Arrays.fill(packed[blockIndex(s1, stss)], Double.NEGATIVE_INFINITY);
+          }
+      }
+      final int cacheSize = storage.sliceCacheSize;
+      denseSlices = new LinkedHashMap<Integer,double []>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer,double []> eldest)
+        {
+          return size() > cacheSize;
+        }
+      };
+      return;
+    }
+    packed = null;
+    floatPacked = null;
+    packedIndices = null;
+    denseSlices = null;
+    final long size = 1L * model.nStates * model.nStates * nStss * nSymbols * nSymbols;
+    if (size > Integer.MAX_VALUE - 8)
+      throw new RuntimeException("Too many transitions to cache: " + size + " (see the sparse storage)");
+    if (storage.singlePrecision)
+    {
+      logPrs = null;
+      floatLogPrs = new float[(int) size];
+      Arrays.fill(floatLogPrs, Float.NEGATIVE_INFINITY);
     }
-    else if (o instanceof Object[])
+    else
     {
-      Object [] a = (Object []) o;
-      for (Object cur : a)
-        deepFill(cur, v);
+      logPrs = new double[(int) size];
+      floatLogPrs = null;
+      Arrays.fill(logPrs, Double.NEGATIVE_INFINITY);
     }
-    else throw new RuntimeException();
+  }
+  
+  public CachedParams(Model model)
+  {
+    this(model, Storage.DEFAULT);
+  }
+  
+  /**
+   * A copy of other, in the given storage.
+   */
+  public CachedParams(CachedParams other, Storage storage)
+  {
+    this(other.model, storage);
+    for (int s1 = 0; s1 < model.nStates; s1++)
+      for (int s2 = 0; s2 < model.nStates; s2++)
+        for (int stss = 0; stss < nStss; stss++)
+        {
+          final int slice = other.sliceOffset(s1, s2, stss);
+          for (int top = 0; top < nSymbols; top++)
+            for (int bot = 0; bot < nSymbols; bot++)
+              set(s1, s2, stss, top, bot, other.getLogPr(slice, top, bot));
+        }
   }
   
   private void set(Input in, Output out, double logpr)
   {
     if (logpr > 0.0001) throw new RuntimeException("Invalid log pr:" + logpr);
-    cachedLogPrs[in.state1][out.state2][in.strTaxSuffStat][out.topSymbol][out.botSymbol] = logpr;
+    set(in.state1, out.state2, in.strTaxSuffStat, out.topSymbol, out.botSymbol, logpr);
   }
   public double getLogPr(Input in, Output out)
   {
-    return cachedLogPrs[in.state1][out.state2][in.strTaxSuffStat][out.topSymbol][out.botSymbol];
+    return getLogPr(in.state1, out.state2, in.strTaxSuffStat, out.topSymbol, out.botSymbol);
   }
   public final double getLogPr(int state1, int state2, int strTaxSuffStat, int topSymbol, int botSymbol)
   {
-    return cachedLogPrs[state1][state2][strTaxSuffStat][topSymbol][botSymbol];
+    if (packedIndices != null)
+      return getPacked(state1, state2, strTaxSuffStat, topSymbol, botSymbol);
+    return get(index(state1, state2, strTaxSuffStat, topSymbol, botSymbol));
+  }
+  
+  /**
+   * @return The position of the (symbol1, symbol2) block of the given states and f-suff-stat
+   *   (in sparse storage, an identifier of the block), to be used with getLogPr(int, int, int), 
+   *   so that dynamic programs can compute it once outside of their loops over the symbols
+   */
+  public final int sliceOffset(int state1, int state2, int strTaxSuffStat)
+  {
+    if (packedIndices != null)
+      return (state1 * model.nStates + state2) * nStss + strTaxSuffStat;
+    return ((state1 * model.nStates + state2) * nStss + strTaxSuffStat) * nSymbols * nSymbols;
+  }
+  
+  public final double getLogPr(int sliceOffset, int topSymbol, int botSymbol)
+  {
+    if (packedIndices != null)
+    {
+      final int states = sliceOffset / nStss;
+      return getPacked(states / model.nStates, states % model.nStates, sliceOffset % nStss, topSymbol, botSymbol);
+    }
+    return get(sliceOffset + topSymbol * nSymbols + botSymbol);
+  }
+  
+  public Storage storage()
+  {
+    return storage;
   }
 
   // this assumes we are working in prs, not logprs, because leaves untouched (to zero) entries not in support
   public CachedParams(Model model,
       MaxentClassifier<Input, Output, Object> maxentClassifier)
   {
-    this(model); // this initializes all entries to -infinity
+    this(model, maxentClassifier, Storage.DEFAULT, 1);
+  }
+  
+  /**
+   * @param nThreads Number of threads across which the inputs are split (the result does not depend on it)
+   */
+  public CachedParams(Model model,
+      final MaxentClassifier<Input, Output, Object> maxentClassifier, Storage storage, int nThreads)
+  {
+    this(model, storage); // this initializes all entries to -infinity
     // for each input, populate outputs
-    for (Input in : model.allInputs())
+    Parallel.forEach(nThreads, model.allInputs(), new Parallel.Worker<Input>() {
+      @Override
+      public void process(int index, Input in)
+      {
+        SortedSet<Output> outs = maxentClassifier.getLabels(in); 
+        double [] logprs = maxentClassifier.logProb(in);
+        int i = 0;
+        for (Output out : outs)
+        {
+          set(in, out, logprs[i]);
+          i++;
+        }
+      }
+    });
+  }
+  
+  public CachedParams(Model model, CompiledFeatures features, double [] weights)
+  {
+    this(model, features, weights, Storage.DEFAULT, 1);
+  }
+  
+  /**
+   * @param nThreads Number of threads across which the inputs are split (the result does not depend on it)
+   */
+  public CachedParams(Model model, final CompiledFeatures features, final double [] weights, Storage storage, int nThreads)
+  {
+    this(model, storage); // this initializes all entries to -infinity
+    List<Integer> inputs = new ArrayList<Integer>();
+    for (int i = 0; i < features.nInputs(); i++)
+      inputs.add(i);
+    Parallel.forEach(nThreads, inputs, new Parallel.Worker<Integer>() {
+      @Override
+      public void process(int index, Integer i)
+      {
+        final Input in = features.input(i);
+        final Output [] outs = features.support(i);
+        double [] logprs = new double[outs.length];
+        features.logProbs(weights, i, logprs);
+        for (int o = 0; o < outs.length; o++)
+          set(in, outs[o], logprs[o]);
+      }
+    });
+  }
+  
+  /**
+   * Read the log probabilities written by write(), from consecutive buffers (e.g. the chunks 
+   * of a memory mapped file, each mapping being limited to 2GB).
+   */
+  public CachedParams(Model model, List<DoubleBuffer> logPrs, Storage storage)
+  {
+    this(model, storage);
+    final List<SortedSet<Output>> supports = supports(model);
+    long expected = 0, available = 0;
+    for (SortedSet<Output> support : supports)
+      expected += 1L * nStss * support.size();
+    for (DoubleBuffer chunk : logPrs)
+      available += chunk.remaining();
+    if (available != expected)
+      throw new RuntimeException("Expected " + expected + " log probabilities, found " + available);
+    final Iterator<DoubleBuffer> chunks = logPrs.iterator();
+    DoubleBuffer chunk = null;
+    for (int s1 = 0; s1 < model.nStates; s1++)
+      for (int stss = 0; stss < nStss; stss++)
+        for (Output out : supports.get(s1))
+        {
+          while (chunk == null || !chunk.hasRemaining())
+            chunk = chunks.next();
+          set(s1, out.state2, stss, out.topSymbol, out.botSymbol, chunk.get());
+        }
+  }
+  
+  /**
+   * Write the log probabilities in the support of the base measure (as doubles, whatever the 
+   * storage; the other ones are -infinity): for each state 1, then each f-suff-stat, the entries
+   * in the order of ThreeStatesBaseMeasure.support(), i.e. the packed blocks of the sparse storage.
+   */
+  public void write(DataOutputStream out) throws IOException
+  {
+    final List<SortedSet<Output>> supports = supports(model);
+    for (int s1 = 0; s1 < model.nStates; s1++)
+      for (int stss = 0; stss < nStss; stss++)
+        for (Output o : supports.get(s1))
+          out.writeDouble(getLogPr(s1, o.state2, stss, o.topSymbol, o.botSymbol));
+  }
+  
+  // state 1 -> outputs in the support of the base measure (which does not depend on the f-suff-stat)
+  private static List<SortedSet<Output>> supports(Model model)
+  {
+    ThreeStatesBaseMeasure bm = new ThreeStatesBaseMeasure(model);
+    List<SortedSet<Output>> result = new ArrayList<SortedSet<Output>>();
+    for (int s1 = 0; s1 < model.nStates; s1++)
+      result.add(bm.support(new Input(s1, 0, model)));
+    return result;
+  }
+  
+  /**
+   * @return The number of log probabilities stored (i.e. in sparse storage, the entries in the support)
+   */
+  public long size()
+  {
+    if (packedIndices == null)
+      return logPrs == null ? floatLogPrs.length : logPrs.length;
+    long result = 0;
+    for (int b = 0; b < model.nStates * nStss; b++)
+      result += packed == null ? floatPacked[b].length : packed[b].length;
+    return result;
+  }
+  
+  private int index(int state1, int state2, int strTaxSuffStat, int topSymbol, int botSymbol)
+  {
+    return sliceOffset(state1, state2, strTaxSuffStat) + topSymbol * nSymbols + botSymbol;
+  }
+  
+  private double get(int index)
+  {
+    return logPrs == null ? floatLogPrs[index] : logPrs[index];
+  }
+  
+  private void set(int state1, int state2, int strTaxSuffStat, int topSymbol, int botSymbol, double logPr)
+  {
+    if (packedIndices == null)
+    {
+      final int index = index(state1, state2, strTaxSuffStat, topSymbol, botSymbol);
+      if (logPrs == null)
+        floatLogPrs[index] = (float) logPr;
+      else
+        logPrs[index] = logPr;
+      return;
+    }
+    final int position = packedIndices[state1][(state2 * nSymbols + topSymbol) * nSymbols + botSymbol];
+    if (position < 0)
     {
-      SortedSet<Output> outs = maxentClassifier.getLabels(in); 
-      double [] logprs = maxentClassifier.logProb(in);
-      int i = 0;
-      for (Output out : outs)
+      if (logPr != Double.NEGATIVE_INFINITY)
+        throw new RuntimeException("Transition outside of the support of the base measure");
+      return;
+    }
+    if (packed == null)
+      floatPacked[blockIndex(state1, strTaxSuffStat)][position] = (float) logPr;
+    else
+      packed[blockIndex(state1, strTaxSuffStat)][position] = logPr;
+  }
+  
+  private double getPacked(int state1, int state2, int strTaxSuffStat, int topSymbol, int botSymbol)
+  {
+    final int position = packedIndices[state1][(state2 * nSymbols + topSymbol) * nSymbols + botSymbol];
+    if (position < 0)
+      return Double.NEGATIVE_INFINITY;
+    final int block = blockIndex(state1, strTaxSuffStat);
+    return packed == null ? floatPacked[block][position] : packed[block][position];
+  }
+  
+  private int blockIndex(int state1, int strTaxSuffStat)
+  {
+    return state1 * nStss + strTaxSuffStat;
+  }
+  
+  /*
+   * Lookup for the HMM specifications: the (symbol1, symbol2) block of each pair of states is located 
+   * once for the f-suff-stat of the pair, in the dense array (or, in sparse storage, in its dense slice), 
+   * so that a lookup for that f-suff-stat is a single array access
+   */
+  private final class PairSlice
+  {
+    private final int strTaxSuffStat;
+    private final double [] slice; // null in dense storage
+    private final int [] offsets; // state1 * nStates + state2 -> offset of the block; null for an unknown f-suff-stat
+    
+    private PairSlice(int strTaxSuffStat)
+    {
+      this.strTaxSuffStat = strTaxSuffStat;
+      this.slice = denseSlice(strTaxSuffStat);
+      if (strTaxSuffStat < 0 || strTaxSuffStat >= nStss)
       {
-        set(in, out, logprs[i]);
-        i++;
+        offsets = null;
+        return;
       }
+      offsets = new int[model.nStates * model.nStates];
+      for (int s1 = 0; s1 < model.nStates; s1++)
+        for (int s2 = 0; s2 < model.nStates; s2++)
+          offsets[s1 * model.nStates + s2] = slice != null ? 
+              (s1 * model.nStates + s2) * nSymbols * nSymbols : 
+              sliceOffset(s1, s2, strTaxSuffStat);
+    }
+    
+    private double getLogPr(int state1, int state2, int strTaxSuffStat, int topSymbol, int botSymbol)
+    {
+      if (offsets == null || strTaxSuffStat != this.strTaxSuffStat)
+        return CachedParams.this.getLogPr(state1, state2, strTaxSuffStat, topSymbol, botSymbol);
+      final int position = offsets[state1 * model.nStates + state2] + topSymbol * nSymbols + botSymbol;
+      return slice != null ? slice[position] : get(position);
+    }
+  }
+  
+  /**
+   * @return In sparse storage, all the entries of the given f-suff-stat, indexed by 
+   *   state 1 -> state 2 -> symbol1 -> symbol2 (null in dense storage, or for an unknown f-suff-stat)
+   */
+  private double [] denseSlice(int strTaxSuffStat)
+  {
+    if (packedIndices == null || strTaxSuffStat < 0 || strTaxSuffStat >= nStss)
+      return null;
+    synchronized (denseSlices)
+    {
+      final double [] cached = denseSlices.get(strTaxSuffStat);
+      if (cached != null)
+        return cached;
+    }
+    final int nSquared = nSymbols * nSymbols;
+    double [] result = new double[model.nStates * model.nStates * nSquared];
+    for (int s1 = 0; s1 < model.nStates; s1++)
+      for (int rest = 0; rest < model.nStates * nSquared; rest++)
+      {
+        final int position = packedIndices[s1][rest];
+        final int block = blockIndex(s1, strTaxSuffStat);
+        result[s1 * model.nStates * nSquared + rest] = position < 0 ? Double.NEGATIVE_INFINITY : 
+          (packed == null ? floatPacked[block][position] : packed[block][position]);
+      }
+    synchronized (denseSlices)
+    {
+      denseSlices.put(strTaxSuffStat, result);
+    }
+    return result;
+  }
+  
+  /*
+   * state 1 -> (state 2, symbol1, symbol2) -> position among the entries of the support 
+   * (which does not depend on the f-suff-stat), or -1
+   */
+  private static int [][] supportIndices(Model model, int nSymbols)
+  {
+    final List<SortedSet<Output>> supports = supports(model);
+    int [][] result = new int[model.nStates][model.nStates * nSymbols * nSymbols];
+    for (int s1 = 0; s1 < model.nStates; s1++)
+    {
+      Arrays.fill(result[s1], -1);
+      int position = 0;
+      for (Output out : supports.get(s1))
+        result[s1][(out.state2 * nSymbols + out.topSymbol) * nSymbols + out.botSymbol] = position++;
     }
+    return result;
   }
   
   @Override
@@ -0,0 +1,146 @@
+package muset.pef;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import briefj.collections.Counter;
+
+
+
+/**
+ * The state of an EM run, written periodically by Aligner so that a killed
+ * run can be resumed without redoing the groups already aligned.
+ *
+ * Binary format (DataOutputStream): magic number, version, iteration, number of
+ * online updates, natural parameters (count, then feature name and weight for each),
+ * accumulated sufficient statistics, running sufficient statistics of online EM
+ * (preceded by a presence flag), names of the groups done in the current iteration,
+ * the log-likelihood of these groups, the log-likelihood of the previous iteration,
+ * then the milliseconds spent in the run and in its last iteration. Version 1 (without
+ * the log-likelihoods and times) is no longer read.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ */
+public final class Checkpoint
+{
+  private static final int MAGIC = 0x4d534554; // "MSET"
+  private static final int VERSION = 2;
+
+  public final int iteration, nOnlineUpdates;
+  public final Counter<Object> naturalParams;
+  public final SuffStatTensor suffStats;
+  public final SuffStatTensor runningSuffStats; // null if not in online mode (or before the first update)
+  public final Set<String> doneGroups;
+  public final double logLikelihood; // of the done groups
+  public final double previousLogLikelihood; // of the previous iteration, NaN if there is none to compare with
+  public final long elapsedMillis, lastIterationMillis; // of the run (including the runs it resumed)
+
+  public Checkpoint(int iteration, int nOnlineUpdates, Counter<Object> naturalParams,
+      SuffStatTensor suffStats, SuffStatTensor runningSuffStats, Set<String> doneGroups,
+      double logLikelihood, double previousLogLikelihood, long elapsedMillis, long lastIterationMillis)
+  {
+    this.iteration = iteration;
+    this.nOnlineUpdates = nOnlineUpdates;
+    this.naturalParams = naturalParams;
+    this.suffStats = suffStats;
+    this.runningSuffStats = runningSuffStats;
+    this.doneGroups = doneGroups;
+    this.logLikelihood = logLikelihood;
+    this.previousLogLikelihood = previousLogLikelihood;
+    this.elapsedMillis = elapsedMillis;
+    this.lastIterationMillis = lastIterationMillis;
+  }
+
+  /**
+   * Written to a temporary file first, then renamed, so that a run killed while
+   * writing does not corrupt the previous checkpoint.
+   */
+  public void write(File file)
+  {
+    File temp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try
+    {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(iteration);
+      out.writeInt(nOnlineUpdates);
+      out.writeInt(naturalParams.size());
+      for (Object feature : naturalParams.keySet())
+      {
+        out.writeUTF(feature.toString());
+        out.writeDouble(naturalParams.getCount(feature));
+      }
+      suffStats.write(out);
+      out.writeBoolean(runningSuffStats != null);
+      if (runningSuffStats != null)
+        runningSuffStats.write(out);
+      out.writeInt(doneGroups.size());
+      for (String group : doneGroups)
+        out.writeUTF(group);
+      out.writeDouble(logLikelihood);
+      out.writeDouble(previousLogLikelihood);
+      out.writeLong(elapsedMillis);
+      out.writeLong(lastIterationMillis);
+      out.close();
+      out = null;
+    }
+    catch (IOException e) { throw new RuntimeException(e); }
+    finally
+    {
+      if (out != null)
+        try { out.close(); } catch (IOException e) {}
+    }
+    if ((file.exists() && !file.delete()) || !temp.renameTo(file))
+      throw new RuntimeException("Could not write the checkpoint " + file);
+  }
+
+  public static Checkpoint read(File file, Model model)
+  {
+    DataInputStream in = null;
+    try
+    {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      if (in.readInt() != MAGIC)
+        throw new RuntimeException("Not a checkpoint: " + file);
+      final int version = in.readInt();
+      if (version != VERSION)
+        throw new RuntimeException("Unsupported checkpoint version " + version + " in " + file);
+      final int iteration = in.readInt();
+      final int nOnlineUpdates = in.readInt();
+      Counter<Object> naturalParams = new Counter<Object>();
+      final int nParams = in.readInt();
+      for (int i = 0; i < nParams; i++)
+      {
+        final String feature = in.readUTF();
+        naturalParams.setCount(feature, in.readDouble());
+      }
+      SuffStatTensor suffStats = SuffStatTensor.read(in, model);
+      SuffStatTensor runningSuffStats = in.readBoolean() ? SuffStatTensor.read(in, model) : null;
+      Set<String> doneGroups = new LinkedHashSet<String>();
+      final int nDone = in.readInt();
+      for (int i = 0; i < nDone; i++)
+        doneGroups.add(in.readUTF());
+      final double logLikelihood = in.readDouble(), previousLogLikelihood = in.readDouble();
+      final long elapsedMillis = in.readLong(), lastIterationMillis = in.readLong();
+      return new Checkpoint(iteration, nOnlineUpdates, naturalParams, suffStats, runningSuffStats, doneGroups,
+          logLikelihood, previousLogLikelihood, elapsedMillis, lastIterationMillis);
+    }
+    catch (IOException e) { throw new RuntimeException(e); }
+    finally
+    {
+      if (in != null)
+        try { in.close(); } catch (IOException e) {}
+    }
+  }
+}
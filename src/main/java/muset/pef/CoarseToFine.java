@@ -0,0 +1,226 @@
+package muset.pef;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+
+import bayonet.math.NumericalUtils;
+import briefj.BriefIO;
+import briefj.Indexer;
+import briefj.opt.Option;
+import muset.Alphabet.Letter;
+import muset.Sequence;
+import muset.hmm.Envelope;
+import muset.hmm.HetPairHMM;
+import muset.hmm.HetPairHMMSpecification;
+
+
+
+/**
+ * Coarse-to-fine pair alignment.
+ *
+ * Letters are first projected into a small set of classes, and the cached
+ * parameters are marginalized accordingly (i.e. the probability of emitting
+ * a pair of classes is the sum of the probabilities of the pairs of letters
+ * in these classes). A first, cheap pass is done with this coarse model (over
+ * the full lattice, or a band around its diagonal), and the lattice nodes with a
+ * high coarse posterior define an Envelope in which the full model is then run.
+ *
+ * The expected sufficient statistics are then the ones of the full model
+ * conditioned on staying in the envelope; the probability of leaving it
+ * (under the coarse model) is recorded in outsideMass.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ */
+public final class CoarseToFine
+{
+  public static class CoarseToFineOptions
+  {
+    @Option(gloss = "Do a first alignment pass on a reduced alphabet, and run the full model only "
+        + "on the lattice nodes with a high posterior under this coarse pass.")
+    public boolean useCoarseToFine = false;
+
+    @Option(gloss = "Path to a csv file with header 'input,class' mapping letters to coarse classes. "
+        + "If empty, the classes are taken from the featuresFile (see coarseFeatureIndex). "
+        + "Letters with no class are put in their own class.")
+    public String coarseMappingFile = "";
+
+    @Option(gloss = "When the coarse classes are taken from the featuresFile, index (zero indexed) of the "
+        + "letter-specific feature used as the class of a letter.")
+    public int coarseFeatureIndex = 0;
+
+    @Option(gloss = "Lattice nodes with a coarse posterior below this value are excluded from the envelope.")
+    public double envelopeThreshold = 1e-4;
+
+    @Option(gloss = "If positive, the coarse pass itself is restricted to a band of this half width around the "
+        + "diagonal (as in the memory planner), instead of the full lattice.")
+    public int coarseBandHalfWidth = 0;
+  }
+
+  private final Model model;
+  private final CoarseToFineOptions options;
+  private final int [] fineToCoarse; // fine symbol (including epsilon) -> coarse symbol (including epsilon)
+  private final int nCoarseSymbols;  // including epsilon
+  private double [][][][][] coarseLogPrs = null; // same layout as CachedParams, over coarse symbols
+
+  /**
+   * Posterior probability, under the coarse model, that the alignment leaves the
+   * envelope (i.e. the mass dropped from the fine pass, as estimated by the coarse
+   * model), one value per pair aligned since the last reset.
+   */
+  public final SummaryStatistics outsideMass = new SummaryStatistics();
+
+  public CoarseToFine(Model model, FeatureExtractor featureExtractor, CoarseToFineOptions options)
+  {
+    this.model = model;
+    this.options = options;
+    Map<Letter,String> classes = readClasses(model, featureExtractor, options);
+    Indexer<String> classIndexer = new Indexer<String>();
+    this.fineToCoarse = new int[model.epsilon() + 1];
+    for (int i = 0; i < model.epsilon(); i++)
+    {
+      Letter letter = model.enc.indexer.i2o(i);
+      // unmapped letters (including the boundary symbol) get their own class
+      String coarse = classes.containsKey(letter) ? "class(" + classes.get(letter) + ")" : "letter(" + letter + ")";
+      fineToCoarse[i] = classIndexer.addToIndex(coarse);
+    }
+    this.nCoarseSymbols = classIndexer.size() + 1;
+    fineToCoarse[model.epsilon()] = nCoarseSymbols - 1;
+  }
+
+  public int nCoarseClasses()
+  {
+    return nCoarseSymbols - 1;
+  }
+
+  private static Map<Letter,String> readClasses(Model model, FeatureExtractor featureExtractor, CoarseToFineOptions options)
+  {
+    Map<Letter,String> result = new HashMap<Letter,String>();
+    if (!StringUtils.isEmpty(options.coarseMappingFile))
+    {
+      for (Map<String,String> line : BriefIO.readLines(new File(options.coarseMappingFile)).indexCSV())
+        if (model.enc.containsLetter(line.get("input")))
+          result.put(model.enc.getExistingLetter(line.get("input")), line.get("class"));
+    }
+    else
+    {
+      for (Letter letter : model.enc.indexer.objectsList())
+      {
+        List<String> features = featureExtractor.letterFeatures(letter);
+        if (features != null && options.coarseFeatureIndex < features.size())
+          result.put(letter, features.get(options.coarseFeatureIndex));
+      }
+      if (result.isEmpty())
+        throw new RuntimeException("Coarse-to-fine needs either a coarseMappingFile or a featuresFile");
+    }
+    return result;
+  }
+
+  /**
+   * Recompute the coarse parameters by marginalizing the provided fine ones.
+   * Should be called each time the fine parameters change.
+   */
+  public void update(CachedParams fine)
+  {
+    final int nStss = model.stSuffStat.valuesIndexer.size();
+    final int nFineSymbols = model.epsilon() + 1;
+    double [][][][][] result = new double[model.nStates][model.nStates][nStss][nCoarseSymbols][nCoarseSymbols];
+    for (int s1 = 0; s1 < model.nStates; s1++)
+      for (int s2 = 0; s2 < model.nStates; s2++)
+        for (int stss = 0; stss < nStss; stss++)
+        {
+          final double [][] current = result[s1][s2][stss];
+          for (double [] row : current)
+            Arrays.fill(row, Double.NEGATIVE_INFINITY);
+          final int slice = fine.sliceOffset(s1, s2, stss);
+          for (int top = 0; top < nFineSymbols; top++)
+            for (int bot = 0; bot < nFineSymbols; bot++)
+            {
+              final double logPr = fine.getLogPr(slice, top, bot);
+              if (logPr != Double.NEGATIVE_INFINITY)
+              {
+                final int ctop = fineToCoarse[top], cbot = fineToCoarse[bot];
+                current[ctop][cbot] = NumericalUtils.logAdd(current[ctop][cbot], logPr);
+              }
+            }
+        }
+    this.coarseLogPrs = result;
+  }
+
+  /**
+   * Run the coarse pass and return the envelope of high posterior nodes.
+   *
+   * @param top With the boundary symbol already appended
+   * @param bot With the boundary symbol already appended
+   */
+  public Envelope envelope(Sequence top, Sequence bot, StrTaxonSuffStat.StrTaxonSuffStatExtractor extractor)
+  {
+    final HetPairHMMSpecification spec = coarseSpecification(top, bot, extractor);
+    final int len1 = top.length(), len2 = bot.length();
+    final Envelope searched = options.coarseBandHalfWidth > 0 ?
+        Envelope.band(len1, len2, options.coarseBandHalfWidth) :
+        Envelope.full(len1, len2);
+    HetPairHMM coarse = new HetPairHMM(top, bot, spec, searched);
+    if (coarse.logSumProduct() == Double.NEGATIVE_INFINITY)
+      return Envelope.full(len1, len2);
+    // range of the nodes above the threshold, in each row
+    final int [] lower = new int[len1+1], upper = new int[len1+1];
+    for (int x = 0; x <= len1; x++)
+    {
+      lower[x] = len2 + 1;
+      upper[x] = -1;
+      for (int y = searched.lower(x); y <= searched.upper(x); y++)
+        if (Math.exp(coarse.logPosteriorNode(x, y)) >= options.envelopeThreshold)
+        {
+          lower[x] = Math.min(lower[x], y);
+          upper[x] = Math.max(upper[x], y);
+        }
+    }
+    Envelope result = Envelope.fromBounds(lower, upper, len2);
+    // the coarse probability of the paths staying in the envelope is the ratio of the partition functions
+    final double logInside = new HetPairHMM(top, bot, spec, result).logSumProduct() - coarse.logSumProduct();
+    synchronized (outsideMass)
+    {
+      outsideMass.addValue(Math.max(0.0, -Math.expm1(logInside)));
+    }
+    return result;
+  }
+
+  private HetPairHMMSpecification coarseSpecification(Sequence top, Sequence bot, final StrTaxonSuffStat.StrTaxonSuffStatExtractor extractor)
+  {
+    if (coarseLogPrs == null)
+      throw new RuntimeException("CoarseToFine.update() should be called first");
+    final double [][][][][] coarseLogPrs = this.coarseLogPrs;
+    final int []
+      topIds = coarseIds(top),
+      botIds = coarseIds(bot);
+    final int coarseEpsilon = nCoarseSymbols - 1;
+    return new HetPairHMMSpecification() {
+      @Override public final int startState() { return model.startState; }
+      @Override public final int endState() { return model.endState; }
+      @Override public final int nStates() { return model.nStates; }
+      @Override public final double logWeight(int prevState, int currentState, int xpos, int ypos,
+          int deltaX, int deltaY)
+      {
+        final int
+          xid = deltaX == 1 ? topIds[xpos] : coarseEpsilon,
+          yid = deltaY == 1 ? botIds[ypos] : coarseEpsilon;
+        return coarseLogPrs[prevState][currentState][extractor.extract(xpos, ypos)][xid][yid];
+      }
+    };
+  }
+
+  private int [] coarseIds(Sequence sequence)
+  {
+    int [] result = model.charIds(sequence);
+    for (int i = 0; i < result.length; i++)
+      result[i] = fineToCoarse[result[i]];
+    return result;
+  }
+}
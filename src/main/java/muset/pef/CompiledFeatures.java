@@ -0,0 +1,465 @@
+package muset.pef;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import bayonet.math.NumericalUtils;
+import bayonet.regression.BaseMeasures;
+import bayonet.regression.LabeledInstance;
+import bayonet.regression.MaxentClassifier.MaxentOptions;
+import briefj.Indexer;
+import briefj.collections.Counter;
+import briefj.opt.Option;
+import muset.util.LBFGS;
+
+
+
+/**
+ * The features of all the (Input, Output) pairs of a model, extracted once and
+ * stored as sparse rows of integer feature indices and values.
+ *
+ * This is used to learn the weights with primitive dot products and gradients,
+ * instead of calling the FeatureExtractor (which builds feature names as strings)
+ * at each evaluation of the objective as MaxentClassifier does.
+ *
+ * With feature hashing (see hashBits), the features are not indexed by name: 
+ * they are hashed into a fixed number of weights, several features possibly 
+ * sharing the same weight, which bounds the size of the weight vector (e.g. with
+ * addPairSpecific and a featuresFile). The weights are then named "hashed(index)" 
+ * in the counters of natural parameters.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ */
+public final class CompiledFeatures
+{
+  public static class CompiledFeaturesOptions
+  {
+    @Option(gloss = "Extract the features of all the possible transitions once, and learn the weights with "
+        + "L-BFGS over primitive arrays, with the regularization, number of iterations and tolerance of the "
+        + "maxent options.")
+    public boolean useCompiledFeatures = false;
+    
+    @Option(gloss = "If positive (with useCompiledFeatures), hash the features into 2^hashBits weights instead of "
+        + "indexing their names (at most 30); the weights files used as initParams or reguCenterParams should then "
+        + "come from a run with the same hashBits (other feature names are rejected). Not compatible with warmStartIterations.")
+    public int hashBits = 0;
+  }
+
+  private static final int LBFGS_MEMORY = 10;
+  private static final int N_SHARDS = 64;
+  private static final int MAX_HASH_BITS = 30;
+  private static final String HASHED = "hashed";
+
+  public final Indexer<Object> featureIndexer = new Indexer<Object>(); // empty with feature hashing
+  public final int hashBits;           // 0 if the features are not hashed
+  public final int nHashedFeatures;    // number of distinct features hashed
+  public final int nCollidingFeatures; // number of hashed features sharing their weight with another one
+  private final List<Input> inputs;
+  private final Output [][] outputs;        // input -> supported outputs
+  private final int [][][] featureIds;      // input -> output -> features of the pair
+  private final double [][][] featureValues;
+  private final double [] regularizationFactors;
+  private int [] shardStarts;               // shard -> first input, see createShards()
+  private int [][] shardFeatures;           // shard -> local feature index -> feature
+  private int [][][] localIds;              // same as featureIds, in the local indexing of the input's shard
+  private ForkJoinPool pool = null;         // see pool()
+
+  public CompiledFeatures(Model model, BaseMeasures<Input,Output> bm, FeatureExtractor featureExtractor)
+  {
+    this(model, bm, featureExtractor, 0);
+  }
+  
+  /**
+   * @param hashBits If positive, the features are hashed into 2^hashBits weights, see 
+   *   FeatureExtractor.extractHashedFeatures()
+   */
+  public CompiledFeatures(Model model, BaseMeasures<Input,Output> bm, FeatureExtractor featureExtractor, int hashBits)
+  {
+    if (hashBits < 0 || hashBits > MAX_HASH_BITS)
+      throw new RuntimeException("hashBits should be between 0 and " + MAX_HASH_BITS + ": " + hashBits);
+    this.hashBits = hashBits;
+    final Set<Long> hashes = new HashSet<Long>(); // distinct features, to count the collisions
+    this.inputs = model.allInputs();
+    final int nInputs = inputs.size();
+    this.outputs = new Output[nInputs][];
+    this.featureIds = new int[nInputs][][];
+    this.featureValues = new double[nInputs][][];
+    for (int i = 0; i < nInputs; i++)
+    {
+      final Input in = inputs.get(i);
+      SortedSet<Output> support = bm.support(in);
+      outputs[i] = support.toArray(new Output[support.size()]);
+      featureIds[i] = new int[outputs[i].length][];
+      featureValues[i] = new double[outputs[i].length][];
+      for (int o = 0; o < outputs[i].length; o++)
+      {
+        if (hashBits > 0)
+        {
+          HashedRow row = new HashedRow(hashes);
+          featureExtractor.extractHashedFeatures(new LabeledInstance<Input,Output>(outputs[i][o], in), row);
+          featureIds[i][o] = Arrays.copyOf(row.ids, row.size);
+          featureValues[i][o] = Arrays.copyOf(row.values, row.size);
+          continue;
+        }
+        Counter<Object> features = featureExtractor.extractFeatures(new LabeledInstance<Input,Output>(outputs[i][o], in));
+        List<Object> keys = new ArrayList<Object>(features.keySet());
+        featureIds[i][o] = new int[keys.size()];
+        featureValues[i][o] = new double[keys.size()];
+        for (int f = 0; f < keys.size(); f++)
+        {
+          featureIds[i][o][f] = featureIndexer.addToIndex(keys.get(f));
+          featureValues[i][o][f] = features.getCount(keys.get(f));
+        }
+      }
+    }
+    if (hashBits > 0)
+    {
+      // the features do not have a name here; FeatureExtractor does not regularize them differently anyway
+      this.regularizationFactors = new double[1 << hashBits];
+      Arrays.fill(regularizationFactors, 1.0);
+      final int [] featuresPerWeight = new int[1 << hashBits];
+      for (long hash : hashes)
+        featuresPerWeight[weightIndex(hash, hashBits)]++;
+      int nColliding = 0;
+      for (int count : featuresPerWeight)
+        if (count > 1)
+          nColliding += count;
+      this.nHashedFeatures = hashes.size();
+      this.nCollidingFeatures = nColliding;
+    }
+    else
+    {
+      this.regularizationFactors = new double[featureIndexer.size()];
+      for (int f = 0; f < regularizationFactors.length; f++)
+        regularizationFactors[f] = featureExtractor.regularizationFactor(featureIndexer.i2o(f));
+      this.nHashedFeatures = this.nCollidingFeatures = 0;
+    }
+    createShards();
+  }
+  
+  // the high bits, the best mixed ones
+  private static int weightIndex(long hash, int hashBits)
+  {
+    return (int) (hash >>> (64 - hashBits));
+  }
+  
+  /*
+   * The features of one (Input, Output) pair, the ones hashed to the same weight being merged
+   */
+  private final class HashedRow implements FeatureExtractor.HashedFeatureVisitor
+  {
+    private final Set<Long> hashes;
+    private int [] ids = new int[8];
+    private double [] values = new double[8];
+    private int size = 0;
+    
+    private HashedRow(Set<Long> hashes)
+    {
+      this.hashes = hashes;
+    }
+    
+    @Override
+    public void visit(long hash, double value)
+    {
+      hashes.add(hash);
+      final int id = weightIndex(hash, hashBits);
+      for (int f = 0; f < size; f++) // rows are short
+        if (ids[f] == id)
+        {
+          values[f] += value;
+          return;
+        }
+      if (size == ids.length)
+      {
+        ids = Arrays.copyOf(ids, 2 * size);
+        values = Arrays.copyOf(values, 2 * size);
+      }
+      ids[size] = id;
+      values[size++] = value;
+    }
+  }
+
+  /**
+   * Number of weights (the size of the arrays of weights)
+   */
+  public int nFeatures() { return regularizationFactors.length; }
+
+  /**
+   * Inputs are indexed in the order of Model.allInputs()
+   */
+  public int nInputs() { return inputs.size(); }
+  public Input input(int input) { return inputs.get(input); }
+  public Output [] support(int input) { return outputs[input]; }
+
+  /**
+   * @return The weights of the features in this object's indexing (features not in the indexer are dropped; 
+   *   with hashed features, a non-zero weight not keyed by one of them is an error, since it would be ignored)
+   */
+  public double [] toArray(Counter<Object> weights)
+  {
+    double [] result = new double[nFeatures()];
+    for (Object feature : weights.keySet())
+    {
+      final int f = index(feature);
+      if (f != -1)
+        result[f] = weights.getCount(feature);
+      else if (hashBits > 0 && weights.getCount(feature) != 0.0)
+        throw new RuntimeException("With hashBits, the weights should be keyed by " + HASHED + "(index), "
+            + "as written by a run with the same hashBits, found: " + feature);
+    }
+    return result;
+  }
+
+  public Counter<Object> toCounter(double [] weights)
+  {
+    Counter<Object> result = new Counter<Object>();
+    for (int f = 0; f < weights.length; f++)
+      if (weights[f] != 0.0)
+        result.setCount(hashBits > 0 ? HASHED + "(" + f + ")" : featureIndexer.i2o(f), weights[f]);
+    return result;
+  }
+  
+  // -1 if unknown
+  private int index(Object feature)
+  {
+    if (hashBits == 0)
+      return featureIndexer.containsObject(feature) ? featureIndexer.o2i(feature) : -1;
+    final String name = feature.toString();
+    if (!name.startsWith(HASHED + "(") || !name.endsWith(")"))
+      return -1;
+    try
+    {
+      final int result = Integer.parseInt(name.substring(HASHED.length() + 1, name.length() - 1));
+      return result >= 0 && result < nFeatures() ? result : -1;
+    }
+    catch (NumberFormatException e) { return -1; }
+  }
+
+  /**
+   * Write in result the log probabilities of the outputs in support(input).
+   */
+  public void logProbs(double [] weights, int input, double [] result)
+  {
+    double logNorm = Double.NEGATIVE_INFINITY;
+    for (int o = 0; o < outputs[input].length; o++)
+    {
+      final int [] ids = featureIds[input][o];
+      final double [] values = featureValues[input][o];
+      double score = 0.0;
+      for (int f = 0; f < ids.length; f++)
+        score += weights[ids[f]] * values[f];
+      result[o] = score;
+      logNorm = NumericalUtils.logAdd(logNorm, score);
+    }
+    for (int o = 0; o < outputs[input].length; o++)
+      result[o] -= logNorm;
+  }
+
+  /**
+   * Maximize the regularized expected conditional log likelihood of the sufficient statistics,
+   * as MaxentClassifier.learnMaxentClassifier() does: Gaussian regularization of variance 
+   * options.sigma^2 around the centers, at most options.iterations L-BFGS iterations, with
+   * the relative tolerance options.tolerance.
+   * 
+   * @param nThreads Number of threads used to evaluate the objective and its gradient
+   *   (the result does not depend on it)
+   * @return The new weights, in this object's indexing
+   */
+  public double [] learn(final SuffStatTensor suffStats, Counter<Object> initialWeights, Counter<Object> centers,
+      MaxentOptions<Object> options, int nThreads)
+  {
+    final double [] centerArray = toArray(centers);
+    final double variance = options.sigma * options.sigma;
+    final ForkJoinPool pool = pool(nThreads);
+    LBFGS.Objective objective = new LBFGS.Objective() {
+      @Override
+      public double valueAt(double [] point, double [] gradient)
+      {
+        return negativeObjective(point, suffStats, centerArray, variance, gradient, pool);
+      }
+    };
+    return LBFGS.minimize(objective, toArray(initialWeights), options.iterations, options.tolerance, LBFGS_MEMORY);
+  }
+  
+  /*
+   * The pool of the M steps, created once (its workers are daemon threads), or null for a single thread
+   */
+  private synchronized ForkJoinPool pool(int nThreads)
+  {
+    if (nThreads <= 1)
+      return null;
+    if (pool == null || pool.getParallelism() != nThreads)
+    {
+      if (pool != null)
+        pool.shutdown(); // the M steps already running in it complete
+      pool = new ForkJoinPool(nThreads);
+    }
+    return pool;
+  }
+
+  /**
+   * The negated regularized expected conditional log likelihood, with its gradient written in gradient.
+   */
+  public double negativeObjective(double [] weights, SuffStatTensor suffStats, double [] centers, double variance,
+      double [] gradient)
+  {
+    return negativeObjective(weights, suffStats, centers, variance, gradient, null);
+  }
+  
+  /*
+   * The inputs are split in a fixed number of shards, each accumulating the gradient of its 
+   * inputs in its own (compact) array. The shards are evaluated in the pool (or sequentially 
+   * if it is null), then merged in order, so the result does not depend on the number of threads.
+   */
+  private double negativeObjective(final double [] weights, final SuffStatTensor suffStats, double [] centers, double variance,
+      double [] gradient, ForkJoinPool pool)
+  {
+    final int nShards = shardFeatures.length;
+    final double [] shardValues = new double[nShards];
+    final double [][] shardGradients = new double[nShards][];
+    final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+    for (int s = 0; s < nShards; s++)
+    {
+      final int shard = s;
+      tasks.add(new RecursiveAction() {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected void compute()
+        {
+          double [] shardGradient = new double[shardFeatures[shard].length];
+          double value = 0.0;
+          for (int i = shardStarts[shard]; i < shardStarts[shard + 1]; i++)
+            value += addInput(i, weights, suffStats, shardGradient);
+          shardValues[shard] = value;
+          shardGradients[shard] = shardGradient;
+        }
+      });
+    }
+    if (pool == null)
+      for (RecursiveAction task : tasks)
+        task.invoke();
+    else
+      pool.invoke(new RecursiveAction() {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected void compute()
+        {
+          invokeAll(tasks);
+        }
+      });
+    Arrays.fill(gradient, 0.0);
+    double result = 0.0;
+    for (int s = 0; s < nShards; s++)
+    {
+      result += shardValues[s];
+      final int [] features = shardFeatures[s];
+      for (int f = 0; f < features.length; f++)
+        gradient[features[f]] += shardGradients[s][f];
+    }
+    for (int f = 0; f < weights.length; f++)
+    {
+      final double diff = weights[f] - centers[f];
+      result += regularizationFactors[f] * diff * diff / 2.0 / variance;
+      gradient[f] += regularizationFactors[f] * diff / variance;
+    }
+    return result;
+  }
+
+  // contribution of one input to the negated log likelihood, and to its gradient 
+  // (in the indexing of the input's shard, see localIds)
+  private double addInput(int input, double [] weights, SuffStatTensor suffStats, double [] shardGradient)
+  {
+    final Input in = inputs.get(input);
+    final Output [] outs = outputs[input];
+    final double [] counts = new double[outs.length];
+    double total = 0.0;
+    for (int o = 0; o < outs.length; o++)
+    {
+      counts[o] = suffStats.get(in.state1, outs[o].state2, in.strTaxSuffStat, outs[o].topSymbol, outs[o].botSymbol);
+      total += counts[o];
+    }
+    if (total == 0.0)
+      return 0.0;
+    final double [] logProbs = new double[outs.length];
+    logProbs(weights, input, logProbs);
+    double result = 0.0;
+    for (int o = 0; o < outs.length; o++)
+    {
+      if (counts[o] != 0.0)
+        result -= counts[o] * logProbs[o];
+      final double coefficient = total * Math.exp(logProbs[o]) - counts[o];
+      final int [] ids = localIds[input][o];
+      final double [] values = featureValues[input][o];
+      for (int f = 0; f < ids.length; f++)
+        shardGradient[ids[f]] += coefficient * values[f];
+    }
+    return result;
+  }
+  
+  // contiguous ranges of inputs with roughly the same number of feature entries
+  private void createShards()
+  {
+    long work = 0;
+    for (int [][] rows : featureIds)
+      for (int [] row : rows)
+        work += row.length;
+    final long target = Math.max(1, (work + N_SHARDS - 1) / N_SHARDS);
+    List<Integer> starts = new ArrayList<Integer>();
+    starts.add(0);
+    long current = 0;
+    for (int i = 0; i < inputs.size(); i++)
+    {
+      for (int [] row : featureIds[i])
+        current += row.length;
+      if (current >= target && i + 1 < inputs.size())
+      {
+        starts.add(i + 1);
+        current = 0;
+      }
+    }
+    starts.add(inputs.size());
+    final int nShards = starts.size() - 1;
+    shardStarts = new int[nShards + 1];
+    for (int s = 0; s <= nShards; s++)
+      shardStarts[s] = starts.get(s);
+    shardFeatures = new int[nShards][];
+    localIds = new int[inputs.size()][][];
+    final int [] local = new int[nFeatures()];
+    Arrays.fill(local, -1);
+    for (int s = 0; s < nShards; s++)
+    {
+      List<Integer> features = new ArrayList<Integer>();
+      for (int i = shardStarts[s]; i < shardStarts[s + 1]; i++)
+      {
+        localIds[i] = new int[featureIds[i].length][];
+        for (int o = 0; o < featureIds[i].length; o++)
+        {
+          final int [] ids = featureIds[i][o];
+          localIds[i][o] = new int[ids.length];
+          for (int f = 0; f < ids.length; f++)
+          {
+            if (local[ids[f]] == -1)
+            {
+              local[ids[f]] = features.size();
+              features.add(ids[f]);
+            }
+            localIds[i][o][f] = local[ids[f]];
+          }
+        }
+      }
+      shardFeatures[s] = new int[features.size()];
+      for (int f = 0; f < features.size(); f++)
+      {
+        shardFeatures[s][f] = features.get(f);
+        local[features.get(f)] = -1;
+      }
+    }
+  }
+}
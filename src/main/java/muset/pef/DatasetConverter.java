@@ -0,0 +1,38 @@
+package muset.pef;
+
+import java.io.File;
+
+import muset.pef.Aligner.SequenceDataset;
+import briefj.opt.Option;
+import briefj.opt.OptionSet;
+import briefj.run.Mains;
+
+
+
+/**
+ * Converts a csv dataset (see Aligner) into a BinaryDataset, which Aligner 
+ * then reads directly (pass the binary file as csvFile).
+ * 
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ */
+public class DatasetConverter implements Runnable
+{
+  @OptionSet(name = "data")
+  public SequenceDataset dataset = new SequenceDataset();
+  
+  @Option(required = true, gloss = "Path of the binary dataset to create.")
+  public File output;
+
+  @Override
+  public void run()
+  {
+    BinaryDataset.write(dataset.getAlphabet(), dataset.groups(), output);
+    System.out.println("Wrote " + dataset.groupIds().size() + " groups to " + output);
+  }
+  
+  public static void main(String [] args)
+  {
+    Mains.instrumentedRun(args, new DatasetConverter());
+  }
+}
@@ -2,20 +2,31 @@ package muset.pef;
 import java.io.File;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
+import org.apache.commons.lang3.tuple.Pair;
+
 import muset.Alphabet;
 import muset.MSAPoset;
 import muset.Sequence;
 import muset.SequenceId;
+import muset.hmm.AnchoredPairHMM;
+import muset.hmm.EdgeMarginalVisitor;
+import muset.hmm.Envelope;
 import muset.hmm.HetPairHMM;
+import muset.hmm.HetPairHMMSpecification;
 import muset.pef.FeatureExtractor.FeatureOptions;
 import muset.pef.Model.ThreeStatesBaseMeasure;
-import muset.util.Edge;
+import muset.util.BandedMatrix;
+import muset.util.PairPosteriors;
+import muset.util.Parallel;
 import bayonet.regression.BaseMeasures;
-import bayonet.regression.LabeledInstance;
 import bayonet.regression.MaxentClassifier;
 import bayonet.regression.MaxentClassifier.MaxentOptions;
 import briefj.BriefIO;
@@ -41,10 +52,14 @@ import briefj.run.Results;
 public final class ExponentialFamily
 {
   private CachedParams cachedParams;
+  private CoarseToFine coarseToFine = null;
+  private CompiledFeatures compiledFeatures = null;
+  private int nThreads = 1;
+  private CachedParams.Storage storage = CachedParams.Storage.DEFAULT;
   private Counter<Object> naturalParams, regularizationCenters;
   
-  public Counter<LabeledInstance<Input,Output>> suffStats
-    = new Counter<LabeledInstance<Input,Output>>();
+  public SuffStatTensor suffStats;
+  private SuffStatTensor runningSuffStats = null; // see updateParametersOnline()
   
   public final MaxentOptions<Object> learningOptions;
   public final Model model;
@@ -73,6 +88,28 @@ public final class ExponentialFamily
     initParameters();
   }
   
+  /**
+   * Create an exponential family with precomputed cached parameters (e.g. read from a ModelBundle), 
+   * skipping the computation of the cached parameters from the natural ones.
+   */
+  public ExponentialFamily(
+      Counter<Object> naturalParams,
+      Counter<Object> regularizationCenters,
+      MaxentOptions<Object> learningOptions, 
+      Model model,
+      BaseMeasures<Input, Output> bm, FeatureExtractor featureExtractor,
+      CachedParams cachedParams)
+  {
+    this.naturalParams = naturalParams;
+    this.regularizationCenters = regularizationCenters;
+    this.learningOptions = learningOptions;
+    this.model = model;
+    this.bm = bm;
+    this.featureExtractor = featureExtractor;
+    this.cachedParams = cachedParams;
+    this.suffStats = new SuffStatTensor(model);
+  }
+  
   public static class ExponentialFamilyOptions
   {
     @Option(gloss = "Path to an init parameters produced in a file called 'weights.txt' in the results folder. "
@@ -83,6 +120,23 @@ public final class ExponentialFamily
     @Option(gloss = "Center where the regularization parameters should be centered (e.g., output of simpler model)")
     public String reguCenterParams = SAME;
     
+    @Option(gloss = "Store the cached transition probabilities as floats instead of doubles, which halves their memory "
+        + "(relevant with addPairSpecific and many pairs of taxa).")
+    public boolean singlePrecision = false;
+    
+    @Option(gloss = "Store only the cached transition probabilities in the support of the base measure, packed by state "
+        + "and f-suff-stat (relevant with addPairSpecific and many pairs of taxa, see sliceCacheSize).")
+    public boolean sparseCachedParams = false;
+    
+    @Option(gloss = "With sparseCachedParams, number of f-suff-stats (pairs of taxa) whose transition probabilities are "
+        + "also kept unpacked, for the pairs being aligned; should be at least the number of threads.")
+    public int sliceCacheSize = 256;
+    
+    public CachedParams.Storage storage()
+    {
+      return new CachedParams.Storage(singlePrecision, sparseCachedParams, sliceCacheSize);
+    }
+    
     public static final String SAME = "SAME";
     public static final String ZERO = "ZERO";
     public static final String INTERNAL = "INTERNAL";
@@ -147,27 +201,204 @@ public final class ExponentialFamily
     Model model = Model.stdBranchSpecificModel(alphabet, fe.getStrTaxonSuffStat());
     ThreeStatesBaseMeasure tsmb = new ThreeStatesBaseMeasure(model);
     
-    return new ExponentialFamily(initParams, centerParams, learningOptions, model, tsmb, fe);
+    // created in the requested storage right away, since the default one may not fit in memory
+    CachedParams cachedParams = new CachedParams(model, 
+        MaxentClassifier.createMaxentClassifierFromWeights(tsmb, initParams, fe), options.storage(), 1);
+    ExponentialFamily result = new ExponentialFamily(initParams, centerParams, learningOptions, model, tsmb, fe, cachedParams);
+    result.storage = options.storage();
+    return result;
   }
 
   /**
    * Create new natural parameters using penalized likelihood (or other optimization/sampling algorithms)
    * Also: flush the suff stats
    */
-  @SuppressWarnings("unchecked")
   public void updateParameters()
   {
+    learn(suffStats);
+  }
+  
+  /**
+   * Stepwise (online) EM update: the running sufficient statistics are interpolated with 
+   * the ones accumulated since the last update, new natural parameters are learned from 
+   * the running statistics, and the accumulated ones are flushed (the running ones are kept).
+   * 
+   * @param stepSize Weight of the accumulated statistics, in (0, 1]
+   * @param scale Factor applied to the accumulated statistics to put them on the scale of the
+   *   full dataset (e.g. number of groups in the data over number of groups in the minibatch)
+   */
+  public void updateParametersOnline(double stepSize, double scale)
+  {
+    if (runningSuffStats == null)
+    {
+      // nothing to interpolate with yet
+      runningSuffStats = new SuffStatTensor(model);
+      stepSize = 1.0;
+    }
+    runningSuffStats.scale(1.0 - stepSize);
+    runningSuffStats.add(suffStats, stepSize * scale);
+    learn(runningSuffStats);
+  }
+  
+  public Counter<Object> getNaturalParams()
+  {
+    return new Counter<Object>(naturalParams);
+  }
+  
+  /**
+   * Replace the natural parameters (e.g. when resuming from a checkpoint). 
+   * Also: flush the suff stats
+   */
+  public void setNaturalParams(Counter<Object> naturalParams)
+  {
+    this.naturalParams = new Counter<Object>(naturalParams);
+    if (compiledFeatures != null)
+      setCachedParams(new CachedParams(model, compiledFeatures, compiledFeatures.toArray(naturalParams), storage, nThreads));
+    else
+      setCachedParams(new CachedParams(model, 
+          MaxentClassifier.createMaxentClassifierFromWeights(bm, this.naturalParams, featureExtractor), storage, nThreads));
+  }
+  
+  /**
+   * A family with other natural parameters (and the same regularization centers and options), sharing 
+   * the model and the features of this one, including the compiled ones (e.g. for multi-start EM). 
+   * Coarse-to-fine is not enabled in the result.
+   */
+  public ExponentialFamily withNaturalParams(Counter<Object> naturalParams)
+  {
+    ExponentialFamily result = new ExponentialFamily(naturalParams, regularizationCenters, learningOptions, 
+        model, bm, featureExtractor, cachedParams);
+    result.nThreads = nThreads;
+    result.storage = storage;
+    result.compiledFeatures = compiledFeatures;
+    result.setNaturalParams(naturalParams);
+    return result;
+  }
+  
+  /**
+   * @return n copies of the natural parameters plus independent normal noise on the weight of 
+   *   each feature of the model (including the ones not in the natural parameters)
+   */
+  public List<Counter<Object>> perturbedParams(Random rand, double standardDeviation, int n)
+  {
+    final CompiledFeatures features = compiledFeatures != null ? 
+        compiledFeatures : 
+        new CompiledFeatures(model, bm, featureExtractor); // only used to list the features, built once
+    final double [] initial = features.toArray(naturalParams);
+    List<Counter<Object>> result = new ArrayList<Counter<Object>>();
+    for (int i = 0; i < n; i++)
+    {
+      final double [] weights = initial.clone();
+      for (int f = 0; f < weights.length; f++)
+        weights[f] += standardDeviation * rand.nextGaussian();
+      result.add(features.toCounter(weights));
+    }
+    return result;
+  }
+  
+  /**
+   * @return The running statistics of online EM, or null if updateParametersOnline() was not called yet
+   */
+  public SuffStatTensor getRunningSuffStats()
+  {
+    return runningSuffStats;
+  }
+  
+  public void setRunningSuffStats(SuffStatTensor runningSuffStats)
+  {
+    this.runningSuffStats = runningSuffStats;
+  }
+  
+  @SuppressWarnings("unchecked")
+  private void learn(SuffStatTensor suffStats)
+  {
+    if (compiledFeatures != null)
+    {
+      double [] weights = compiledFeatures.learn(suffStats, naturalParams, regularizationCenters, learningOptions, nThreads);
+      naturalParams = compiledFeatures.toCounter(weights);
+      setCachedParams(new CachedParams(model, compiledFeatures, weights, storage, nThreads));
+      return;
+    }
     // learn new natural params
     MaxentOptions<Object> currentLearningOptions = MaxentOptions.cloneWithWeights(learningOptions, naturalParams);
     MaxentClassifier<Input,Output,Object> maxentClassifier =
-      MaxentClassifier.learnMaxentClassifier(bm, suffStats, featureExtractor,
+      MaxentClassifier.learnMaxentClassifier(bm, suffStats.toCounter(), featureExtractor,
           currentLearningOptions, regularizationCenters);
     naturalParams = maxentClassifier.weights();
     // create the cached version
-    cachedParams = new CachedParams(model, maxentClassifier);
+    setCachedParams(new CachedParams(model, maxentClassifier, storage, nThreads));
+  }
+  
+  private void setCachedParams(CachedParams cachedParams)
+  {
+    this.cachedParams = cachedParams;
+    if (coarseToFine != null)
+      coarseToFine.update(cachedParams);
     // flush suff stats
-    suffStats = new Counter<LabeledInstance<Input,Output>>();
+    suffStats = new SuffStatTensor(model);
+  }
+  
+  /**
+   * @param nThreads Number of threads used to compute the cached parameters (and in the M step)
+   * @param storage Storage of the cached parameters (the current ones are converted if needed)
+   */
+  public void setCachedParamsOptions(int nThreads, CachedParams.Storage storage)
+  {
+    this.nThreads = nThreads;
+    this.storage = storage;
+    if (!cachedParams.storage().equals(storage))
+      setCachedParams(new CachedParams(cachedParams, storage));
+  }
+  
+  /**
+   * After calling this, the parameters are learned from features extracted 
+   * once for all the transitions of the model, see CompiledFeatures.
+   * 
+   * @param nThreads Number of threads used in the M step
+   */
+  public void enableCompiledFeatures(CompiledFeatures.CompiledFeaturesOptions options, int nThreads)
+  {
+    this.nThreads = nThreads;
+    compiledFeatures = new CompiledFeatures(model, bm, featureExtractor, options.hashBits);
+    setCachedParams(new CachedParams(model, compiledFeatures, compiledFeatures.toArray(naturalParams), storage, nThreads));
+  }
+  
+  /**
+   * @return The features used in the M step, or null if enableCompiledFeatures() was not called
+   */
+  public CompiledFeatures getCompiledFeatures()
+  {
+    return compiledFeatures;
+  }
+  
+  /**
+   * After calling this, getHMM() restricts the full model to the envelope found
+   * by a first pass on a reduced alphabet.
+   * 
+   * @see CoarseToFine
+   */
+  public void enableCoarseToFine(CoarseToFine.CoarseToFineOptions options)
+  {
+    coarseToFine = new CoarseToFine(model, featureExtractor, options);
+    coarseToFine.update(cachedParams);
+  }
+  
+  /**
+   * @return The coarse-to-fine pass used by getHMM(), or null if it is not enabled
+   */
+  public CoarseToFine getCoarseToFine()
+  {
+    return coarseToFine;
   }
+  
+  /**
+   * Save the model, including the cached parameters, in a binary file, see ModelBundle
+   */
+  public void saveBundle(File f)
+  {
+    ModelBundle.write(this, cachedParams, f);
+  }
+  
   public void saveWeightsInExec(String name)
   {
     saveWeights(Results.getFileInResultFolder(name)); 
@@ -184,41 +415,173 @@ public final class ExponentialFamily
     // create the cached version
     cachedParams = new CachedParams(model, maxentClassifier);
     // flush suff stats
-    suffStats = new Counter<LabeledInstance<Input,Output>>();
+    suffStats = new SuffStatTensor(model);
   }
 
-  public void addSufficientStatistics( 
+  public BandedMatrix addSufficientStatistics( 
       final HetPairHMM pairHMM, final SequenceId topTaxon, final SequenceId botTaxon)
   {
-    addSufficientStatistics(this.suffStats, pairHMM, topTaxon, botTaxon);
+    return addSufficientStatistics(this.suffStats, pairHMM, topTaxon, botTaxon);
   }
-  public void addSufficientStatistics(final Counter<LabeledInstance<Input,Output>> suffStats, 
+  
+  /**
+   * @return The posterior pr that pairHMM.str1[x] and pairHMM.str2[y] are aligned, 
+   *   indexed by x then y, computed in the same pass (see HetPairHMM.posteriorMatrix())
+   */
+  public BandedMatrix addSufficientStatistics(final SuffStatTensor suffStats, 
       final HetPairHMM pairHMM, final SequenceId topTaxon, final SequenceId botTaxon)
   {
     StrTaxonSuffStat.StrTaxonSuffStatExtractor extractor = model.stSuffStat.getExtractor(pairHMM.str1, pairHMM.str2,topTaxon, botTaxon);
-    final double logSumPr = pairHMM.logSumProduct();
-    for (int xpos = 0; xpos <= pairHMM.str1.length(); xpos++)
-      for (int dx = 0; dx < 2 && xpos + dx <= pairHMM.str1.length(); dx++)
+    return addSufficientStatistics(suffStats, pairHMM, extractor, 0, 0);
+  }
+  
+  /**
+   * Since the segments of an anchored HMM are independent, their expected 
+   * sufficient statistics are just added.
+   * 
+   * @return The posterior pr that pairHMM.str1[x] and pairHMM.str2[y] are aligned, 
+   *   indexed by x then y, computed in the same pass (see AnchoredPairHMM.posteriorMatrix())
+   */
+  public BandedMatrix addSufficientStatistics(final SuffStatTensor suffStats, 
+      final AnchoredPairHMM pairHMM, final SequenceId topTaxon, final SequenceId botTaxon)
+  {
+    StrTaxonSuffStat.StrTaxonSuffStatExtractor extractor = model.stSuffStat.getExtractor(pairHMM.str1, pairHMM.str2,topTaxon, botTaxon);
+    // segments in parallel, then visited in turn
+    pairHMM.computeSumProduct();
+    BandedMatrix result = pairHMM.posteriorMatrix();
+    for (int s = 0; s < pairHMM.nSegments(); s++)
+    {
+      final int topOffset = pairHMM.topOffset(s), botOffset = pairHMM.botOffset(s);
+      BandedMatrix current = addSufficientStatistics(suffStats, pairHMM.segment(s), extractor, topOffset, botOffset);
+      for (int x = 0; x < current.nRows; x++)
+        for (int y = current.lower(x); y <= current.upper(x); y++)
+          result.set(x + topOffset, y + botOffset, current.get(x, y));
+    }
+    return result;
+  }
+  
+  /**
+   * Hard EM: the counts of the transitions of the best (Viterbi) path are added,
+   * instead of their expectations.
+   * 
+   * @param aligned Filled with one for the pairs of positions (x, y) that the best path aligns,
+   *   see pairHMM.posteriorMatrix()
+   * @return The log weight of the best path
+   */
+  public double addViterbiSufficientStatistics(final SuffStatTensor suffStats, 
+      final HetPairHMM pairHMM, final SequenceId topTaxon, final SequenceId botTaxon, BandedMatrix aligned)
+  {
+    StrTaxonSuffStat.StrTaxonSuffStatExtractor extractor = model.stSuffStat.getExtractor(pairHMM.str1, pairHMM.str2,topTaxon, botTaxon);
+    return addViterbiSufficientStatistics(suffStats, pairHMM, extractor, 0, 0, aligned);
+  }
+  
+  /**
+   * Hard EM in each segment of an anchored HMM, see addViterbiSufficientStatistics(SuffStatTensor, HetPairHMM, ...)
+   */
+  public double addViterbiSufficientStatistics(final SuffStatTensor suffStats, 
+      final AnchoredPairHMM pairHMM, final SequenceId topTaxon, final SequenceId botTaxon, BandedMatrix aligned)
+  {
+    StrTaxonSuffStat.StrTaxonSuffStatExtractor extractor = model.stSuffStat.getExtractor(pairHMM.str1, pairHMM.str2,topTaxon, botTaxon);
+    double result = 0.0;
+    for (int s = 0; s < pairHMM.nSegments(); s++)
+      result += addViterbiSufficientStatistics(suffStats, pairHMM.segment(s), extractor, 
+          pairHMM.topOffset(s), pairHMM.botOffset(s), aligned);
+    return result;
+  }
+  
+  private double addViterbiSufficientStatistics(final SuffStatTensor suffStats, 
+      final HetPairHMM pairHMM, final StrTaxonSuffStat.StrTaxonSuffStatExtractor extractor, 
+      final int topOffset, final int botOffset, final BandedMatrix aligned)
+  {
+    final int [] 
+      topIds = model.charIds(pairHMM.str1),
+      botIds = model.charIds(pairHMM.str2);
+    return pairHMM.viterbiPath(new EdgeMarginalVisitor() {
+      @Override
+      public void visit(int s1, int s2, int xpos, int ypos, int dx, int dy, double posterior)
       {
-        final int xid = model.charIdAt(pairHMM.str1, xpos, dx);
-        for (int ypos = 0; ypos <= pairHMM.str2.length(); ypos++)
-          for (int dy = 0; dy < 2 && ypos + dy <= pairHMM.str2.length(); dy++)
-            if (dx > 0 || dy > 0)
-            {
-              final int yid = model.charIdAt(pairHMM.str2, ypos, dy);
-              final int gss = extractor.extract(xpos, ypos);
-              for (int s1 = 0; s1 < model.nStates; s1++)
-                for (int s2 = 0; s2 < model.nStates; s2++)
-                {
-                  final Input in = new Input(s1, gss, model);
-                  final Output out = new Output(s2, xid, yid, model);
-                  final double value = Math.exp(pairHMM.logSumProduct(s1, s2, xpos, ypos, dx, dy) - logSumPr);
-                  if (value > 0.0)
-                    suffStats.incrementCount(new LabeledInstance<Input,Output>(out,in), 
-                        value);
-                }
-            }
+        final int 
+          xid = dx == 1 ? topIds[xpos] : model.epsilon(),
+          yid = dy == 1 ? botIds[ypos] : model.epsilon();
+        suffStats.increment(s1, s2, extractor.extract(xpos + topOffset, ypos + botOffset), xid, yid, posterior);
+        if (dx == 1 && dy == 1)
+          aligned.set(xpos + topOffset, ypos + botOffset, 1.0);
       }
+    });
+  }
+  
+  /**
+   * Monte Carlo EM: the counts of the transitions of nSamples paths drawn from the posterior
+   * are added (each with a weight of 1 / nSamples), instead of their expectations.
+   * 
+   * @param aligned Incremented by the fraction of the paths aligning each pair of positions (x, y),
+   *   see pairHMM.posteriorMatrix()
+   * @return The log-likelihood of the pair
+   */
+  public double addSampledSufficientStatistics(final SuffStatTensor suffStats, 
+      final HetPairHMM pairHMM, final SequenceId topTaxon, final SequenceId botTaxon, 
+      Random rand, int nSamples, BandedMatrix aligned)
+  {
+    StrTaxonSuffStat.StrTaxonSuffStatExtractor extractor = model.stSuffStat.getExtractor(pairHMM.str1, pairHMM.str2,topTaxon, botTaxon);
+    return addSampledSufficientStatistics(suffStats, pairHMM, extractor, 0, 0, rand, nSamples, aligned);
+  }
+  
+  /**
+   * Monte Carlo EM in each segment of an anchored HMM, see addSampledSufficientStatistics(SuffStatTensor, HetPairHMM, ...)
+   */
+  public double addSampledSufficientStatistics(final SuffStatTensor suffStats, 
+      final AnchoredPairHMM pairHMM, final SequenceId topTaxon, final SequenceId botTaxon, 
+      Random rand, int nSamples, BandedMatrix aligned)
+  {
+    StrTaxonSuffStat.StrTaxonSuffStatExtractor extractor = model.stSuffStat.getExtractor(pairHMM.str1, pairHMM.str2,topTaxon, botTaxon);
+    double result = 0.0;
+    for (int s = 0; s < pairHMM.nSegments(); s++)
+      result += addSampledSufficientStatistics(suffStats, pairHMM.segment(s), extractor, 
+          pairHMM.topOffset(s), pairHMM.botOffset(s), rand, nSamples, aligned);
+    return result;
+  }
+  
+  private double addSampledSufficientStatistics(final SuffStatTensor suffStats, 
+      final HetPairHMM pairHMM, final StrTaxonSuffStat.StrTaxonSuffStatExtractor extractor, 
+      final int topOffset, final int botOffset, Random rand, int nSamples, final BandedMatrix aligned)
+  {
+    final int [] 
+      topIds = model.charIds(pairHMM.str1),
+      botIds = model.charIds(pairHMM.str2);
+    pairHMM.samplePaths(rand, nSamples, new EdgeMarginalVisitor() {
+      @Override
+      public void visit(int s1, int s2, int xpos, int ypos, int dx, int dy, double posterior)
+      {
+        final int 
+          xid = dx == 1 ? topIds[xpos] : model.epsilon(),
+          yid = dy == 1 ? botIds[ypos] : model.epsilon();
+        suffStats.increment(s1, s2, extractor.extract(xpos + topOffset, ypos + botOffset), xid, yid, posterior);
+        if (dx == 1 && dy == 1)
+          aligned.increment(xpos + topOffset, ypos + botOffset, posterior);
+      }
+    });
+    // from the backward recursion, used by the sampler (the forward one is not computed)
+    return pairHMM.suffixLogSumProduct(model.startState, pairHMM.str1.length(), pairHMM.str2.length());
+  }
+  
+  // offsets are the positions of the strings of pairHMM in the strings seen by the extractor
+  private BandedMatrix addSufficientStatistics(final SuffStatTensor suffStats, 
+      final HetPairHMM pairHMM, final StrTaxonSuffStat.StrTaxonSuffStatExtractor extractor, 
+      final int topOffset, final int botOffset)
+  {
+    final int [] 
+      topIds = model.charIds(pairHMM.str1),
+      botIds = model.charIds(pairHMM.str2);
+    return pairHMM.edgeMarginals(new EdgeMarginalVisitor() {
+      @Override
+      public void visit(int s1, int s2, int xpos, int ypos, int dx, int dy, double posterior)
+      {
+        final int 
+          xid = dx == 1 ? topIds[xpos] : model.epsilon(),
+          yid = dy == 1 ? botIds[ypos] : model.epsilon();
+        suffStats.increment(s1, s2, extractor.extract(xpos + topOffset, ypos + botOffset), xid, yid, posterior);
+      }
+    });
   }
   
   public HetPairHMM getReweightedHMM(double [][][] logWeights, Sequence top, Sequence bot, SequenceId topL, SequenceId botL)
@@ -229,35 +592,128 @@ public final class ExponentialFamily
   }
   
   public HetPairHMM getHMM(Sequence top, Sequence bot, SequenceId topL, SequenceId botL)
+  {
+    return getHMM(top, bot, topL, botL, null);
+  }
+  
+  /**
+   * @param envelope A restriction of the lattice over top and bot with the boundary symbols appended 
+   *   (i.e. with one more symbol each), or null to use the full lattice (or the coarse-to-fine envelope, 
+   *   if enabled)
+   */
+  public HetPairHMM getHMM(Sequence top, Sequence bot, SequenceId topL, SequenceId botL, Envelope envelope)
+  {
+    return getHMM(top, bot, topL, botL, envelope, true);
+  }
+  
+  /**
+   * @param checkEnvelope If the coarse-to-fine envelope is used, whether to check that it allows a path of 
+   *   the full model, falling back to the full lattice otherwise. This runs the forward recursion: callers 
+   *   not needing it (e.g. hard EM) can skip the check, and use the full lattice if they find no path.
+   */
+  public HetPairHMM getHMM(Sequence top, Sequence bot, SequenceId topL, SequenceId botL, Envelope envelope, boolean checkEnvelope)
+  {
+    top = top.append(model.BOUNDARY_SYMBOL); 
+    bot = bot.append(model.BOUNDARY_SYMBOL); 
+    HetPairHMMSpecification spec = cachedParams.getUnsupPairHMM(top, bot, topL, botL);
+    if (envelope != null)
+      return new HetPairHMM(top, bot, spec, envelope);
+    if (coarseToFine == null)
+      return new HetPairHMM(top, bot, spec);
+    Envelope coarseEnvelope = coarseToFine.envelope(top, bot, model.stSuffStat.getExtractor(top, bot, topL, botL));
+    HetPairHMM result = new HetPairHMM(top, bot, spec, coarseEnvelope);
+    if (checkEnvelope && result.logSumProduct() == Double.NEGATIVE_INFINITY) 
+      // no path allowed by the full model in the envelope, fall back to the full lattice
+      result = new HetPairHMM(top, bot, spec);
+    return result;
+  }
+  
+  /**
+   * A pair HMM in which the provided anchors are pinned to be aligned.
+   * 
+   * @param anchors Positions in top and bot (i.e. before appending the boundary symbol)
+   */
+  public AnchoredPairHMM getAnchoredHMM(Sequence top, Sequence bot, SequenceId topL, SequenceId botL, 
+      List<Pair<Integer,Integer>> anchors, int nThreads)
   {
     top = top.append(model.BOUNDARY_SYMBOL); 
     bot = bot.append(model.BOUNDARY_SYMBOL); 
-    return new HetPairHMM(top, bot, cachedParams.getUnsupPairHMM(top, bot, topL, botL));
+    return new AnchoredPairHMM(top, bot, cachedParams.getUnsupPairHMM(top, bot, topL, botL), anchors, nThreads);
+  }
+  
+  public PairPosteriors allPairsPosterior(Map<SequenceId,Sequence> sequences)
+  {
+    return allPairsPosterior(sequences, 1);
   }
   
-  public Counter<Edge> allPairsPosterior(Map<SequenceId,Sequence> sequences)
+  /**
+   * The pairs are aligned in parallel, longest first; the result does not depend 
+   * on the number of threads. Pairs with the same key (see pairKey()) are aligned once.
+   */
+  public PairPosteriors allPairsPosterior(final Map<SequenceId,Sequence> sequences, int nThreads)
   {
-    Counter<Edge> edgePosteriors = new Counter<Edge>();
     List<SequenceId> langs = new ArrayList<SequenceId>(sequences.keySet());
+    final List<Pair<SequenceId,SequenceId>> pairs = new ArrayList<Pair<SequenceId,SequenceId>>();
     for (int i = 0; i < langs.size(); i++)
-    {
-      final SequenceId l1 = langs.get(i);
       for (int j = i+1; j < langs.size(); j++)
+        pairs.add(Pair.of(langs.get(i), langs.get(j)));
+    final List<BandedMatrix> posteriors = new ArrayList<BandedMatrix>();
+    List<Integer> schedule = new ArrayList<Integer>();
+    Map<PairKey,Integer> firstOccurrences = new HashMap<PairKey,Integer>();
+    int [] representatives = new int[pairs.size()];
+    for (int p = 0; p < pairs.size(); p++)
+    {
+      posteriors.add(null);
+      final SequenceId l1 = pairs.get(p).getLeft(), l2 = pairs.get(p).getRight();
+      final PairKey key = pairKey(sequences.get(l1), sequences.get(l2), l1, l2);
+      final Integer first = firstOccurrences.get(key);
+      representatives[p] = first == null ? p : first;
+      if (first == null)
+      {
+        firstOccurrences.put(key, p);
+        schedule.add(p);
+      }
+    }
+    Collections.sort(schedule, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer p1, Integer p2)
       {
-        final SequenceId l2 = langs.get(j);
+        return Long.compare(area(sequences, pairs.get(p2)), area(sequences, pairs.get(p1)));
+      }
+    });
+    Parallel.forEach(nThreads, schedule, new Parallel.Worker<Integer>() {
+      @Override
+      public void process(int index, Integer p)
+      {
+        final SequenceId 
+          l1 = pairs.get(p).getLeft(),
+          l2 = pairs.get(p).getRight();
         final Sequence 
           s1 = sequences.get(l1),
           s2 = sequences.get(l2);
-        HetPairHMM hmm = getHMM(s1, s2, l1, l2);
-        for (int p1 = 0; p1 < s1.length(); p1++)
-          for (int p2 = 0; p2 < s2.length(); p2++)
-          {
-            final Edge current = new Edge(p1, p2, l1, l2);
-            edgePosteriors.setCount(current, Math.exp(hmm.logPosteriorAlignment(p1, p2)));
-          }
+        posteriors.set(p, getHMM(s1, s2, l1, l2).edgeMarginals(null));
       }
-    }
-    return edgePosteriors;
+    });
+    // the last row and column of the posteriors are for the boundary symbols, and are ignored here
+    PairPosteriors result = new PairPosteriors(sequences);
+    for (int p = 0; p < pairs.size(); p++)
+      result.set(pairs.get(p).getLeft(), pairs.get(p).getRight(), posteriors.get(representatives[p]));
+    return result;
+  }
+  
+  /**
+   * @return A key such that two pairs with equal keys have the same posteriors and
+   *   expected sufficient statistics
+   */
+  public PairKey pairKey(Sequence top, Sequence bot, SequenceId topL, SequenceId botL)
+  {
+    // the f-suff-stats of FeatureExtractor depend on the pair of taxa only, not on the positions
+    return new PairKey(top, bot, model.stSuffStat.getExtractor(top, bot, topL, botL).extract(0, 0));
+  }
+  
+  private static long area(Map<SequenceId,Sequence> sequences, Pair<SequenceId,SequenceId> pair)
+  {
+    return (sequences.get(pair.getLeft()).length() + 1L) * (sequences.get(pair.getRight()).length() + 1L);
   }
   
   public MSAPoset maxRecallAlignFromAllPairs(Map<SequenceId,Sequence> sequences)
@@ -49,7 +49,7 @@ public final class FeatureExtractor implements
   private List<String> [] _features = null;
   
   @SuppressWarnings("unchecked")
-  private List<String> [] features()
+  private synchronized List<String> [] features()
   {
     if (_features != null)
       return _features;
@@ -77,6 +77,18 @@ public final class FeatureExtractor implements
     return _features;
   }
   
+  /**
+   * @return The letter-specific features read from the featuresFile, or null
+   *   if there are none for this letter (or no featuresFile)
+   */
+  public List<String> letterFeatures(Letter letter)
+  {
+    List<String> [] features = features();
+    if (features == null || !alphabet.indexer.containsObject(letter))
+      return null;
+    return features[alphabet.indexer.o2i(letter)];
+  }
+
   @Override
   public Counter<Object> extractFeatures(LabeledInstance<Input, Output> instance)
   {
@@ -136,6 +148,94 @@ public final class FeatureExtractor implements
     return result;
   }
   
+  /**
+   * Receives the features of an instance, see extractHashedFeatures()
+   */
+  public static interface HashedFeatureVisitor
+  {
+    public void visit(long hash, double value);
+  }
+  
+  // templates of the hashed features
+  private static final int PAIR = 1, FEAT_DIM_CHANGE = 2, FEAT_CHANGE = 3, SELF_SUB = 4, STATE = 5, STATE_PAIR = 6;
+  
+  /**
+   * The features of extractFeatures(), each identified by a 64 bits hash of its template and 
+   * arguments instead of its name, so that no string is built (see CompiledFeatures for feature
+   * hashing). A feature counted several times by extractFeatures() is visited several times.
+   */
+  public void extractHashedFeatures(LabeledInstance<Input, Output> instance, HashedFeatureVisitor visitor)
+  {
+    List<String> [] features = features();
+    final Input input = instance.getInput();
+    final Output label = instance.getLabel();
+    
+    for (int p = 0; p < (options.addPairSpecific ? 2 : 1); p++)
+    {
+      final int prefix = p == 0 ? 0 : input.strTaxSuffStat + 1; // 0 for the features shared by all pairs of taxa
+      // pairs
+      if (options.useLetterPairs)
+        visitor.visit(hash(prefix, PAIR, 
+            Math.min(label.topSymbol, label.botSymbol), 
+            Math.max(label.topSymbol, label.botSymbol)), 1.0);
+      
+      if (features != null && 
+          label.topSymbol < features.length && 
+          label.botSymbol < features.length)
+      {
+        List<String> 
+          feat1 = features[label.topSymbol],
+          feat2 = features[label.botSymbol];
+        
+        if (feat1 != null && feat2 != null) // check needed because of boundary symbols
+        {
+          if (feat1.size() != feat2.size())
+          {
+            visitor.visit(hash(prefix, FEAT_DIM_CHANGE, Math.abs(feat1.size() - feat2.size()), 0), 1.0);
+            // without prefix, as in extractFeatures()
+            for (int d = 0; d < feat1.size(); d++) visitor.visit(hash(0, FEAT_CHANGE, d, feat1.size()), 1.0);
+            for (int d = 0; d < feat2.size(); d++) visitor.visit(hash(0, FEAT_CHANGE, d, feat2.size()), 1.0);
+          }
+          else
+          {
+            final int size = feat1.size();
+            for (int d = 0; d < size; d++)
+              if (!feat1.get(d).equals(feat2.get(d)))
+                visitor.visit(hash(prefix, FEAT_CHANGE, d, size), 1.0);
+          }
+        }
+      }
+      
+      // self-sub
+      if (label.topSymbol == label.botSymbol)
+        visitor.visit(hash(prefix, SELF_SUB, 0, 0), 1.0);
+      
+      // is it del, sub or ins?
+      visitor.visit(hash(prefix, STATE, collapseInDelStates(input.state1), 0), 1.0);
+      
+      // subsumes long ins, del
+      if (options.useLongGaps)
+        visitor.visit(hash(prefix, STATE_PAIR, collapseInDelStates(input.state1), collapseInDelStates(label.state2)), 1.0);
+    }
+  }
+  
+  private static long hash(int prefix, int template, int argument1, int argument2)
+  {
+    long result = 0x9e3779b97f4a7c15L;
+    result = mix(result ^ template);
+    result = mix(result ^ prefix);
+    result = mix(result ^ argument1);
+    return mix(result ^ argument2);
+  }
+  
+  // finalizer of MurmurHash3 (a bijection, so that collisions only come from the xors)
+  private static long mix(long h)
+  {
+    h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+    h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return h ^ (h >>> 33);
+  }
+  
   private String toString(Letter letter)
   {
     if (letter == null)
@@ -0,0 +1,159 @@
+package muset.pef;
+
+import java.util.concurrent.Semaphore;
+
+import briefj.opt.Option;
+import muset.hmm.Envelope;
+import muset.hmm.HetPairHMM;
+import muset.util.BandedMatrix;
+
+
+
+/**
+ * Decides, before aligning a pair, how to run its dynamic program so that it
+ * fits in a memory budget, instead of letting one oversized pair exhaust the
+ * heap and kill a whole run.
+ *
+ * The memory of a pair is estimated as the one of the forward/backward tables,
+ * nTables x nStates x (number of lattice nodes) x 8 bytes, plus the one of the
+ * matrix of its alignment posteriors, which only stores the pairs of positions
+ * in the envelope (see HetPairHMM.posteriorMatrix()); the latter is kept with the
+ * posteriors of the group after the pair is released. The strategies, in order
+ * of preference, are:
+ *
+ * - FULL: the full lattice fits in the budget.
+ * - BANDED: the lattice is restricted to the widest band around the diagonal
+ *   that fits in the budget (HetPairHMM only stores the nodes in its Envelope).
+ *   The width is chosen from an upper bound on the size of the band, see
+ *   Envelope.maxBandSize(), so that no lattice-sized structure is allocated.
+ * - OVER_BUDGET: even the narrowest band allowed does not fit; it is used
+ *   anyway, the pair being aligned alone (it acquires the whole budget) and
+ *   reported, so that its statistics are not lost.
+ *
+ * Concurrent alignments should acquire() their plan before allocating and
+ * release() it after; this caps the total memory of the pairs in flight as
+ * well as the number of large pairs aligned concurrently.
+ */
+public final class MemoryPlanner
+{
+  public static class MemoryPlannerOptions
+  {
+    @Option(gloss = "Memory budget (in MB) for the dynamic programming tables of all the pairs aligned concurrently. "
+        + "If zero or negative, half of the maximum heap size is used.")
+    public int memoryBudgetMB = 0;
+
+    @Option(gloss = "Pairs whose tables need more than this (in MB) are considered large, see maxConcurrentLargePairs.")
+    public int largePairMB = 64;
+
+    @Option(gloss = "Maximum number of large pairs aligned concurrently.")
+    public int maxConcurrentLargePairs = 1;
+
+    @Option(gloss = "Narrowest band (half width) used for the pairs not fitting in the memory budget. If even this band "
+        + "does not fit, it is used anyway, with the pair aligned alone.")
+    public int minBandHalfWidth = 10;
+  }
+
+  public static enum Strategy { FULL, BANDED, OVER_BUDGET }
+
+  public static final class Plan
+  {
+    public final Strategy strategy;
+
+    /**
+     * The restriction of the lattice
+     */
+    public final Envelope envelope;
+    public final long fullBytes, bytes;
+
+    private Plan(Strategy strategy, Envelope envelope, long fullBytes, long bytes)
+    {
+      this.strategy = strategy;
+      this.envelope = envelope;
+      this.fullBytes = fullBytes;
+      this.bytes = bytes;
+    }
+
+    @Override
+    public String toString()
+    {
+      return strategy + " (full lattice: " + toMB(fullBytes) + "MB, planned: " + toMB(bytes) + "MB" +
+          (strategy != Strategy.FULL ? ", band of " + envelope : "") + ")";
+    }
+  }
+
+  private final MemoryPlannerOptions options;
+  private final int nStates, nTables;
+  private final long budget;
+  private final Semaphore budgetMB, largePairs;
+
+  /**
+   * @param nTables Number of tables of the dynamic program (e.g. 2 for forward-backward)
+   */
+  public MemoryPlanner(MemoryPlannerOptions options, int nStates, int nTables)
+  {
+    this.options = options;
+    this.nStates = nStates;
+    this.nTables = nTables;
+    this.budget = options.memoryBudgetMB > 0 ?
+        1024L * 1024L * options.memoryBudgetMB :
+        Runtime.getRuntime().maxMemory() / 2;
+    this.budgetMB = new Semaphore(toMB(budget), true);
+    this.largePairs = new Semaphore(options.maxConcurrentLargePairs, true);
+  }
+
+  /**
+   * @param len1 Length of the top string (including the boundary symbol, if any)
+   * @param len2 Length of the bottom string (including the boundary symbol, if any)
+   */
+  public Plan plan(int len1, int len2)
+  {
+    final Envelope full = Envelope.full(len1, len2);
+    final long fullBytes = HetPairHMM.estimateBytes(nTables, nStates, full);
+    if (fullBytes <= budget)
+      return new Plan(Strategy.FULL, full, fullBytes, fullBytes);
+    // widest band whose size bound fits, see Envelope.maxBandSize() (the posteriors take at most one entry per node)
+    final long maxNodes = (budget - BandedMatrix.estimateBytes(len1, 0)) / (8L * nTables * nStates + BandedMatrix.estimateBytes(0, 1));
+    final long halfWidth = Math.min(Math.max(len1, len2), ((maxNodes - len2) / (len1 + 1L) - 1L) / 2L);
+    final boolean fits = halfWidth >= options.minBandHalfWidth;
+    Envelope band = Envelope.band(len1, len2, fits ? (int) halfWidth : options.minBandHalfWidth);
+    return new Plan(fits ? Strategy.BANDED : Strategy.OVER_BUDGET, band, fullBytes, 
+        HetPairHMM.estimateBytes(nTables, nStates, band));
+  }
+
+  /**
+   * Block until the memory of the plan is available.
+   */
+  public void acquire(Plan plan)
+  {
+    try
+    {
+      if (isLarge(plan))
+        largePairs.acquire();
+      budgetMB.acquire(permits(plan));
+    }
+    catch (InterruptedException e) { throw new RuntimeException(e); }
+  }
+
+  public void release(Plan plan)
+  {
+    budgetMB.release(permits(plan));
+    if (isLarge(plan))
+      largePairs.release();
+  }
+
+  // an over-budget plan takes the whole budget
+  private int permits(Plan plan)
+  {
+    return Math.min(toMB(plan.bytes), toMB(budget));
+  }
+
+  private boolean isLarge(Plan plan)
+  {
+    return plan.bytes > 1024L * 1024L * options.largePairMB;
+  }
+
+  private static int toMB(long bytes)
+  {
+    return (int) Math.min(Integer.MAX_VALUE, (bytes + 1024L * 1024L - 1) / (1024L * 1024L));
+  }
+}
@@ -91,6 +91,45 @@ public final class Model
     else throw new RuntimeException();
   }
   
+  /**
+   * @return The index of each letter of str, looked up once so that the dynamic programs only handle ints
+   *   (the indices carried by the sequence, see Sequence.fromIds(), are copied instead when they agree with enc)
+   */
+  public int [] charIds(Sequence str)
+  {
+    int [] result = new int[str.length()];
+    final int [] ids = str.letterIds();
+    int i = 0;
+    if (ids != null && sameIndices(str.alphabet))
+    {
+      System.arraycopy(ids, 0, result, 0, ids.length);
+      i = ids.length;
+    }
+    for (; i < result.length; i++)
+      result[i] = charIdAt(str, i, 1);
+    return result;
+  }
+  
+  // last alphabet checked by sameIndices(), and its size then
+  private Alphabet sameIndicesAlphabet = null;
+  private int sameIndicesSize = -1;
+  
+  // if each letter of the alphabet has the same index in enc (e.g. enc was copied from it)
+  private synchronized boolean sameIndices(Alphabet alphabet)
+  {
+    if (alphabet == enc || (alphabet == sameIndicesAlphabet && alphabet.indexer.size() == sameIndicesSize))
+      return true;
+    final int size = alphabet.indexer.size();
+    if (size > enc.indexer.size())
+      return false;
+    for (int i = 0; i < size; i++)
+      if (!alphabet.indexer.i2o(i).equals(enc.indexer.i2o(i)))
+        return false;
+    sameIndicesAlphabet = alphabet;
+    sameIndicesSize = size;
+    return true;
+  }
+  
   public static class ThreeStatesBaseMeasure implements bayonet.regression.BaseMeasures<Input,Output>
   {
     private static final long serialVersionUID = 1L;
@@ -0,0 +1,247 @@
+package muset.pef;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import muset.Alphabet;
+import muset.Alphabet.Letter;
+import muset.SequenceId;
+import muset.pef.FeatureExtractor.FeatureOptions;
+import muset.pef.Model.ThreeStatesBaseMeasure;
+import bayonet.regression.MaxentClassifier.MaxentOptions;
+import briefj.collections.Counter;
+import briefj.collections.UnorderedPair;
+
+
+
+/**
+ * A trained model in a single binary file: alphabet, states, feature options,
+ * taxa pairs, natural parameters and the precomputed tensor of CachedParams.
+ *
+ * Loading a bundle skips the extraction of the features of all the transitions
+ * (needed to compute the cached parameters from the natural ones), so that
+ * inference can start right away. The file is memory mapped, in chunks for the
+ * tensor (a mapping is limited to 2GB).
+ *
+ * Binary format (big endian, strings are an int length followed by UTF-8 bytes):
+ * magic number, version, letters in index order, state names, start and end states,
+ * feature options, taxa pairs in the order of their f-suff-stat index, natural parameters
+ * (count, then feature name and weight for each), number of f-suff-stats, then the
+ * entries of the tensor in the support of the base measure, as the packed blocks of
+ * the sparse storage (see CachedParams.write()). Version 1 (the full tensor in row
+ * major order) is no longer read.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ */
+public final class ModelBundle
+{
+  private static final int MAGIC = 0x4d53424e; // "MSBN"
+  private static final int VERSION = 2;
+  private static final long MAX_CHUNK_BYTES = 1L << 30;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  public final Model model;
+  public final FeatureExtractor featureExtractor;
+  public final Counter<Object> naturalParams;
+  public final CachedParams cachedParams;
+
+  private ModelBundle(Model model, FeatureExtractor featureExtractor, Counter<Object> naturalParams, CachedParams cachedParams)
+  {
+    this.model = model;
+    this.featureExtractor = featureExtractor;
+    this.naturalParams = naturalParams;
+    this.cachedParams = cachedParams;
+  }
+
+  /**
+   * @param learningOptions Used if the parameters are further trained
+   * @param regularizationCenters Used if the parameters are further trained
+   */
+  public ExponentialFamily createExpfam(MaxentOptions<Object> learningOptions, Counter<Object> regularizationCenters)
+  {
+    return new ExponentialFamily(naturalParams, regularizationCenters, learningOptions, model,
+        new ThreeStatesBaseMeasure(model), featureExtractor, cachedParams);
+  }
+
+  static void write(ExponentialFamily expFam, CachedParams cachedParams, File file)
+  {
+    final Model model = expFam.model;
+    final FeatureExtractor fe = expFam.featureExtractor;
+    File temp = new File(file.getPath() + ".tmp");
+    DataOutputStream out = null;
+    try
+    {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(model.enc.indexer.size());
+      for (Letter letter : model.enc.indexer.objectsList())
+        writeString(out, letter.toString());
+      out.writeInt(model.nStates);
+      for (Object state : model.stateIndexer.objectsList())
+        writeString(out, state.toString());
+      out.writeInt(model.startState);
+      out.writeInt(model.endState);
+      out.writeBoolean(fe.options.useLongGaps);
+      out.writeBoolean(fe.options.addPairSpecific);
+      out.writeBoolean(fe.options.useLetterPairs);
+      writeString(out, fe.options.featuresFile);
+      out.writeInt(fe.sequenceIdPairsIndex.size());
+      for (UnorderedPair<SequenceId,SequenceId> pair : fe.sequenceIdPairsIndex.objectsList())
+      {
+        writeString(out, pair.getFirst().toString());
+        writeString(out, pair.getSecond().toString());
+      }
+      final Counter<Object> naturalParams = expFam.getNaturalParams();
+      out.writeInt(naturalParams.size());
+      for (Object feature : naturalParams.keySet())
+      {
+        writeString(out, feature.toString());
+        out.writeDouble(naturalParams.getCount(feature));
+      }
+      out.writeInt(model.stSuffStat.valuesIndexer.size());
+      cachedParams.write(out);
+      out.close();
+      out = null;
+    }
+    catch (IOException e) { throw new RuntimeException(e); }
+    finally
+    {
+      if (out != null)
+        try { out.close(); } catch (IOException e) {}
+    }
+    if ((file.exists() && !file.delete()) || !temp.renameTo(file))
+      throw new RuntimeException("Could not write the model bundle " + file);
+  }
+
+  public static ModelBundle read(File file)
+  {
+    return read(file, CachedParams.Storage.DEFAULT);
+  }
+  
+  /**
+   * @param storage Storage of the cached parameters read
+   */
+  public static ModelBundle read(File file, CachedParams.Storage storage)
+  {
+    RandomAccessFile raf = null;
+    try
+    {
+      raf = new RandomAccessFile(file, "r");
+      final FileChannel channel = raf.getChannel();
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(raf.length(), Integer.MAX_VALUE));
+      if (buffer.getInt() != MAGIC)
+        throw new RuntimeException("Not a model bundle: " + file);
+      final int version = buffer.getInt();
+      if (version != VERSION)
+        throw new RuntimeException("Unsupported model bundle version " + version + " in " + file);
+      // alphabet
+      Alphabet alphabet = new Alphabet();
+      final int nLetters = buffer.getInt();
+      for (int i = 0; i < nLetters; i++)
+        alphabet.getLetter(readString(buffer));
+      // states (only the standard three states model is supported for now)
+      final int nStates = buffer.getInt();
+      String [] states = new String[nStates];
+      for (int i = 0; i < nStates; i++)
+        states[i] = readString(buffer);
+      final int startState = buffer.getInt(), endState = buffer.getInt();
+      // features
+      FeatureOptions options = new FeatureOptions();
+      options.useLongGaps = buffer.get() != 0;
+      options.addPairSpecific = buffer.get() != 0;
+      options.useLetterPairs = buffer.get() != 0;
+      options.featuresFile = readString(buffer);
+      Set<UnorderedPair<SequenceId,SequenceId>> taxaPairs = new LinkedHashSet<UnorderedPair<SequenceId,SequenceId>>();
+      final int nPairs = buffer.getInt();
+      for (int i = 0; i < nPairs; i++)
+      {
+        final SequenceId first = new SequenceId(readString(buffer));
+        taxaPairs.add(UnorderedPair.of(first, new SequenceId(readString(buffer))));
+      }
+      FeatureExtractor fe = new FeatureExtractor(alphabet, taxaPairs, options);
+      Model model = Model.stdBranchSpecificModel(alphabet, fe.getStrTaxonSuffStat());
+      checkStates(model, states, startState, endState, file);
+      if (model.enc.indexer.size() != nLetters)
+        throw new RuntimeException("The alphabet of the model bundle " + file + " does not contain the boundary symbol");
+      // parameters
+      Counter<Object> naturalParams = new Counter<Object>();
+      final int nParams = buffer.getInt();
+      for (int i = 0; i < nParams; i++)
+      {
+        final String feature = readString(buffer);
+        naturalParams.setCount(feature, buffer.getDouble());
+      }
+      if (buffer.getInt() != model.stSuffStat.valuesIndexer.size())
+        throw new RuntimeException("Inconsistent number of taxa pairs in the model bundle " + file);
+      CachedParams cachedParams = new CachedParams(model, mapDoubles(channel, buffer.position(), raf.length()), storage);
+      return new ModelBundle(model, fe, naturalParams, cachedParams);
+    }
+    catch (IOException e) { throw new RuntimeException(e); }
+    finally
+    {
+      if (raf != null)
+        try { raf.close(); } catch (IOException e) {}
+    }
+  }
+
+  // the doubles between offset and end, in mappings of at most MAX_CHUNK_BYTES
+  private static List<DoubleBuffer> mapDoubles(FileChannel channel, long offset, long end) throws IOException
+  {
+    if ((end - offset) % 8 != 0)
+      throw new RuntimeException("Truncated model bundle");
+    List<DoubleBuffer> result = new ArrayList<DoubleBuffer>();
+    for (long start = offset; start < end; start += MAX_CHUNK_BYTES)
+      result.add(channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAX_CHUNK_BYTES, end - start)).asDoubleBuffer());
+    return result;
+  }
+
+  /**
+   * @return The letters of the given alphabet that are not in the bundle's
+   */
+  public List<Letter> missingLetters(Alphabet alphabet)
+  {
+    List<Letter> result = new ArrayList<Letter>();
+    for (Letter letter : alphabet.indexer.objectsList())
+      if (!model.enc.containsLetter(letter.toString()))
+        result.add(letter);
+    return result;
+  }
+
+  private static void checkStates(Model model, String [] states, int startState, int endState, File file)
+  {
+    boolean ok = states.length == model.nStates && startState == model.startState && endState == model.endState;
+    for (int i = 0; ok && i < states.length; i++)
+      ok = states[i].equals(model.stateIndexer.i2o(i).toString());
+    if (!ok)
+      throw new RuntimeException("Unsupported states in the model bundle " + file);
+  }
+
+  static void writeString(DataOutputStream out, String string) throws IOException
+  {
+    final byte [] bytes = string.getBytes(UTF8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static String readString(ByteBuffer buffer)
+  {
+    final byte [] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, UTF8);
+  }
+}
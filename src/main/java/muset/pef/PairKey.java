@@ -0,0 +1,52 @@
+package muset.pef;
+
+import muset.Sequence;
+
+/**
+ * Identifies the alignment problem of a pair of sequences: two pairs with the
+ * same top and bot sequences and the same f-suff-stat have the same posteriors
+ * and expected sufficient statistics, so they need to be aligned only once.
+ *
+ * See ExponentialFamily.pairKey()
+ */
+public final class PairKey
+{
+  public final Sequence top, bot;
+  public final int strTaxSuffStat;
+  private final int hashCode;
+
+  public PairKey(Sequence top, Sequence bot, int strTaxSuffStat)
+  {
+    this.top = top;
+    this.bot = bot;
+    this.strTaxSuffStat = strTaxSuffStat;
+    final int prime = 31;
+    int result = 1;
+    result = prime * result + top.hashCode();
+    result = prime * result + bot.hashCode();
+    result = prime * result + strTaxSuffStat;
+    this.hashCode = result; // the hash of a sequence is linear in its length, so it is computed once
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return hashCode;
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    if (this == obj)
+      return true;
+    if (obj == null)
+      return false;
+    if (getClass() != obj.getClass())
+      return false;
+    PairKey other = (PairKey) obj;
+    return hashCode == other.hashCode
+        && strTaxSuffStat == other.strTaxSuffStat
+        && top.equals(other.top)
+        && bot.equals(other.bot);
+  }
+}
@@ -0,0 +1,225 @@
+package muset.pef;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import bayonet.regression.LabeledInstance;
+import briefj.collections.Counter;
+
+
+
+/**
+ * Expected sufficient statistics, i.e. expected counts indexed by
+ * state 1 -> state 2 -> f-suff-stat -> (symbol1 U EPSILON) -> (symbol2 U EPSILON),
+ * the same layout as CachedParams.
+ *
+ * Each (state 1, state 2, f-suff-stat) block is a dense array over the pairs of
+ * symbols, allocated on the first increment, and found through a sparse map
+ * (open addressing over the block indices): the statistics of one pair of taxa,
+ * which only see a few f-suff-stats when these are pair specific, then take
+ * memory and add() time proportional to the blocks they use, not to
+ * nStates^2 x nStss.
+ *
+ * Converted to labeled instances only for the maxent learner, see toCounter().
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ */
+public final class SuffStatTensor
+{
+  private final Model model;
+  private final int nStss, nSymbols;
+  private final int nBlocks;
+  // sparse map (state 1, state 2, f-suff-stat) -> (symbol1, symbol2); the capacity is a power of two
+  private int [] keys = emptyKeys(INITIAL_CAPACITY); // block index, or EMPTY
+  private double [][] blocks = new double[INITIAL_CAPACITY][];
+  private int nUsedBlocks = 0;
+  private static final int INITIAL_CAPACITY = 16, EMPTY = -1;
+
+  public SuffStatTensor(Model model)
+  {
+    this.model = model;
+    this.nStss = model.stSuffStat.valuesIndexer.size();
+    this.nSymbols = model.epsilon() + 1;
+    this.nBlocks = model.nStates * model.nStates * nStss;
+  }
+
+  public void increment(int state1, int state2, int strTaxSuffStat, int topSymbol, int botSymbol, double value)
+  {
+    block(blockIndex(state1, state2, strTaxSuffStat))[topSymbol * nSymbols + botSymbol] += value;
+  }
+
+  public double get(int state1, int state2, int strTaxSuffStat, int topSymbol, int botSymbol)
+  {
+    final double [] block = findBlock(blockIndex(state1, state2, strTaxSuffStat));
+    return block == null ? 0.0 : block[topSymbol * nSymbols + botSymbol];
+  }
+
+  // the block, or null if it was never incremented
+  private double [] findBlock(int b)
+  {
+    for (int slot = slot(b, keys.length); keys[slot] != EMPTY; slot = (slot + 1) & (keys.length - 1))
+      if (keys[slot] == b)
+        return blocks[slot];
+    return null;
+  }
+
+  // the block, allocated if needed
+  private double [] block(int b)
+  {
+    int slot = slot(b, keys.length);
+    for (; keys[slot] != EMPTY; slot = (slot + 1) & (keys.length - 1))
+      if (keys[slot] == b)
+        return blocks[slot];
+    if (2 * (nUsedBlocks + 1) > keys.length)
+    {
+      rehash(2 * keys.length);
+      return block(b);
+    }
+    keys[slot] = b;
+    nUsedBlocks++;
+    return blocks[slot] = new double[nSymbols * nSymbols];
+  }
+
+  private void rehash(int capacity)
+  {
+    final int [] oldKeys = keys;
+    final double [][] oldBlocks = blocks;
+    keys = emptyKeys(capacity);
+    blocks = new double[capacity][];
+    for (int i = 0; i < oldKeys.length; i++)
+      if (oldKeys[i] != EMPTY)
+      {
+        int slot = slot(oldKeys[i], capacity);
+        while (keys[slot] != EMPTY)
+          slot = (slot + 1) & (capacity - 1);
+        keys[slot] = oldKeys[i];
+        blocks[slot] = oldBlocks[i];
+      }
+  }
+
+  private static int slot(int b, int capacity)
+  {
+    final int h = b * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & (capacity - 1);
+  }
+
+  private static int [] emptyKeys(int capacity)
+  {
+    final int [] result = new int[capacity];
+    Arrays.fill(result, EMPTY);
+    return result;
+  }
+
+  /**
+   * Add the counts of other to this object.
+   */
+  public void add(SuffStatTensor other)
+  {
+    add(other, 1.0);
+  }
+
+  /**
+   * Add the counts of other, multiplied by factor, to this object.
+   */
+  public void add(SuffStatTensor other, double factor)
+  {
+    if (other.nBlocks != nBlocks || other.nSymbols != nSymbols)
+      throw new RuntimeException("Incompatible sufficient statistics");
+    for (int i = 0; i < other.keys.length; i++)
+    {
+      if (other.keys[i] == EMPTY)
+        continue;
+      final double [] otherBlock = other.blocks[i], block = block(other.keys[i]);
+      for (int j = 0; j < block.length; j++)
+        block[j] += factor * otherBlock[j];
+    }
+  }
+
+  /**
+   * Multiply all the counts by factor.
+   */
+  public void scale(double factor)
+  {
+    for (double [] block : blocks)
+      if (block != null)
+        for (int i = 0; i < block.length; i++)
+          block[i] *= factor;
+  }
+
+  public double totalCount()
+  {
+    double result = 0.0;
+    for (double [] block : blocks)
+      if (block != null)
+        for (double value : block)
+          result += value;
+    return result;
+  }
+
+  /**
+   * Binary encoding, see read()
+   */
+  public void write(DataOutputStream out) throws IOException
+  {
+    out.writeInt(model.nStates);
+    out.writeInt(nStss);
+    out.writeInt(nSymbols);
+    for (int b = 0; b < nBlocks; b++)
+    {
+      final double [] block = findBlock(b);
+      out.writeBoolean(block != null);
+      if (block != null)
+        for (double value : block)
+          out.writeDouble(value);
+    }
+  }
+
+  public static SuffStatTensor read(DataInputStream in, Model model) throws IOException
+  {
+    SuffStatTensor result = new SuffStatTensor(model);
+    if (in.readInt() != model.nStates || in.readInt() != result.nStss || in.readInt() != result.nSymbols)
+      throw new RuntimeException("The sufficient statistics were created with a different model");
+    for (int b = 0; b < result.nBlocks; b++)
+      if (in.readBoolean())
+      {
+        final double [] block = result.block(b);
+        for (int i = 0; i < block.length; i++)
+          block[i] = in.readDouble();
+      }
+    return result;
+  }
+
+  /**
+   * @return The positive counts, keyed by labeled instances (the format expected by MaxentClassifier)
+   */
+  public Counter<LabeledInstance<Input,Output>> toCounter()
+  {
+    Counter<LabeledInstance<Input,Output>> result = new Counter<LabeledInstance<Input,Output>>();
+    for (int s1 = 0; s1 < model.nStates; s1++)
+      for (int stss = 0; stss < nStss; stss++)
+      {
+        final Input in = new Input(s1, stss, model);
+        for (int s2 = 0; s2 < model.nStates; s2++)
+        {
+          final double [] block = findBlock(blockIndex(s1, s2, stss));
+          if (block != null)
+            for (int top = 0; top < nSymbols; top++)
+              for (int bot = 0; bot < nSymbols; bot++)
+              {
+                final double value = block[top * nSymbols + bot];
+                if (value > 0.0)
+                  result.setCount(new LabeledInstance<Input,Output>(new Output(s2, top, bot, model), in), value);
+              }
+        }
+      }
+    return result;
+  }
+
+  private int blockIndex(int state1, int state2, int strTaxSuffStat)
+  {
+    return (state1 * model.nStates + state2) * nStss + strTaxSuffStat;
+  }
+}
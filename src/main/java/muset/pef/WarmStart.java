@@ -0,0 +1,94 @@
+package muset.pef;
+
+import java.util.List;
+
+import muset.Alphabet.Letter;
+import muset.hmm.HomogenousHMM;
+import muset.pef.Model.ThreeStatesBaseMeasure;
+import briefj.collections.Counter;
+import briefj.opt.Option;
+
+
+
+/**
+ * Initialization of the exponential family from a simpler model, a HomogenousHMM
+ * with the same states and support, trained with Baum-Welch. This is much cheaper
+ * per iteration than the EM iterations of the exponential family.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ */
+public final class WarmStart
+{
+  public static class WarmStartOptions
+  {
+    @Option(gloss = "If positive, number of Baum-Welch iterations of a homogeneous pair HMM used to initialize the "
+        + "letter pair features (only used when initParams is ZERO, requires useLetterPairs). With reguCenterParams=SAME, "
+        + "the regularization is also centered at these weights. All the pairs of the dataset are then held in memory "
+        + "during the warm start, also in streaming mode.")
+    public int warmStartIterations = 0;
+
+    @Option(gloss = "Pseudo-count added to the expected counts in the Baum-Welch iterations, see warmStartIterations.")
+    public double warmStartPseudoCount = 0.1;
+  }
+
+  // initial weight of the substitutions of a letter by itself relative to the other transitions
+  private static final double SELF_SUB_BIAS = 10.0;
+
+  /**
+   * A HomogenousHMM over the states and alphabet of the model, with uniform transition
+   * probabilities (except for a bias towards self substitutions) on the support of ThreeStatesBaseMeasure.
+   */
+  public static HomogenousHMM initialHMM(Model model)
+  {
+    HomogenousHMM result = new HomogenousHMM(model.enc, model.nStates, model.startState, model.endState);
+    ThreeStatesBaseMeasure support = new ThreeStatesBaseMeasure(model);
+    for (int s1 = 0; s1 < model.nStates; s1++)
+      for (Output out : support.support(new Input(s1, 0, model)))
+      {
+        final Letter
+          top = out.topSymbol == model.epsilon() ? null : model.enc.indexer.i2o(out.topSymbol),
+          bot = out.botSymbol == model.epsilon() ? null : model.enc.indexer.i2o(out.botSymbol);
+        if (top == null)
+          result.setIns(s1, out.state2, bot, 1.0);
+        else if (bot == null)
+          result.setDel(s1, out.state2, top, 1.0);
+        else
+          result.setSub(s1, out.state2, top, bot, top.equals(bot) ? SELF_SUB_BIAS : 1.0);
+      }
+    result.normalize();
+    return result;
+  }
+
+  /**
+   * The log of the probabilities of emitting each pair of letters (or of a letter
+   * and a gap) after a substitution, averaged over the two orientations of the pair
+   * since the letter pair features of FeatureExtractor are symmetric.
+   */
+  public static Counter<Object> weights(Model model, HomogenousHMM hmm)
+  {
+    final int sub = model.stateIndexer.o2i(Model.SUB);
+    final int
+      ins = model.stateIndexer.o2i(Model.INS),
+      del = model.stateIndexer.o2i(Model.DEL);
+    List<Letter> letters = model.enc.indexer.objectsList();
+    Counter<Object> result = new Counter<Object>();
+    for (int i = 0; i < letters.size(); i++)
+    {
+      final Letter a = letters.get(i);
+      for (int j = i; j < letters.size(); j++)
+      {
+        final Letter b = letters.get(j);
+        final double pr = (hmm.getSub(sub, sub, a, b) + hmm.getSub(sub, sub, b, a)) / 2.0;
+        if (pr > 0.0)
+          result.setCount("pair(" + a + "," + b + ")", Math.log(pr));
+      }
+      final double pr = (hmm.getDel(sub, del, a) + hmm.getIns(sub, ins, a)) / 2.0;
+      if (pr > 0.0)
+        result.setCount("pair(" + a + ",-)", Math.log(pr));
+    }
+    return result;
+  }
+
+  private WarmStart() {}
+}
@@ -0,0 +1,121 @@
+package muset.util;
+
+import java.util.Arrays;
+
+
+
+/**
+ * A matrix whose entries are zero outside of a range of columns in each row,
+ * only the entries in the ranges being stored (in one array). Used for the
+ * posteriors of a pair HMM restricted to an Envelope, so that a band around
+ * the diagonal takes memory linear in the number of rows.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ */
+public final class BandedMatrix
+{
+  public final int nRows, nColumns;
+  private final int [] lower, offsets; // row -> first column stored, position of its entries in values
+  private final double [] values;
+
+  /**
+   * A zero matrix storing all its entries.
+   */
+  public BandedMatrix(int nRows, int nColumns)
+  {
+    this(new int[nRows], filled(nRows, nColumns - 1), nColumns);
+  }
+
+  /**
+   * A zero matrix storing, in each row, the columns in [lower[row], upper[row]]
+   * (an empty range if lower[row] > upper[row]).
+   */
+  public BandedMatrix(int [] lower, int [] upper, int nColumns)
+  {
+    this.nRows = lower.length;
+    this.nColumns = nColumns;
+    this.lower = new int[nRows];
+    this.offsets = new int[nRows + 1];
+    long size = 0;
+    for (int row = 0; row < nRows; row++)
+    {
+      final int first = Math.max(0, lower[row]), last = Math.min(nColumns - 1, upper[row]);
+      this.lower[row] = first;
+      offsets[row] = (int) size;
+      size += Math.max(0, last - first + 1);
+      if (size > Integer.MAX_VALUE)
+        throw new RuntimeException("Too many entries in the band: " + size);
+    }
+    offsets[nRows] = (int) size;
+    this.values = new double[(int) size];
+  }
+
+  /**
+   * @return A copy of a dense matrix, storing all its entries
+   */
+  public static BandedMatrix of(double [][] dense)
+  {
+    BandedMatrix result = new BandedMatrix(dense.length, dense.length == 0 ? 0 : dense[0].length);
+    for (int row = 0; row < dense.length; row++)
+      System.arraycopy(dense[row], 0, result.values, result.offsets[row], dense[row].length);
+    return result;
+  }
+
+  /**
+   * @return The first column stored in row
+   */
+  public int lower(int row) { return lower[row]; }
+
+  /**
+   * @return The last column stored in row (lower(row) - 1 if none is)
+   */
+  public int upper(int row) { return lower[row] + offsets[row + 1] - offsets[row] - 1; }
+
+  public boolean isStored(int row, int column)
+  {
+    return column >= lower[row] && column <= upper(row);
+  }
+
+  /**
+   * @return The number of entries stored
+   */
+  public int size() { return values.length; }
+
+  /**
+   * @return An estimate of the memory used by a matrix with the given number of rows and entries stored, in bytes
+   */
+  public static long estimateBytes(long nRows, long size)
+  {
+    return 8L * size + 8L * nRows;
+  }
+
+  public double get(int row, int column)
+  {
+    return isStored(row, column) ? values[offsets[row] + column - lower[row]] : 0.0;
+  }
+
+  public void set(int row, int column, double value)
+  {
+    values[position(row, column)] = value;
+  }
+
+  public void increment(int row, int column, double value)
+  {
+    values[position(row, column)] += value;
+  }
+
+  private int position(int row, int column)
+  {
+    if (!isStored(row, column))
+      throw new RuntimeException("Entry outside of the band: " + row + ", " + column);
+    return offsets[row] + column - lower[row];
+  }
+
+  private static int [] filled(int length, int value)
+  {
+    final int [] result = new int[length];
+    Arrays.fill(result, value);
+    return result;
+  }
+}
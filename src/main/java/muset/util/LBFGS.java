@@ -0,0 +1,141 @@
+package muset.util;
+
+
+
+/**
+ * Limited memory BFGS minimization with a backtracking (Armijo) line search.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ */
+public final class LBFGS
+{
+  public static interface Objective
+  {
+    /**
+     * @param gradient Where the gradient at point should be written
+     * @return The value at point
+     */
+    public double valueAt(double [] point, double [] gradient);
+  }
+
+  private static final int MAX_LINE_SEARCH_STEPS = 50;
+  private static final double ARMIJO = 1e-4;
+
+  /**
+   * @param tolerance Stop when the relative decrease of the value (or the norm of the
+   *   gradient relative to the norm of the point) falls below this
+   * @param memory Number of corrections kept to approximate the inverse Hessian
+   * @return The approximate minimizer
+   */
+  public static double [] minimize(Objective objective, double [] initial, int maxIterations, double tolerance, int memory)
+  {
+    final int dim = initial.length;
+    double [] point = initial.clone(), gradient = new double[dim];
+    double value = objective.valueAt(point, gradient);
+    // ring buffers of the last corrections
+    final double [][] s = new double[memory][], y = new double[memory][];
+    final double [] rho = new double[memory], alpha = new double[memory];
+    int nCorrections = 0, newest = -1;
+    for (int iter = 0; iter < maxIterations; iter++)
+    {
+      if (norm(gradient) <= tolerance * Math.max(1.0, norm(point)))
+        break;
+      // two-loop recursion for the direction -H gradient
+      double [] direction = new double[dim];
+      for (int i = 0; i < dim; i++)
+        direction[i] = -gradient[i];
+      for (int k = 0; k < nCorrections; k++)
+      {
+        final int c = (newest - k + memory) % memory;
+        alpha[c] = rho[c] * dot(s[c], direction);
+        axpy(-alpha[c], y[c], direction);
+      }
+      if (nCorrections > 0)
+        scale(dot(s[newest], y[newest]) / dot(y[newest], y[newest]), direction);
+      for (int k = nCorrections - 1; k >= 0; k--)
+      {
+        final int c = (newest - k + memory) % memory;
+        final double beta = rho[c] * dot(y[c], direction);
+        axpy(alpha[c] - beta, s[c], direction);
+      }
+      double slope = dot(gradient, direction);
+      if (slope >= 0.0)
+      {
+        // not a descent direction, restart from steepest descent
+        nCorrections = 0;
+        for (int i = 0; i < dim; i++)
+          direction[i] = -gradient[i];
+        slope = dot(gradient, direction);
+      }
+      // backtracking line search
+      double step = nCorrections == 0 ? Math.min(1.0, 1.0 / norm(gradient)) : 1.0;
+      double [] newPoint = new double[dim], newGradient = new double[dim];
+      double newValue = Double.POSITIVE_INFINITY;
+      boolean found = false;
+      for (int t = 0; t < MAX_LINE_SEARCH_STEPS && !found; t++)
+      {
+        for (int i = 0; i < dim; i++)
+          newPoint[i] = point[i] + step * direction[i];
+        newValue = objective.valueAt(newPoint, newGradient);
+        if (newValue <= value + ARMIJO * step * slope)
+          found = true;
+        else
+          step /= 2.0;
+      }
+      if (!found)
+        break;
+      // update the corrections
+      final double [] sNew = new double[dim], yNew = new double[dim];
+      for (int i = 0; i < dim; i++)
+      {
+        sNew[i] = newPoint[i] - point[i];
+        yNew[i] = newGradient[i] - gradient[i];
+      }
+      final double sy = dot(sNew, yNew);
+      if (sy > 1e-10)
+      {
+        newest = (newest + 1) % memory;
+        s[newest] = sNew;
+        y[newest] = yNew;
+        rho[newest] = 1.0 / sy;
+        nCorrections = Math.min(nCorrections + 1, memory);
+      }
+      final double decrease = (value - newValue) / Math.max(1.0, Math.max(Math.abs(value), Math.abs(newValue)));
+      point = newPoint;
+      gradient = newGradient;
+      value = newValue;
+      if (decrease < tolerance)
+        break;
+    }
+    return point;
+  }
+
+  private static double dot(double [] a, double [] b)
+  {
+    double result = 0.0;
+    for (int i = 0; i < a.length; i++)
+      result += a[i] * b[i];
+    return result;
+  }
+
+  private static double norm(double [] a)
+  {
+    return Math.sqrt(dot(a, a));
+  }
+
+  // b += factor * a
+  private static void axpy(double factor, double [] a, double [] b)
+  {
+    for (int i = 0; i < a.length; i++)
+      b[i] += factor * a[i];
+  }
+
+  private static void scale(double factor, double [] a)
+  {
+    for (int i = 0; i < a.length; i++)
+      a[i] *= factor;
+  }
+
+  private LBFGS() {}
+}
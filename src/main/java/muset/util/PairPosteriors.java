@@ -0,0 +1,235 @@
+package muset.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import muset.Sequence;
+import muset.SequenceId;
+import briefj.Indexer;
+
+
+
+/**
+ * Posterior alignment probabilities of all the pairs of characters of a group of
+ * sequences, stored as one BandedMatrix per pair of sequences (instead of one Edge
+ * object per pair of characters). The matrices are kept as they are set (not copied),
+ * so that the posteriors of a pair aligned in a band only take the memory of the band.
+ *
+ * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
+ *
+ */
+public final class PairPosteriors
+{
+  private final Indexer<SequenceId> ids;
+  private final int [] lengths;
+  private final BandedMatrix [] matrices; // pair of sequences (i < j) -> positions in i then j, or in j then i if transposed
+  private final boolean [] transposed;
+  private final int [] firsts, seconds; // pair of sequences -> i, j
+
+  public PairPosteriors(Map<SequenceId,Sequence> sequences)
+  {
+    this.ids = new Indexer<SequenceId>(sequences.keySet());
+    this.lengths = new int[ids.size()];
+    for (int i = 0; i < lengths.length; i++)
+      lengths[i] = sequences.get(ids.i2o(i)).length();
+    this.matrices = new BandedMatrix[lengths.length * (lengths.length - 1) / 2];
+    this.transposed = new boolean[matrices.length];
+    this.firsts = new int[matrices.length];
+    this.seconds = new int[matrices.length];
+    for (int i = 0; i < lengths.length; i++)
+      for (int j = i + 1; j < lengths.length; j++)
+      {
+        firsts[pairIndex(i, j)] = i;
+        seconds[pairIndex(i, j)] = j;
+      }
+  }
+
+  /**
+   * @param posteriors Indexed by position in id1 then position in id2; extra rows and
+   *   columns (e.g. for boundary symbols) are ignored
+   */
+  public void set(SequenceId id1, SequenceId id2, double [][] posteriors)
+  {
+    set(id1, id2, BandedMatrix.of(posteriors));
+  }
+
+  /**
+   * @param posteriors Indexed by position in id1 then position in id2, kept (not copied); extra 
+   *   rows and columns (e.g. for boundary symbols) are ignored
+   */
+  public void set(SequenceId id1, SequenceId id2, BandedMatrix posteriors)
+  {
+    final int i1 = index(id1), i2 = index(id2);
+    if (posteriors.nRows < lengths[i1] || posteriors.nColumns < lengths[i2])
+      throw new RuntimeException("Posteriors smaller than the sequences " + id1 + ", " + id2);
+    final int pair = pairIndex(Math.min(i1, i2), Math.max(i1, i2));
+    matrices[pair] = posteriors;
+    transposed[pair] = i1 > i2;
+  }
+
+  /**
+   * @return The posterior that position index1 of id1 and index2 of id2 are aligned (zero if the pair was not set)
+   */
+  public double get(SequenceId id1, int index1, SequenceId id2, int index2)
+  {
+    final int i1 = index(id1), i2 = index(id2);
+    final int pair = pairIndex(Math.min(i1, i2), Math.max(i1, i2));
+    final BandedMatrix matrix = matrices[pair];
+    if (matrix == null)
+      return 0.0;
+    // the matrix is indexed by the positions in the sequence set first
+    return (i1 > i2) == transposed[pair] ? matrix.get(index1, index2) : matrix.get(index2, index1);
+  }
+
+  /**
+   * @return The pairs of characters with a posterior greater than threshold, in decreasing order
+   *   of posterior (ties are in the order of the sequences, then of the positions)
+   */
+  public Iterable<Edge> edges(final double threshold)
+  {
+    return new Iterable<Edge>() {
+      @Override
+      public Iterator<Edge> iterator()
+      {
+        return new EdgeIterator(threshold);
+      }
+    };
+  }
+
+  private final class EdgeIterator implements Iterator<Edge>
+  {
+    private final int [] pairs, cells, order;
+    private int next = 0;
+
+    private EdgeIterator(double threshold)
+    {
+      int size = 0;
+      for (int p = 0; p < matrices.length; p++)
+        if (matrices[p] != null)
+          size += countAbove(p, threshold);
+      pairs = new int[size];
+      cells = new int[size];
+      final double [] values = new double[size];
+      int current = 0;
+      for (int p = 0; p < matrices.length; p++)
+        if (matrices[p] != null)
+        {
+          final int start = current;
+          final BandedMatrix matrix = matrices[p];
+          final int nRows = transposed[p] ? lengths[seconds[p]] : lengths[firsts[p]];
+          final int nColumns = transposed[p] ? lengths[firsts[p]] : lengths[seconds[p]];
+          for (int row = 0; row < nRows; row++)
+            for (int column = matrix.lower(row); column <= Math.min(nColumns - 1, matrix.upper(row)); column++)
+              if (matrix.get(row, column) > threshold)
+              {
+                pairs[current] = p;
+                // position in i * length of j + position in j
+                cells[current] = transposed[p] ? column * nRows + row : row * nColumns + column;
+                values[current++] = matrix.get(row, column);
+              }
+          if (transposed[p])
+            sortByCell(start, current, values);
+        }
+      final int [] indices = new int[size];
+      for (int k = 0; k < size; k++)
+        indices[k] = k;
+      order = sortByDecreasingValue(indices, values);
+    }
+
+    private int countAbove(int p, double threshold)
+    {
+      final BandedMatrix matrix = matrices[p];
+      final int nRows = transposed[p] ? lengths[seconds[p]] : lengths[firsts[p]];
+      final int nColumns = transposed[p] ? lengths[firsts[p]] : lengths[seconds[p]];
+      int result = 0;
+      for (int row = 0; row < nRows; row++)
+        for (int column = matrix.lower(row); column <= Math.min(nColumns - 1, matrix.upper(row)); column++)
+          if (matrix.get(row, column) > threshold)
+            result++;
+      return result;
+    }
+
+    // the entries of a transposed matrix in [start, end), in the order of the cells (so that ties are in the order of the positions)
+    private void sortByCell(int start, int end, double [] values)
+    {
+      final int [] indices = new int[end - start];
+      final double [] negatedCells = new double[end - start];
+      for (int k = 0; k < indices.length; k++)
+      {
+        indices[k] = k;
+        negatedCells[k] = -cells[start + k];
+      }
+      final int [] order = sortByDecreasingValue(indices, negatedCells);
+      final int [] sortedCells = new int[order.length];
+      final double [] sortedValues = new double[order.length];
+      for (int k = 0; k < order.length; k++)
+      {
+        sortedCells[k] = cells[start + order[k]];
+        sortedValues[k] = values[start + order[k]];
+      }
+      System.arraycopy(sortedCells, 0, cells, start, order.length);
+      System.arraycopy(sortedValues, 0, values, start, order.length);
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+      return next < order.length;
+    }
+
+    @Override
+    public Edge next()
+    {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      final int k = order[next++];
+      final int i = firsts[pairs[k]], j = seconds[pairs[k]];
+      return new Edge(cells[k] / lengths[j], cells[k] % lengths[j], ids.i2o(i), ids.i2o(j));
+    }
+
+    @Override
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private int index(SequenceId id)
+  {
+    final int result = ids.o2i(id);
+    if (result == -1)
+      throw new RuntimeException("Unknown sequence: " + id);
+    return result;
+  }
+
+  // i < j
+  private int pairIndex(int i, int j)
+  {
+    return i * lengths.length - i * (i + 1) / 2 + (j - i - 1);
+  }
+
+  // stable merge sort of the indices, by decreasing values[index]
+  private static int [] sortByDecreasingValue(int [] order, double [] values)
+  {
+    int [] buffer = new int[order.length];
+    for (int width = 1; width < order.length; width *= 2)
+    {
+      for (int start = 0; start < order.length; start += 2 * width)
+      {
+        final int middle = Math.min(start + width, order.length), end = Math.min(start + 2 * width, order.length);
+        int left = start, right = middle, out = start;
+        while (left < middle && right < end)
+          buffer[out++] = values[order[right]] > values[order[left]] ? order[right++] : order[left++];
+        while (left < middle)
+          buffer[out++] = order[left++];
+        while (right < end)
+          buffer[out++] = order[right++];
+      }
+      final int [] swap = order;
+      order = buffer;
+      buffer = swap;
+    }
+    return order;
+  }
+}
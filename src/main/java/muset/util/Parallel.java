@@ -0,0 +1,85 @@
+package muset.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+
+/**
+ * Minimal parallel loop. Items are handed out one at a time, in the order
+ * of the list, to the first idle thread, so that sorting the list by
+ * decreasing cost gives a good load balance.
+ *
+ * Callers are responsible for combining the results in a deterministic
+ * order (e.g. by writing them to a slot indexed by the item's position).
+ *
+ * The threads come from a shared pool (daemon threads, kept alive a minute
+ * when idle), so that the many short loops of an EM run do not each create
+ * threads. The calling thread also processes items, and the pool grows as
+ * needed, so that loops can be nested (e.g. segments within pairs) without
+ * waiting on each other.
+ */
+public class Parallel
+{
+  public static interface Worker<T>
+  {
+    public void process(int index, T item);
+  }
+
+  private static final ExecutorService POOL = Executors.newCachedThreadPool(new ThreadFactory() {
+    private final AtomicInteger count = new AtomicInteger(0);
+    @Override
+    public Thread newThread(Runnable r)
+    {
+      Thread result = new Thread(r, "parallel-" + count.incrementAndGet());
+      result.setDaemon(true);
+      return result;
+    }
+  });
+
+  public static <T> void forEach(int nThreads, final List<T> items, final Worker<T> worker)
+  {
+    if (nThreads <= 1 || items.size() <= 1)
+    {
+      for (int i = 0; i < items.size(); i++)
+        worker.process(i, items.get(i));
+      return;
+    }
+    final AtomicInteger next = new AtomicInteger(0);
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    Runnable loop = new Runnable() {
+      @Override
+      public void run()
+      {
+        try
+        {
+          for (int i = next.getAndIncrement(); i < items.size(); i = next.getAndIncrement())
+            worker.process(i, items.get(i));
+        }
+        catch (Throwable e)
+        {
+          synchronized (errors) { errors.add(e); }
+          next.set(items.size()); // stop handing out work
+        }
+      }
+    };
+    List<Future<?>> helpers = new ArrayList<Future<?>>();
+    for (int t = 1; t < Math.min(nThreads, items.size()); t++)
+      helpers.add(POOL.submit(loop));
+    loop.run();
+    for (Future<?> helper : helpers)
+      try { helper.get(); }
+      catch (InterruptedException e) { throw new RuntimeException(e); }
+      catch (ExecutionException e) { throw new RuntimeException(e); }
+    if (!errors.isEmpty())
+      throw new RuntimeException(errors.get(0));
+  }
+
+  private Parallel() {}
+}
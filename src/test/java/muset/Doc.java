@@ -143,6 +143,51 @@ public class Doc
    * - ``-useLongGaps``, ``-addPairSpecific``, ``-featuresFile``, ``-useLetterPairs`` to control the set of 
    *   features (sufficient statistics) used for the alignment exponential family. More details on 
    *   ``-featuresFile`` below.
+   * - ``-useCoarseToFine``: to first align on a reduced alphabet (classes given by ``-coarseMappingFile``, or by 
+   *   the letter-specific features of ``-featuresFile``), and then run the full model only on the part of the 
+   *   alignment lattice where the coarse posterior is above ``-envelopeThreshold`` (``-coarseBandHalfWidth`` restricts the 
+   *   coarse pass itself to a band).
+   * - ``-anchorK``, ``-minAnchoredLength``: to align long pairs in anchored mode, where k-mers occurring exactly once in both 
+   *   sequences are pinned and the independent segments between them are solved in parallel (see ``-nThreads``); 
+   *   ``-anchorAlignments`` pins them instead at the links of existing alignments (one FASTA file per group).
+   * - ``-memoryBudgetMB``, ``-maxConcurrentLargePairs``: to bound the memory used by the dynamic programs; pairs that do not 
+   *   fit are aligned in a band around the diagonal (at least ``-minBandHalfWidth`` wide, alone if even that 
+   *   band does not fit).
+   * - ``-warmStartIterations``: to initialize the letter pair weights with a few (cheap) Baum-Welch iterations of a homogeneous pair HMM, 
+   *   which reduces the number of EM iterations needed.
+   * - ``-nThreads``, ``-groupsPerBatch``: to align the pairs of several groups in parallel (longest pairs first); the output 
+   *   does not depend on the number of threads.
+   * - ``-useCompiledFeatures``: to extract the features of all the transitions once and learn the weights with L-BFGS over 
+   *   primitive arrays (with the maxent options), which is much faster with large alphabets or a ``-featuresFile``.
+   * - ``-onlineMinibatchSize``, ``-onlineStepSizeExponent``: to use stepwise online EM, updating the parameters after each 
+   *   minibatch of groups, which converges in a fraction of a pass on large datasets.
+   * - ``-checkpointInterval``, ``-resume``: to periodically write a (binary) checkpoint of the EM state, and to continue a 
+   *   killed run from it without redoing the groups already aligned.
+   * - ``-saveModelBundle``, ``-modelBundle``: to write the trained model (alphabet, features, weights and the precomputed transition
+   *   probabilities) in a single binary file, and to load it without recomputing the transition probabilities.
+   * - ``-streaming``: to read the groups one at a time from the csv file (optionally gzipped) at each iteration instead of
+   *   loading the whole dataset in memory.
+   * - ``convert-dataset`` (``DatasetConverter``): to encode a csv dataset into a binary file, holding the letters as integers in one
+   *   contiguous region, which can be passed to ``-csvFile`` and is then read through a memory map without parsing.
+   * - ``-nShards``, ``-shardIndex``, ``-reduceShards``: to split the E step of an iteration across processes or machines sharing a
+   *   file system; each shard writes its expected sufficient statistics, which are then summed to update the parameters.
+   * - ``-singlePrecision``: to store the cached transition probabilities as floats, halving their memory.
+   * - ``align-server`` (``AlignmentServer``): to align with a model bundle without training, loading it once and then reading groups
+   *   from the standard input (or a local port, see ``-port``) and writing their alignments (FASTA or binary) in the input order.
+   * - ``-memoizePairs``: to align only once the pairs of a batch of groups with the same two sequences (and pair of taxa, with
+   *   pair specific features), which is common in cognate datasets.
+   * - ``-sparseCachedParams``, ``-sliceCacheSize``: to store only the cached transition probabilities allowed by the base measure, packed
+   *   per state and pair of taxa, unpacking those of the pairs of taxa being aligned in a small cache (with ``-addPairSpecific``).
+   * - ``-relativeTolerance``, ``-maxWallClockSeconds``: to stop EM early, once the log-likelihood of the data (written with the change of
+   *   the parameters in ``convergence.txt`` in each iteration folder) stops improving, or before running out of time.
+   * - ``-hardEMIterations``: to run the first iterations with hard (Viterbi) EM, counting the transitions of the best path of each pair
+   *   only, which is cheaper than computing their expectations (e.g. as a warm-up for soft EM).
+   * - ``-monteCarloSamples``, ``-monteCarloSeed``: to run Monte Carlo EM, counting the transitions of paths sampled from the posterior
+   *   of each pair instead of computing their expectations (reproducible for a given seed, whatever the number of threads).
+   * - ``-nStarts``, ``-startParams``, ``-pruneStartsAfter``: to train several initializations (given weights files or random perturbations of
+   *   ``-initParams``) concurrently in one run, reading the data once, keeping only the start with the best log-likelihood after a few iterations.
+   * - ``-hashBits`` (with ``-useCompiledFeatures``): to hash the features into a fixed number of weights, without building their names, which
+   *   bounds the size of the weight vector with ``-addPairSpecific`` and a ``-featuresFile`` (the number of colliding features is printed).
    *   
    * #### Using features
    * 
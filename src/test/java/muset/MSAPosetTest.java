@@ -8,6 +8,7 @@ import java.io.File;
 import java.util.Map;
 
 import muset.util.Edge;
+import muset.util.PairPosteriors;
 
 import org.junit.Test;
 
@@ -110,4 +111,47 @@ public class MSAPosetTest
     MSAPoset readMSA = MSAPoset.parseFASTA(alpha, tempFile);
     assertTrue(MSAPoset.deepEquals(readMSA, align));
   }
+  
+  @Test
+  public void pairPosteriorsTest()
+  {
+    Map<SequenceId,Sequence> sequences = Maps.newLinkedHashMap();
+    Alphabet alphabet = new Alphabet();
+    SequenceId 
+      seq0 = new SequenceId("seq-0"),
+      seq1 = new SequenceId("seq-1"),
+      seq2 = new SequenceId("seq-2");
+    sequences.put(seq0, Sequence.buildSimpleSequence(alphabet, "ACA"));
+    sequences.put(seq1,  Sequence.buildSimpleSequence(alphabet, "CC"));
+    sequences.put(seq2,  Sequence.buildSimpleSequence(alphabet, "ACC"));
+    
+    // the same scores, as a counter and as one matrix per pair (with an extra boundary row and column)
+    PairPosteriors posteriors = new PairPosteriors(sequences);
+    Counter<Edge> scores = new Counter<Edge>();
+    double [][] 
+      m01 = {{0.1, 0.2, 0.0}, {0.9, 0.3, 0.0}, {0.05, 0.6, 0.0}, {0.0, 0.0, 0.0}},
+      m21 = {{0.15, 0.25, 0.0}, {0.8, 0.35, 0.0}, {0.45, 0.7, 0.0}, {0.0, 0.0, 0.0}},
+      m02 = {{0.5, 0.0, 0.0, 0.0}, {0.0, 0.4, 0.2, 0.0}, {0.0, 0.0, 0.55, 0.0}, {0.0, 0.0, 0.0, 0.0}};
+    posteriors.set(seq0, seq1, m01);
+    posteriors.set(seq2, seq1, m21); // transposed w.r.t. the order of the sequences
+    posteriors.set(seq0, seq2, m02);
+    for (int i = 0; i < 3; i++)
+      for (int j = 0; j < 2; j++)
+      {
+        scores.setCount(new Edge(i, j, seq0, seq1), m01[i][j]);
+        scores.setCount(new Edge(i, j, seq2, seq1), m21[i][j]);
+        assertEquals(m21[i][j], posteriors.get(seq1, j, seq2, i), 0.0);
+      }
+    for (int i = 0; i < 3; i++)
+      for (int j = 0; j < 3; j++)
+        scores.setCount(new Edge(i, j, seq0, seq2), m02[i][j]);
+    
+    for (double threshold : new double[]{0.0, 0.5})
+    {
+      MSAPoset 
+        fromCounter = MSAPoset.consensusAlignment(sequences, scores, threshold),
+        fromPosteriors = MSAPoset.consensusAlignment(sequences, posteriors, threshold);
+      assertTrue(MSAPoset.deepEquals(fromCounter, fromPosteriors));
+    }
+  }
 }
@@ -0,0 +1,78 @@
+package muset.hmm;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+
+import bayonet.math.NumericalUtils;
+import muset.Alphabet;
+import muset.Alphabet.Letter;
+import muset.Sequence;
+
+
+
+public class AnchoredPairHMMTest
+{
+  private static final int SUB = 0, INS = 1, DEL = 2;
+  
+  // state SUB is only reached by substitutions, as in muset.pef
+  private static HetPairHMM createHMM(Alphabet alphabet, Sequence top, Sequence bot)
+  {
+    HomogenousHMM hmm = new HomogenousHMM(alphabet, 3, SUB, SUB);
+    for (int s1 = 0; s1 < 3; s1++)
+      for (Letter a : alphabet.indexer.objectsList())
+      {
+        for (Letter b : alphabet.indexer.objectsList())
+          hmm.setSub(s1, SUB, a, b, a.equals(b) ? 0.1 : 0.01);
+        hmm.setIns(s1, INS, a, s1 == DEL ? 0.0 : 0.02);
+        hmm.setDel(s1, DEL, a, 0.03);
+      }
+    return hmm.createPairHMM(top, bot);
+  }
+
+  @Test
+  public void testAnchoredEqualsConditioned()
+  {
+    Alphabet alphabet = new Alphabet();
+    Sequence 
+      top = Sequence.buildSimpleSequence(alphabet, "ACGTTGCAA"),
+      bot = Sequence.buildSimpleSequence(alphabet, "ACTTGGCA");
+    HetPairHMM full = createHMM(alphabet, top, bot);
+    
+    // no anchors: same as the full HMM
+    AnchoredPairHMM anchored = new AnchoredPairHMM(top, bot, full.hmm, new ArrayList<Pair<Integer,Integer>>(), 1);
+    assertEquals(full.logSumProduct(), anchored.logSumProduct(), 1e-10);
+    assertEquals(full.logPosteriorAlignment(3, 2), anchored.logPosteriorAlignment(3, 2), 1e-10);
+    
+    // one anchor: the weight of the paths substituting it
+    List<Pair<Integer,Integer>> anchors = new ArrayList<Pair<Integer,Integer>>();
+    anchors.add(Pair.of(4, 3));
+    anchored = new AnchoredPairHMM(top, bot, full.hmm, anchors, 2);
+    double expected = Double.NEGATIVE_INFINITY;
+    for (int s1 = 0; s1 < 3; s1++)
+      expected = NumericalUtils.logAdd(expected, full.logSumProduct(s1, SUB, 4, 3, 1, 1));
+    assertEquals(expected, anchored.logSumProduct(), 1e-10);
+    assertEquals(0.0, anchored.logPosteriorAlignment(4, 3), 1e-10);
+    assertEquals(Double.NEGATIVE_INFINITY, anchored.logPosteriorAlignment(5, 1), 0.0);
+    assertEquals(4, anchored.viterbi().ancestor(3));
+  }
+  
+  @Test
+  public void testConsistentChain()
+  {
+    List<Pair<Integer,Integer>> candidates = new ArrayList<Pair<Integer,Integer>>();
+    candidates.add(Pair.of(5, 1));
+    candidates.add(Pair.of(0, 0));
+    candidates.add(Pair.of(2, 2));
+    candidates.add(Pair.of(2, 3));
+    candidates.add(Pair.of(3, 4));
+    List<Pair<Integer,Integer>> chain = Anchors.consistentChain(candidates);
+    assertEquals(3, chain.size());
+    assertEquals(Pair.of(0, 0), chain.get(0));
+    assertEquals(Pair.of(3, 4), chain.get(2));
+  }
+}
@@ -0,0 +1,190 @@
+package muset.pef;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import bayonet.regression.MaxentClassifier.MaxentOptions;
+import briefj.collections.UnorderedPair;
+import muset.Alphabet;
+import muset.SequenceId;
+import muset.pef.ExponentialFamily.ExponentialFamilyOptions;
+import muset.pef.FeatureExtractor.FeatureOptions;
+
+
+
+public class AlignmentServerTest
+{
+  // g1 twice (framed by the blank line), then an unknown letter, a valid group and a duplicate taxon
+  private static final String INPUT =
+      "g1,x,A C G\n" +
+      "g1,y,A G\n" +
+      "\n" +
+      "g1,x,C\n" +
+      "g1,z,C C\n" +
+      "g2,x,A T\n" +
+      "g2,y,A\n" +
+      "g3,y,G A\n" +
+      "g3,z,G\n" +
+      "g4,x,A\n" +
+      "g4,x,C\n";
+
+  private static AlignmentServer server(String format)
+  {
+    Alphabet alphabet = new Alphabet();
+    alphabet.getLetter("A");
+    alphabet.getLetter("C");
+    alphabet.getLetter("G");
+    Set<UnorderedPair<SequenceId,SequenceId>> taxaPairs = new LinkedHashSet<UnorderedPair<SequenceId,SequenceId>>();
+    taxaPairs.add(UnorderedPair.of(new SequenceId("x"), new SequenceId("y")));
+    taxaPairs.add(UnorderedPair.of(new SequenceId("x"), new SequenceId("z")));
+    taxaPairs.add(UnorderedPair.of(new SequenceId("y"), new SequenceId("z")));
+    AlignmentServer result = new AlignmentServer();
+    result.format = format;
+    result.nThreads = 3;
+    result.queueCapacity = 2;
+    result.start(ExponentialFamily.createExpfam(new MaxentOptions<Object>(), new ExponentialFamilyOptions(),
+        new FeatureOptions(), taxaPairs, alphabet));
+    return result;
+  }
+
+  private static byte [] serve(AlignmentServer server, String input) throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try
+    {
+      server.serve(new ByteArrayInputStream(input.getBytes("UTF-8")), out);
+    }
+    finally
+    {
+      server.stop();
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testFASTA() throws IOException
+  {
+    String [] lines = new String(serve(server(AlignmentServer.FASTA), INPUT), "UTF-8").split("\n", -1);
+    List<String> records = new ArrayList<String>();
+    int nSequences = 0;
+    for (String line : lines)
+      if (line.startsWith("#"))
+        records.add(line);
+      else if (line.startsWith(">"))
+        nSequences++;
+    assertEquals(Arrays.asList(
+        "#group g1",
+        "#group g1",
+        "#error g2: Letter not in the alphabet of the model: T",
+        "#group g3",
+        "#error g4: Duplicate taxon: x"), records);
+    assertEquals(6, nSequences);
+  }
+
+  @Test
+  public void testBinary() throws IOException
+  {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(serve(server(AlignmentServer.BINARY), INPUT)));
+    List<String> groups = new ArrayList<String>();
+    List<String> errors = new ArrayList<String>();
+    List<String> sequences = new ArrayList<String>();
+    while (in.available() > 0)
+    {
+      groups.add(readString(in));
+      final int nSequences = in.readInt();
+      if (nSequences == -1)
+      {
+        errors.add(readString(in));
+        continue;
+      }
+      for (int s = 0; s < nSequences; s++)
+      {
+        final String taxon = readString(in);
+        final int length = in.readInt();
+        int previous = -1;
+        for (int i = 0; i < length; i++)
+        {
+          final int column = in.readInt();
+          assertTrue(column > previous);
+          previous = column;
+        }
+        sequences.add(taxon + ":" + length);
+      }
+    }
+    assertEquals(Arrays.asList("g1", "g1", "g2", "g3", "g4"), groups);
+    assertEquals(Arrays.asList("Letter not in the alphabet of the model: T", "Duplicate taxon: x"), errors);
+    assertEquals(Arrays.asList("x:3", "y:2", "x:1", "z:2", "y:2", "z:1"), sequences);
+  }
+
+  @Test
+  public void testErrorMessage()
+  {
+    assertEquals("first line second line", AlignmentServer.errorMessage(new RuntimeException("first line\r\nsecond line")));
+    assertEquals(NullPointerException.class.getName(), AlignmentServer.errorMessage(new NullPointerException()));
+  }
+  
+  @Test
+  public void testInputClosedMidGroup() throws IOException
+  {
+    // no end of line after the last sequence
+    String [] lines = new String(serve(server(AlignmentServer.FASTA), "g1,x,A C G\ng1,y,A G"), "UTF-8").split("\n", -1);
+    assertEquals("#group g1", lines[0]);
+    assertEquals(">x", lines[1]);
+  }
+  
+  @Test
+  public void testInputFailingMidGroup() throws IOException
+  {
+    // e.g. a connection reset by the client, in the middle of a group
+    final byte [] sent = INPUT.substring(0, INPUT.indexOf("g2,y")).getBytes("UTF-8");
+    InputStream in = new InputStream() {
+      private int position = 0;
+      @Override
+      public int read() throws IOException
+      {
+        if (position == sent.length)
+          throw new IOException("Connection reset");
+        return sent[position++];
+      }
+    };
+    AlignmentServer server = server(AlignmentServer.FASTA);
+    try
+    {
+      server.serve(in, new ByteArrayOutputStream());
+      fail();
+    }
+    catch (RuntimeException e)
+    {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+    finally
+    {
+      server.stop();
+    }
+    // the writer is done
+    for (Thread thread : Thread.getAllStackTraces().keySet())
+      assertFalse(thread.getName().equals(AlignmentServer.WRITER_NAME) && thread.isAlive());
+  }
+
+  private static String readString(DataInputStream in) throws IOException
+  {
+    byte [] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+}
@@ -0,0 +1,101 @@
+package muset.pef;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import briefj.collections.Counter;
+import briefj.collections.UnorderedPair;
+import muset.Alphabet;
+import muset.SequenceId;
+import muset.pef.FeatureExtractor.FeatureOptions;
+import muset.pef.Model.ThreeStatesBaseMeasure;
+
+
+
+public class CheckpointTest
+{
+  private final Model model;
+  private final ThreeStatesBaseMeasure bm;
+  
+  public CheckpointTest()
+  {
+    Alphabet alphabet = new Alphabet();
+    alphabet.getLetter("A");
+    alphabet.getLetter("C");
+    Set<UnorderedPair<SequenceId,SequenceId>> taxaPairs = new LinkedHashSet<UnorderedPair<SequenceId,SequenceId>>();
+    taxaPairs.add(UnorderedPair.of(new SequenceId("x"), new SequenceId("y")));
+    taxaPairs.add(UnorderedPair.of(new SequenceId("x"), new SequenceId("z")));
+    FeatureOptions options = new FeatureOptions();
+    options.addPairSpecific = true;
+    model = Model.stdBranchSpecificModel(alphabet, new FeatureExtractor(alphabet, taxaPairs, options).getStrTaxonSuffStat());
+    bm = new ThreeStatesBaseMeasure(model);
+  }
+  
+  // random counts on some of the transitions of the model
+  private SuffStatTensor randomSuffStats(Random rand)
+  {
+    SuffStatTensor result = new SuffStatTensor(model);
+    for (Input in : model.allInputs())
+      for (Output out : bm.support(in))
+        if (rand.nextBoolean())
+          result.increment(in.state1, out.state2, in.strTaxSuffStat, out.topSymbol, out.botSymbol, rand.nextDouble());
+    return result;
+  }
+  
+  private void assertSameSuffStats(SuffStatTensor expected, SuffStatTensor actual)
+  {
+    for (Input in : model.allInputs())
+      for (Output out : bm.support(in))
+        assertEquals(
+            expected.get(in.state1, out.state2, in.strTaxSuffStat, out.topSymbol, out.botSymbol), 
+            actual.get(in.state1, out.state2, in.strTaxSuffStat, out.topSymbol, out.botSymbol), 0.0);
+  }
+  
+  @Test
+  public void testRoundTrip() throws IOException
+  {
+    Random rand = new Random(1);
+    Counter<Object> naturalParams = new Counter<Object>();
+    naturalParams.setCount("BIAS", -0.5);
+    naturalParams.setCount("SUB(A,C)", 1.25);
+    naturalParams.setCount("taxon0,taxon1,DEL", 3e-7);
+    SuffStatTensor suffStats = randomSuffStats(rand), runningSuffStats = randomSuffStats(rand);
+    Set<String> doneGroups = new LinkedHashSet<String>(Arrays.asList("group, 3", "group, 0", "g\u00e9"));
+    
+    File file = File.createTempFile("checkpoint", ".bin");
+    file.deleteOnExit();
+    new Checkpoint(4, 7, naturalParams, suffStats, runningSuffStats, doneGroups, -123.5, -130.25, 60000L, 2500L).write(file);
+    Checkpoint read = Checkpoint.read(file, model);
+    
+    assertEquals(4, read.iteration);
+    assertEquals(7, read.nOnlineUpdates);
+    assertEquals(naturalParams.size(), read.naturalParams.size());
+    for (Object feature : naturalParams.keySet())
+      assertEquals(naturalParams.getCount(feature), read.naturalParams.getCount(feature), 0.0);
+    assertSameSuffStats(suffStats, read.suffStats);
+    assertSameSuffStats(runningSuffStats, read.runningSuffStats);
+    assertEquals(Arrays.asList(doneGroups.toArray()), Arrays.asList(read.doneGroups.toArray()));
+    assertEquals(-123.5, read.logLikelihood, 0.0);
+    assertEquals(-130.25, read.previousLogLikelihood, 0.0);
+    assertEquals(60000L, read.elapsedMillis);
+    assertEquals(2500L, read.lastIterationMillis);
+    
+    // not in online mode, no previous iteration to compare with, and overwriting the previous checkpoint
+    new Checkpoint(5, 0, naturalParams, suffStats, null, new LinkedHashSet<String>(), 0.0, Double.NaN, 0L, 0L).write(file);
+    read = Checkpoint.read(file, model);
+    assertEquals(5, read.iteration);
+    assertNull(read.runningSuffStats);
+    assertEquals(0, read.doneGroups.size());
+    assertEquals(Double.NaN, read.previousLogLikelihood, 0.0);
+    assertSameSuffStats(suffStats, read.suffStats);
+  }
+}
@@ -0,0 +1,140 @@
+package muset.pef;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import bayonet.math.NumericalUtils;
+import bayonet.regression.LabeledInstance;
+import bayonet.regression.MaxentClassifier;
+import bayonet.regression.MaxentClassifier.MaxentOptions;
+import briefj.collections.Counter;
+import briefj.collections.UnorderedPair;
+import muset.Alphabet;
+import muset.SequenceId;
+import muset.pef.FeatureExtractor.FeatureOptions;
+import muset.pef.Model.ThreeStatesBaseMeasure;
+
+
+
+public class CompiledFeaturesTest
+{
+  private final Model model;
+  private final ThreeStatesBaseMeasure bm;
+  private final FeatureExtractor fe;
+  
+  public CompiledFeaturesTest()
+  {
+    Alphabet alphabet = new Alphabet();
+    alphabet.getLetter("A");
+    alphabet.getLetter("C");
+    alphabet.getLetter("G");
+    Set<UnorderedPair<SequenceId,SequenceId>> taxaPairs = new LinkedHashSet<UnorderedPair<SequenceId,SequenceId>>();
+    taxaPairs.add(UnorderedPair.of(new SequenceId("x"), new SequenceId("y")));
+    taxaPairs.add(UnorderedPair.of(new SequenceId("x"), new SequenceId("z")));
+    FeatureOptions options = new FeatureOptions();
+    options.addPairSpecific = true;
+    fe = new FeatureExtractor(alphabet, taxaPairs, options);
+    model = Model.stdBranchSpecificModel(alphabet, fe.getStrTaxonSuffStat());
+    bm = new ThreeStatesBaseMeasure(model);
+  }
+  
+  // random counts on all the transitions of the model
+  private SuffStatTensor randomSuffStats(Random rand)
+  {
+    SuffStatTensor result = new SuffStatTensor(model);
+    for (Input in : model.allInputs())
+      for (Output out : bm.support(in))
+        result.increment(in.state1, out.state2, in.strTaxSuffStat, out.topSymbol, out.botSymbol, 2.0 * rand.nextDouble());
+    return result;
+  }
+  
+  @Test
+  public void testLearnMatchesMaxent()
+  {
+    SuffStatTensor suffStats = randomSuffStats(new Random(1));
+    Counter<Object> centers = new Counter<Object>();
+    MaxentOptions<Object> options = new MaxentOptions<Object>();
+    options.sigma = 0.7;
+    options.iterations = 20000;
+    options.tolerance = 1e-10;
+    
+    Counter<Object> expected = MaxentClassifier.learnMaxentClassifier(bm, suffStats.toCounter(), fe, 
+        MaxentOptions.cloneWithWeights(options, new Counter<Object>()), centers).weights();
+    CompiledFeatures compiled = new CompiledFeatures(model, bm, fe);
+    Counter<Object> actual = compiled.toCounter(compiled.learn(suffStats, new Counter<Object>(), centers, options, 2));
+    
+    for (Object feature : compiled.featureIndexer.objectsList())
+      assertEquals(feature.toString(), expected.getCount(feature), actual.getCount(feature), 1e-4);
+  }
+  
+  @Test
+  public void testObjectiveMatchesExtractFeatures()
+  {
+    Random rand = new Random(2);
+    SuffStatTensor suffStats = randomSuffStats(rand);
+    CompiledFeatures compiled = new CompiledFeatures(model, bm, fe);
+    final int nFeatures = compiled.nFeatures();
+    double [] weights = new double[nFeatures], centers = new double[nFeatures];
+    for (int f = 0; f < nFeatures; f++)
+    {
+      weights[f] = rand.nextGaussian();
+      centers[f] = 0.1 * rand.nextGaussian();
+    }
+    final double variance = 0.5;
+    Counter<Object> weightCounter = compiled.toCounter(weights);
+    
+    // negated regularized expected conditional log likelihood, from the features of each (input, output)
+    double expected = 0.0;
+    Counter<Object> expectedGradient = new Counter<Object>();
+    for (Input in : model.allInputs())
+    {
+      List<Output> outs = new ArrayList<Output>(bm.support(in));
+      List<Counter<Object>> features = new ArrayList<Counter<Object>>();
+      double [] scores = new double[outs.size()];
+      double logNorm = Double.NEGATIVE_INFINITY, total = 0.0;
+      for (int o = 0; o < outs.size(); o++)
+      {
+        features.add(fe.extractFeatures(new LabeledInstance<Input,Output>(outs.get(o), in)));
+        for (Object feature : features.get(o).keySet())
+          scores[o] += weightCounter.getCount(feature) * features.get(o).getCount(feature);
+        logNorm = NumericalUtils.logAdd(logNorm, scores[o]);
+        total += count(suffStats, in, outs.get(o));
+      }
+      for (int o = 0; o < outs.size(); o++)
+      {
+        final double count = count(suffStats, in, outs.get(o));
+        expected -= count * (scores[o] - logNorm);
+        for (Object feature : features.get(o).keySet())
+          expectedGradient.incrementCount(feature, 
+              (total * Math.exp(scores[o] - logNorm) - count) * features.get(o).getCount(feature));
+      }
+    }
+    for (int f = 0; f < nFeatures; f++)
+    {
+      final Object feature = compiled.featureIndexer.i2o(f);
+      final double diff = weights[f] - centers[f];
+      expected += fe.regularizationFactor(feature) * diff * diff / 2.0 / variance;
+      expectedGradient.incrementCount(feature, fe.regularizationFactor(feature) * diff / variance);
+    }
+    
+    double [] gradient = new double[nFeatures];
+    assertEquals(expected, compiled.negativeObjective(weights, suffStats, centers, variance, gradient), 1e-8 * Math.abs(expected));
+    for (int f = 0; f < nFeatures; f++)
+    {
+      final Object feature = compiled.featureIndexer.i2o(f);
+      assertEquals(feature.toString(), expectedGradient.getCount(feature), gradient[f], 1e-8);
+    }
+  }
+  
+  private static double count(SuffStatTensor suffStats, Input in, Output out)
+  {
+    return suffStats.get(in.state1, out.state2, in.strTaxSuffStat, out.topSymbol, out.botSymbol);
+  }
+}
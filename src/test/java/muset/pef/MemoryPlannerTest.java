@@ -0,0 +1,94 @@
+package muset.pef;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import bayonet.regression.MaxentClassifier.MaxentOptions;
+import briefj.collections.UnorderedPair;
+import muset.Alphabet;
+import muset.Alphabet.Letter;
+import muset.Sequence;
+import muset.SequenceId;
+import muset.hmm.HetPairHMM;
+import muset.pef.ExponentialFamily.ExponentialFamilyOptions;
+import muset.pef.FeatureExtractor.FeatureOptions;
+import muset.pef.MemoryPlanner.MemoryPlannerOptions;
+import muset.pef.MemoryPlanner.Plan;
+import muset.pef.MemoryPlanner.Strategy;
+import muset.util.BandedMatrix;
+import muset.util.PairPosteriors;
+
+
+
+public class MemoryPlannerTest
+{
+  private static Sequence randomSequence(Alphabet alphabet, Random rand, int length)
+  {
+    List<Letter> letters = new ArrayList<Letter>();
+    for (int i = 0; i < length; i++)
+      letters.add(alphabet.getExistingLetter(String.valueOf("ACG".charAt(rand.nextInt(3)))));
+    return new Sequence(alphabet, letters);
+  }
+  
+  @Test
+  public void testBandedPairStaysInTheBand()
+  {
+    Alphabet alphabet = new Alphabet();
+    alphabet.getLetter("A");
+    alphabet.getLetter("C");
+    alphabet.getLetter("G");
+    final SequenceId x = new SequenceId("x"), y = new SequenceId("y");
+    Set<UnorderedPair<SequenceId,SequenceId>> taxaPairs = new LinkedHashSet<UnorderedPair<SequenceId,SequenceId>>();
+    taxaPairs.add(UnorderedPair.of(x, y));
+    ExponentialFamily expFam = ExponentialFamily.createExpfam(new MaxentOptions<Object>(), new ExponentialFamilyOptions(), 
+        new FeatureOptions(), taxaPairs, alphabet);
+    Random rand = new Random(1);
+    final int length = 2000;
+    Map<SequenceId,Sequence> pair = new LinkedHashMap<SequenceId,Sequence>();
+    pair.put(x, randomSequence(alphabet, rand, length));
+    pair.put(y, randomSequence(alphabet, rand, length));
+    
+    MemoryPlannerOptions options = new MemoryPlannerOptions();
+    options.memoryBudgetMB = 4;
+    MemoryPlanner planner = new MemoryPlanner(options, expFam.model.nStates, 2);
+    // with the boundary symbols
+    Plan plan = planner.plan(length + 1, length + 1);
+    assertEquals(Strategy.BANDED, plan.strategy);
+    assertTrue(plan.bytes <= 4L * 1024L * 1024L);
+    
+    HetPairHMM hmm = expFam.getHMM(pair.get(x), pair.get(y), x, y, plan.envelope);
+    BandedMatrix posteriors = expFam.addSufficientStatistics(new SuffStatTensor(expFam.model), hmm, x, y);
+    // no len1 x len2 matrix: only the band is stored, and counted in the plan
+    assertEquals(length + 1, posteriors.nRows);
+    assertTrue(posteriors.size() <= plan.envelope.size());
+    assertTrue(posteriors.size() < (length + 1L) * (length + 1L) / 10);
+    assertTrue(HetPairHMM.estimateBytes(2, expFam.model.nStates, plan.envelope) <= plan.bytes);
+    for (int row = 0; row < posteriors.nRows; row++)
+      for (int column = posteriors.lower(row); column <= posteriors.upper(row); column++)
+        assertTrue(plan.envelope.contains(row, column) && plan.envelope.contains(row + 1, column + 1));
+    
+    // the group's posteriors keep the band as is
+    PairPosteriors group = new PairPosteriors(pair);
+    group.set(x, y, posteriors);
+    double total = 0.0;
+    for (int row = 0; row < length; row++)
+      for (int column = posteriors.lower(row); column <= Math.min(length - 1, posteriors.upper(row)); column++)
+      {
+        assertEquals(posteriors.get(row, column), group.get(x, row, y, column), 0.0);
+        assertEquals(posteriors.get(row, column), group.get(y, column, x, row), 0.0);
+        total += posteriors.get(row, column);
+      }
+    assertEquals(0.0, group.get(x, 0, y, length - 1), 0.0);
+    assertTrue(total > 0.0);
+  }
+}
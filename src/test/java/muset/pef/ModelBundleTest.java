@@ -0,0 +1,83 @@
+package muset.pef;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import bayonet.regression.MaxentClassifier;
+import bayonet.regression.MaxentClassifier.MaxentOptions;
+import briefj.collections.UnorderedPair;
+import muset.Alphabet;
+import muset.SequenceId;
+import muset.pef.ExponentialFamily.ExponentialFamilyOptions;
+import muset.pef.FeatureExtractor.FeatureOptions;
+
+
+
+public class ModelBundleTest
+{
+  // a model with random weights on all its features
+  private static ExponentialFamily randomModel(Random rand)
+  {
+    Alphabet alphabet = new Alphabet();
+    alphabet.getLetter("A");
+    alphabet.getLetter("C");
+    alphabet.getLetter("G");
+    Set<UnorderedPair<SequenceId,SequenceId>> taxaPairs = new LinkedHashSet<UnorderedPair<SequenceId,SequenceId>>();
+    taxaPairs.add(UnorderedPair.of(new SequenceId("x"), new SequenceId("y")));
+    taxaPairs.add(UnorderedPair.of(new SequenceId("x"), new SequenceId("z")));
+    FeatureOptions featureOptions = new FeatureOptions();
+    featureOptions.addPairSpecific = true;
+    ExponentialFamily zero = ExponentialFamily.createExpfam(new MaxentOptions<Object>(), new ExponentialFamilyOptions(), 
+        featureOptions, taxaPairs, alphabet);
+    CompiledFeatures compiled = new CompiledFeatures(zero.model, zero.bm, zero.featureExtractor);
+    ExponentialFamilyOptions options = new ExponentialFamilyOptions();
+    options.initParams = ExponentialFamilyOptions.INTERNAL;
+    for (Object feature : compiled.featureIndexer.objectsList())
+      options.internal.setCount(feature.toString(), rand.nextGaussian());
+    return ExponentialFamily.createExpfam(new MaxentOptions<Object>(), options, featureOptions, taxaPairs, alphabet);
+  }
+  
+  private static void assertRoundTrip(ExponentialFamily expected, File file, CachedParams.Storage storage)
+  {
+    ModelBundle bundle = ModelBundle.read(file, storage);
+    assertEquals(expected.model.enc.indexer.objectsList().toString(), bundle.model.enc.indexer.objectsList().toString());
+    assertEquals(expected.featureExtractor.sequenceIdPairsIndex.objectsList().toString(), 
+        bundle.featureExtractor.sequenceIdPairsIndex.objectsList().toString());
+    assertEquals(expected.featureExtractor.options.addPairSpecific, bundle.featureExtractor.options.addPairSpecific);
+    
+    final int nWeights = expected.getNaturalParams().size();
+    assertEquals(nWeights, bundle.naturalParams.size());
+    for (Object feature : expected.getNaturalParams().keySet())
+      assertEquals(expected.getNaturalParams().getCount(feature), bundle.naturalParams.getCount(feature.toString()), 0.0);
+    
+    assertEquals(storage, bundle.cachedParams.storage());
+    CachedParams cachedParams = new CachedParams(expected.model, 
+        MaxentClassifier.createMaxentClassifierFromWeights(expected.bm, expected.getNaturalParams(), expected.featureExtractor));
+    List<Input> inputs = expected.model.allInputs();
+    assertEquals(inputs.size(), bundle.model.allInputs().size());
+    for (Input in : inputs)
+      for (Output out : expected.bm.support(in))
+        assertEquals(
+            cachedParams.getLogPr(in, out), 
+            bundle.cachedParams.getLogPr(in.state1, out.state2, in.strTaxSuffStat, out.topSymbol, out.botSymbol), 0.0);
+  }
+  
+  @Test
+  public void testRoundTrip() throws IOException
+  {
+    ExponentialFamily expFam = randomModel(new Random(1));
+    File file = File.createTempFile("model", ".bundle");
+    file.deleteOnExit();
+    expFam.saveBundle(file);
+    assertRoundTrip(expFam, file, new CachedParams.Storage(false, false, 16));
+    assertRoundTrip(expFam, file, new CachedParams.Storage(false, true, 16));
+  }
+}
@@ -0,0 +1,30 @@
+package muset.pef;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import muset.pef.Aligner.SequenceDataset;
+
+
+
+public class SequenceDatasetTest
+{
+  @Test
+  public void splitCSVLine()
+  {
+    assertEquals(Arrays.asList("g1", "t1", "A C G"), SequenceDataset.splitCSVLine("g1,t1,A C G"));
+    assertEquals(Arrays.asList("g,1", "t1", ""), SequenceDataset.splitCSVLine("\"g,1\",t1,"));
+    // doubled quotes inside a quoted field
+    assertEquals(Arrays.asList("say \"hi\"", "t,1", "\""), SequenceDataset.splitCSVLine("\"say \"\"hi\"\"\",\"t,1\",\"\"\"\""));
+    assertEquals(Arrays.asList("", "t1", "A"), SequenceDataset.splitCSVLine("\"\",t1,A"));
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void unterminatedQuote()
+  {
+    SequenceDataset.splitCSVLine("\"g1,t1,A");
+  }
+}
@@ -0,0 +1,73 @@
+package muset.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+
+
+public class LBFGSTest
+{
+  @Test
+  public void testQuadratic()
+  {
+    // 0.5 (x - c)' A (x - c), with A = B'B + I positive definite
+    final int dim = 10;
+    Random rand = new Random(1);
+    final double [][] b = new double[dim][dim], a = new double[dim][dim];
+    final double [] c = new double[dim];
+    for (int i = 0; i < dim; i++)
+    {
+      c[i] = rand.nextGaussian();
+      for (int j = 0; j < dim; j++)
+        b[i][j] = rand.nextGaussian();
+    }
+    for (int i = 0; i < dim; i++)
+      for (int j = 0; j < dim; j++)
+      {
+        for (int k = 0; k < dim; k++)
+          a[i][j] += b[k][i] * b[k][j];
+        if (i == j)
+          a[i][j] += 1.0;
+      }
+    LBFGS.Objective objective = new LBFGS.Objective() {
+      @Override
+      public double valueAt(double [] point, double [] gradient)
+      {
+        double result = 0.0;
+        for (int i = 0; i < dim; i++)
+        {
+          gradient[i] = 0.0;
+          for (int j = 0; j < dim; j++)
+            gradient[i] += a[i][j] * (point[j] - c[j]);
+          result += 0.5 * (point[i] - c[i]) * gradient[i];
+        }
+        return result;
+      }
+    };
+    double [] minimum = LBFGS.minimize(objective, new double[dim], 1000, 1e-12, 5);
+    // a decrease of the value below 1e-12 only pins the point to about 1e-6
+    for (int i = 0; i < dim; i++)
+      assertEquals(c[i], minimum[i], 1e-5);
+  }
+
+  @Test
+  public void testRosenbrock()
+  {
+    LBFGS.Objective objective = new LBFGS.Objective() {
+      @Override
+      public double valueAt(double [] point, double [] gradient)
+      {
+        final double x = point[0], y = point[1];
+        gradient[0] = -2.0 * (1.0 - x) - 400.0 * x * (y - x * x);
+        gradient[1] = 200.0 * (y - x * x);
+        return (1.0 - x) * (1.0 - x) + 100.0 * (y - x * x) * (y - x * x);
+      }
+    };
+    double [] minimum = LBFGS.minimize(objective, new double[]{-1.2, 1.0}, 1000, 1e-12, 5);
+    assertEquals(1.0, minimum[0], 1e-5);
+    assertEquals(1.0, minimum[1], 1e-5);
+  }
+}